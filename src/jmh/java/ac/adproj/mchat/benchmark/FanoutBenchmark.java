@@ -0,0 +1,87 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.benchmark;
+
+import ac.adproj.mchat.model.OutboundMessage;
+import ac.adproj.mchat.service.MessageFanout;
+import ac.adproj.mchat.service.UserManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MessageFanout#broadcast} to the TCP users connected through {@link NullSocketChannel}s,
+ * one message per operation.
+ *
+ * @author Andy Cheung
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanoutBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int users;
+
+    private final UserManager userManager = UserManager.getInstance();
+
+    private final List<String> registered = new ArrayList<>();
+
+    private final String text = "<< MESSAGE >>> <<<<Alice>>>>> << MESSAGE >>Hello, everyone! How is it going?";
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < users; i++) {
+            String uuid = UUID.randomUUID().toString();
+            userManager.register(uuid, "User" + i, new NullSocketChannel());
+            registered.add(uuid);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        registered.forEach(userManager::unregister);
+        registered.clear();
+    }
+
+    @Benchmark
+    public int broadcast() {
+        return MessageFanout.getInstance().broadcast(OutboundMessage.of(text), null);
+    }
+
+    @Benchmark
+    public int broadcastExcludingSender() {
+        return MessageFanout.getInstance().broadcast(OutboundMessage.of(text), registered.get(0));
+    }
+}
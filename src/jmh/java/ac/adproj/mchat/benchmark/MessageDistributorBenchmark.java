@@ -0,0 +1,109 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.benchmark;
+
+import ac.adproj.mchat.model.ChatEvent;
+import ac.adproj.mchat.service.MessageDistributor;
+import ac.adproj.mchat.service.Subscription;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Throughput of {@link MessageDistributor} from the publishers to the subscribers.
+ * </p>
+ *
+ * <p>
+ * The subscribers wait ({@link Subscription.OverflowPolicy#BLOCK}) instead of dropping the events, so the
+ * publishers are held back to the rate that the events are delivered at.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageDistributorBenchmark {
+
+    @Param({"1", "4"})
+    private int subscribers;
+
+    private final MessageDistributor distributor = MessageDistributor.getInstance();
+
+    private final List<MessageDistributor.SubscriberCallback> callbacks = new ArrayList<>();
+
+    private final LongAdder delivered = new LongAdder();
+
+    private final ChatEvent event = ChatEvent.chat("uuid", "Alice", "Hello, everyone!");
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < subscribers; i++) {
+            MessageDistributor.SubscriberCallback callback = new MessageDistributor.SubscriberCallback() {
+                @Override
+                public void onMessageReceived(ChatEvent event) {
+                    delivered.increment();
+                }
+
+                @Override
+                public void onMessagesReceived(List<ChatEvent> events) {
+                    delivered.add(events.size());
+                }
+            };
+
+            distributor.registerSubscriber(callback, MessageDistributor.DEFAULT_SUBSCRIBER_CAPACITY,
+                    Subscription.OverflowPolicy.BLOCK);
+            callbacks.add(callback);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        callbacks.forEach(distributor::unregisterSubscriber);
+        callbacks.clear();
+    }
+
+    @Benchmark
+    public void publish() throws InterruptedException {
+        distributor.publish(event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void publishConcurrently() throws InterruptedException {
+        distributor.publish(event);
+    }
+}
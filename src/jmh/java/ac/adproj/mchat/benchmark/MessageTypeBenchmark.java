@@ -0,0 +1,87 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.benchmark;
+
+import ac.adproj.mchat.handler.MessageType;
+import ac.adproj.mchat.model.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the raw protocol messages: {@link MessageType#getMessageType(String)} and
+ * {@link MessageType#tokenize(String)}, per message type.
+ *
+ * @author Andy Cheung
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageTypeBenchmark {
+
+    @Param({"REGISTER", "LOGOFF", "INCOMING_MESSAGE", "KEEP_ALIVE", "FILE_OFFER", "UNKNOWN"})
+    private MessageType type;
+
+    private String message;
+
+    @Setup
+    public void setUp() {
+        String uuid = UUID.randomUUID().toString();
+
+        message = switch (type) {
+            case REGISTER -> Protocol.CONNECTING_GREET_LEFT_HALF + uuid + Protocol.CONNECTING_GREET_MIDDLE_HALF
+                    + "Alice" + Protocol.CONNECTING_GREET_RIGHT_HALF;
+            case LOGOFF -> Protocol.DISCONNECT + uuid;
+            case INCOMING_MESSAGE -> Protocol.MESSAGE_HEADER_LEFT_HALF + uuid + Protocol.MESSAGE_HEADER_MIDDLE_HALF
+                    + Protocol.MESSAGE_HEADER_RIGHT_HALF + "Hello, everyone! How is it going?";
+            case KEEP_ALIVE -> Protocol.KEEP_ALIVE_HEADER + uuid + Protocol.KEEP_ALIVE_TAIL;
+            case FILE_OFFER -> Protocol.FILE_OFFER_HEADER + uuid + Protocol.FILE_FIELD_SEPARATOR + "Bob"
+                    + Protocol.FILE_FIELD_SEPARATOR + "1048576" + Protocol.FILE_FIELD_SEPARATOR + "report.pdf";
+            case UNKNOWN -> "Hello, everyone! How is it going?";
+            default -> throw new IllegalArgumentException("No sample message of " + type);
+        };
+
+        if (MessageType.getMessageType(message) != type) {
+            throw new IllegalStateException("The sample message isn't of " + type + ": " + message);
+        }
+    }
+
+    @Benchmark
+    public MessageType getMessageType() {
+        return MessageType.getMessageType(message);
+    }
+
+    @Benchmark
+    public Map<String, String> tokenize() {
+        return type.tokenize(message);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.benchmark;
+
+import ac.adproj.mchat.handler.ServerMessageHandler;
+import ac.adproj.mchat.model.ChatEvent;
+import ac.adproj.mchat.model.Protocol;
+import ac.adproj.mchat.protocol.ServerListener;
+import ac.adproj.mchat.service.UserManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.mock;
+
+/**
+ * <p>
+ * {@link ServerMessageHandler#handleEvent} per message type, with the TCP users connected through
+ * {@link NullSocketChannel}s.
+ * </p>
+ *
+ * <p>
+ * The listener is a Mockito mock (the real one binds the server ports), so the logoff and the private messages
+ * include the cost of the mock interception. Registering is measured together with the unregistering,
+ * to keep the registry at the same size.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerMessageHandlerBenchmark {
+
+    /**
+     * Number of the online users, all of them receive the public messages.
+     */
+    @Param({"16", "256"})
+    private int users;
+
+    private final UserManager userManager = UserManager.getInstance();
+
+    private final List<String> registered = new ArrayList<>();
+
+    private ServerMessageHandler handler;
+
+    private PrintStream originalOut;
+
+    private String registerMessage;
+    private String registerUuid;
+    private String publicMessage;
+    private String privateMessage;
+    private String keepAliveMessage;
+    private String logoffMessage;
+
+    @Setup
+    public void setUp() {
+        ServerListener listener = mock(ServerListener.class);
+        doCallRealMethod().when(listener).sendCommunicationData(any(), any());
+        doCallRealMethod().when(listener).sendMessage(any(), any());
+
+        handler = new ServerMessageHandler(listener);
+
+        for (int i = 0; i < users; i++) {
+            String uuid = UUID.randomUUID().toString();
+            userManager.register(uuid, "User" + i, new NullSocketChannel());
+            registered.add(uuid);
+        }
+
+        String sender = registered.get(0);
+
+        registerUuid = UUID.randomUUID().toString();
+        registerMessage = Protocol.CONNECTING_GREET_LEFT_HALF + registerUuid + Protocol.CONNECTING_GREET_MIDDLE_HALF
+                + "Newcomer" + Protocol.CONNECTING_GREET_RIGHT_HALF;
+        publicMessage = Protocol.MESSAGE_HEADER_LEFT_HALF + sender + Protocol.MESSAGE_HEADER_MIDDLE_HALF
+                + Protocol.MESSAGE_HEADER_RIGHT_HALF + "Hello, everyone! How is it going?";
+        privateMessage = Protocol.MESSAGE_HEADER_LEFT_HALF + sender + Protocol.MESSAGE_HEADER_MIDDLE_HALF
+                + Protocol.MESSAGE_HEADER_RIGHT_HALF + "@User1#Hello, how is it going?";
+        keepAliveMessage = Protocol.KEEP_ALIVE_HEADER + sender + Protocol.KEEP_ALIVE_TAIL;
+        logoffMessage = Protocol.DISCONNECT + sender;
+
+        // The keep-alive handling prints the user.
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(originalOut);
+
+        registered.forEach(userManager::unregister);
+        registered.clear();
+    }
+
+    @Benchmark
+    public ChatEvent registerAndUnregister() {
+        ChatEvent event = handler.handleEvent(registerMessage, new NullSocketChannel());
+        userManager.unregister(registerUuid);
+
+        return event;
+    }
+
+    @Benchmark
+    public ChatEvent publicMessage() {
+        return handler.handleEvent(publicMessage, null);
+    }
+
+    @Benchmark
+    public ChatEvent privateMessage() {
+        return handler.handleEvent(privateMessage, null);
+    }
+
+    @Benchmark
+    public ChatEvent keepAlive() {
+        return handler.handleEvent(keepAliveMessage, null);
+    }
+
+    @Benchmark
+    public ChatEvent logoff() {
+        return handler.handleEvent(logoffMessage, null);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.benchmark;
+
+import ac.adproj.mchat.model.User;
+import ac.adproj.mchat.service.UserManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * The session registry under contention: lookups by UUID and by name from many threads, registering and
+ * unregistering from many threads, and lookups while another thread keeps registering.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserManagerBenchmark {
+
+    /**
+     * Number of the registered users, a power of two.
+     */
+    @Param({"1024", "65536"})
+    private int users;
+
+    private final UserManager userManager = UserManager.getInstance();
+
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    private String[] uuids;
+    private String[] names;
+
+    /**
+     * Per-thread position in the registered users, and the user that the thread registers.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private int index;
+        private String uuid;
+        private String name;
+
+        @Setup
+        public void setUp(UserManagerBenchmark benchmark) {
+            index = ThreadLocalRandom.current().nextInt(benchmark.users);
+            uuid = UUID.randomUUID().toString();
+            name = "Registering" + benchmark.threadNumber.getAndIncrement();
+        }
+
+        @TearDown
+        public void tearDown(UserManagerBenchmark benchmark) {
+            benchmark.userManager.unregister(uuid);
+        }
+
+        private int next(int mask) {
+            return index++ & mask;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        uuids = new String[users];
+        names = new String[users];
+
+        for (int i = 0; i < users; i++) {
+            uuids[i] = UUID.randomUUID().toString();
+            names[i] = "User" + i;
+            userManager.register(uuids[i], names[i], null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (String uuid : uuids) {
+            userManager.unregister(uuid);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public User lookup(ThreadState state) {
+        return userManager.lookup(uuids[state.next(users - 1)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<String> findUuidByName(ThreadState state) {
+        return userManager.findUuidByName(names[state.next(users - 1)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean registerAndUnregister(ThreadState state) {
+        boolean registered = userManager.register(state.uuid, state.name, null);
+        userManager.unregister(state.uuid);
+
+        return registered;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public Optional<String> contendedFindUuidByName(ThreadState state) {
+        return userManager.findUuidByName(names[state.next(users - 1)]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public boolean contendedRegisterAndUnregister(ThreadState state) {
+        return registerAndUnregister(state);
+    }
+}
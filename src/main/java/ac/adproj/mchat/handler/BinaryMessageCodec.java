@@ -0,0 +1,362 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.handler;
+
+import ac.adproj.mchat.model.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Compact binary encoding of the protocol messages, used by WebSocket binary frames.
+ * </p>
+ *
+ * <p>
+ * Frame format: (type, 1 byte) followed by the fields of the message. Every field is a UTF-8 string
+ * prefixed by its length in bytes, encoded as an unsigned LEB128 varint.
+ * </p>
+ *
+ * <table>
+ *     <caption>Message types</caption>
+ *     <tr><th>Type</th><th>Fields</th></tr>
+ *     <tr><td>{@link #TEXT}</td><td>text</td></tr>
+ *     <tr><td>{@link #REGISTER}</td><td>uuid, name</td></tr>
+ *     <tr><td>{@link #LOGOFF}</td><td>uuid</td></tr>
+ *     <tr><td>{@link #MESSAGE}</td><td>uuid (or name), messageText</td></tr>
+ *     <tr><td>{@link #KEEP_ALIVE}</td><td>uuid</td></tr>
+ *     <tr><td>{@link #NAME_QUERY}</td><td>username</td></tr>
+ *     <tr><td>{@link #NAME_QUERY_RESULT}</td><td>"1" if duplicated, "0" otherwise</td></tr>
+ *     <tr><td>{@link #SESSION_UUID}</td><td>uuid</td></tr>
+ *     <tr><td>{@link #DEBUG}</td><td>(none)</td></tr>
+ *     <tr><td>{@link #BATCH}</td><td>encoded frames</td></tr>
+ *     <tr><td>{@link #FILE_CHUNK}</td><td>transferId, then the offset (varint) and the raw data</td></tr>
+ * </table>
+ *
+ * @author Andy Cheung
+ */
+public final class BinaryMessageCodec {
+    /**
+     * Plain text line, i.e. message that can be displayed in UI directly.
+     */
+    public static final byte TEXT = 0;
+    public static final byte REGISTER = 1;
+    public static final byte LOGOFF = 2;
+    public static final byte MESSAGE = 3;
+    public static final byte KEEP_ALIVE = 4;
+    public static final byte NAME_QUERY = 5;
+    public static final byte NAME_QUERY_RESULT = 6;
+
+    /**
+     * The UUID assigned to the WebSocket session.
+     */
+    public static final byte SESSION_UUID = 7;
+    public static final byte DEBUG = 8;
+
+    /**
+     * Several frames coalesced into one.
+     */
+    public static final byte BATCH = 9;
+
+    /**
+     * Chunk of file transfer, the data isn't a UTF-8 field (see {@link #decodeChunk(ByteBuffer)}).
+     */
+    public static final byte FILE_CHUNK = 10;
+
+    private BinaryMessageCodec() {
+        throw new UnsupportedOperationException("No instance.");
+    }
+
+    /**
+     * Decoded frame.
+     *
+     * @param type   Type of the message.
+     * @param fields Fields of the message.
+     * @author Andy Cheung
+     */
+    public record Frame(byte type, List<String> fields) {
+        /**
+         * Obtain the field.
+         *
+         * @param index Index of the field.
+         * @return The field.
+         * @throws IllegalArgumentException If the frame doesn't have the field.
+         */
+        public String field(int index) {
+            if (index >= fields.size()) {
+                throw new IllegalArgumentException("Missing field #" + index + " of message type " + type);
+            }
+
+            return fields.get(index);
+        }
+    }
+
+    /**
+     * Chunk of file transfer.
+     *
+     * @param transferId ID of the transfer.
+     * @param offset     Offset of the data in the file.
+     * @param data       The data, a view of the frame.
+     * @author Andy Cheung
+     */
+    public record Chunk(String transferId, long offset, ByteBuffer data) {
+    }
+
+    /**
+     * Encode the message.
+     *
+     * @param type   Type of the message.
+     * @param fields Fields of the message.
+     * @return The encoded frame.
+     */
+    public static byte[] encode(byte type, String... fields) {
+        var out = new ByteArrayOutputStream(16);
+        out.write(type);
+
+        for (String field : fields) {
+            writeField(out, field.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the text protocol message (or UI message) to the equivalent binary frame.
+     *
+     * @param message The text protocol message.
+     * @return The encoded frame.
+     */
+    public static byte[] encode(String message) {
+        if (message.startsWith(Protocol.WEBSOCKET_UUID_HEADER)) {
+            return encode(SESSION_UUID, message.substring(Protocol.WEBSOCKET_UUID_HEADER.length(),
+                    message.length() - Protocol.WEBSOCKET_UUID_TAIL.length()));
+        }
+
+        if (message.equals(Protocol.USER_NAME_DUPLICATED) || message.equals(Protocol.USER_NAME_NOT_EXIST)) {
+            return encode(NAME_QUERY_RESULT, message.equals(Protocol.USER_NAME_DUPLICATED) ? "1" : "0");
+        }
+
+        MessageType type = MessageType.getMessageType(message);
+        Map<String, String> tokens = type.tokenize(message);
+
+        return switch (type) {
+            case REGISTER -> encode(REGISTER, tokens.get("uuid"), tokens.get("name"));
+            case LOGOFF -> encode(LOGOFF, tokens.get("uuid"));
+            case INCOMING_MESSAGE -> tokens.isEmpty() ? encode(TEXT, message)
+                    : encode(MESSAGE, tokens.get("uuid"), tokens.get("messageText"));
+            case KEEP_ALIVE -> encode(KEEP_ALIVE, tokens.get("uuid"));
+            case USERNAME_QUERY_REQUEST -> encode(NAME_QUERY, tokens.get("username"));
+            case DEBUG -> encode(DEBUG);
+            default -> encode(TEXT, message);
+        };
+    }
+
+    /**
+     * Coalesce the encoded frames into one {@link #BATCH} frame.
+     *
+     * @param frames The encoded frames.
+     * @return The batch frame.
+     */
+    public static byte[] encodeBatch(List<byte[]> frames) {
+        int size = 1;
+
+        for (byte[] frame : frames) {
+            size += frame.length + 5;
+        }
+
+        var out = new ByteArrayOutputStream(size);
+        out.write(BATCH);
+
+        for (byte[] frame : frames) {
+            writeField(out, frame);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the frame. (Frames in a {@link #BATCH} frame can be decoded by {@link #decodeBatch(ByteBuffer)}.)
+     *
+     * @param buffer The frame, from position to limit.
+     * @return The decoded frame.
+     * @throws IllegalArgumentException If the frame is malformed.
+     */
+    public static Frame decode(ByteBuffer buffer) {
+        try {
+            if (!buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Empty frame");
+            }
+
+            byte type = buffer.get();
+            List<String> fields = new ArrayList<>(2);
+
+            while (buffer.hasRemaining()) {
+                int length = readVarint(buffer);
+
+                if (length > buffer.remaining()) {
+                    throw new IllegalArgumentException("Field length exceeds the frame: " + length);
+                }
+
+                fields.add(StandardCharsets.UTF_8.decode(buffer.slice().limit(length)).toString());
+                buffer.position(buffer.position() + length);
+            }
+
+            return new Frame(type, Collections.unmodifiableList(fields));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+    }
+
+    /**
+     * Decode the frames in the {@link #BATCH} frame.
+     *
+     * @param buffer The batch frame, from position to limit.
+     * @return The decoded frames.
+     * @throws IllegalArgumentException If the frame is malformed or not a batch.
+     */
+    public static List<Frame> decodeBatch(ByteBuffer buffer) {
+        try {
+            if (buffer.get() != BATCH) {
+                throw new IllegalArgumentException("Not a batch frame");
+            }
+
+            List<Frame> frames = new ArrayList<>();
+
+            while (buffer.hasRemaining()) {
+                int length = readVarint(buffer);
+
+                if (length > buffer.remaining()) {
+                    throw new IllegalArgumentException("Frame length exceeds the batch: " + length);
+                }
+
+                frames.add(decode(buffer.slice().limit(length)));
+                buffer.position(buffer.position() + length);
+            }
+
+            return frames;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+    }
+
+    /**
+     * Encode the header of {@link #FILE_CHUNK} frame, the data follows the header in the same frame.
+     *
+     * @param transferId ID of the transfer.
+     * @param offset     Offset of the data in the file.
+     * @return The encoded header.
+     */
+    public static byte[] encodeChunkHeader(String transferId, long offset) {
+        var out = new ByteArrayOutputStream(48);
+        out.write(FILE_CHUNK);
+        writeField(out, transferId.getBytes(StandardCharsets.UTF_8));
+
+        long value = offset;
+
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        out.write((int) value);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the {@link #FILE_CHUNK} frame.
+     *
+     * @param buffer The frame, from position to limit.
+     * @return The chunk, the data shares the content of the buffer.
+     * @throws IllegalArgumentException If the frame is malformed or not a chunk.
+     */
+    public static Chunk decodeChunk(ByteBuffer buffer) {
+        try {
+            if (buffer.get() != FILE_CHUNK) {
+                throw new IllegalArgumentException("Not a chunk frame");
+            }
+
+            int length = readVarint(buffer);
+
+            if (length > buffer.remaining()) {
+                throw new IllegalArgumentException("Field length exceeds the frame: " + length);
+            }
+
+            String transferId = StandardCharsets.UTF_8.decode(buffer.slice().limit(length)).toString();
+            buffer.position(buffer.position() + length);
+
+            long offset = 0;
+            int shift = 0;
+            byte b;
+
+            do {
+                if (shift > 63) {
+                    throw new IllegalArgumentException("Malformed varint");
+                }
+
+                b = buffer.get();
+                offset |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            if (offset < 0) {
+                throw new IllegalArgumentException("Negative offset");
+            }
+
+            return new Chunk(transferId, offset, buffer.slice());
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+    }
+
+    private static void writeField(ByteArrayOutputStream out, byte[] data) {
+        int value = data.length;
+
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+        out.write(data, 0, data.length);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
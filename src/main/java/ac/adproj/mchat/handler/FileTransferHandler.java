@@ -0,0 +1,71 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.handler;
+
+import ac.adproj.mchat.model.ChatSession;
+import ac.adproj.mchat.model.Protocol;
+import ac.adproj.mchat.service.FileTransferService;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Handler of the file transfer messages from the clients, shared by TCP and WebSocket server.
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+public final class FileTransferHandler {
+    private FileTransferHandler() {
+        throw new UnsupportedOperationException("No instance.");
+    }
+
+    /**
+     * Handle the file transfer message.
+     *
+     * @param session The session sending the message, or null if not registered.
+     * @param type    Type of the message, {@link MessageType#FILE_OFFER} or {@link MessageType#FILE_GET}.
+     * @param message Raw protocol message.
+     */
+    public static void handle(ChatSession session, MessageType type, String message) {
+        Map<String, String> tokens = type.tokenize(message);
+
+        if (session == null || tokens.isEmpty()) {
+            return;
+        }
+
+        try {
+            switch (type) {
+                case FILE_OFFER -> FileTransferService.getInstance().offer(session, tokens.get("transferId"),
+                        tokens.get("target"), Long.parseLong(tokens.get("size")), tokens.get("fileName"));
+                case FILE_GET -> FileTransferService.getInstance().request(session, tokens.get("transferId"),
+                        Long.parseLong(tokens.get("offset")), Long.parseLong(tokens.get("length")));
+                default -> {
+                    // Don't do anything.
+                }
+            }
+        } catch (NumberFormatException e) {
+            try {
+                session.send(Protocol.FILE_ERROR_HEADER + tokens.get("transferId") + Protocol.FILE_FIELD_SEPARATOR
+                        + "Invalid number: " + e.getMessage());
+            } catch (IOException ex) {
+                log.warn("Failed to send file transfer message to {}", session.getName(), ex);
+            }
+        }
+    }
+}
@@ -107,6 +107,65 @@ public enum MessageType {
         }
     },
 
+    /**
+     * File transfer offer.
+     */
+    FILE_OFFER(Protocol.FILE_OFFER_HEADER) {
+        @Override
+        public Map<String, String> tokenize(String message) {
+            String[] data = fileFields(message, this, 4);
+
+            return data.length < 4 ? Collections.emptyMap()
+                    : Map.of("transferId", data[0], "target", data[1], "size", data[2], "fileName", data[3]);
+        }
+    },
+    /**
+     * File transfer acknowledgement.
+     */
+    FILE_ACK(Protocol.FILE_ACK_HEADER) {
+        @Override
+        public Map<String, String> tokenize(String message) {
+            String[] data = fileFields(message, this, 3);
+
+            return data.length < 3 ? Collections.emptyMap()
+                    : Map.of("transferId", data[0], "offset", data[1], "window", data[2]);
+        }
+    },
+    /**
+     * Notice of a received file.
+     */
+    FILE_READY(Protocol.FILE_READY_HEADER) {
+        @Override
+        public Map<String, String> tokenize(String message) {
+            String[] data = fileFields(message, this, 4);
+
+            return data.length < 4 ? Collections.emptyMap()
+                    : Map.of("transferId", data[0], "sender", data[1], "size", data[2], "fileName", data[3]);
+        }
+    },
+    /**
+     * File download request.
+     */
+    FILE_GET(Protocol.FILE_GET_HEADER) {
+        @Override
+        public Map<String, String> tokenize(String message) {
+            String[] data = fileFields(message, this, 3);
+
+            return data.length < 3 ? Collections.emptyMap()
+                    : Map.of("transferId", data[0], "offset", data[1], "length", data[2]);
+        }
+    },
+    /**
+     * File transfer error.
+     */
+    FILE_ERROR(Protocol.FILE_ERROR_HEADER) {
+        @Override
+        public Map<String, String> tokenize(String message) {
+            String[] data = fileFields(message, this, 2);
+
+            return data.length < 2 ? Collections.emptyMap() : Map.of("transferId", data[0], "reason", data[1]);
+        }
+    },
     /**
      * Unknown message.
      */
@@ -140,6 +199,11 @@ public enum MessageType {
         return MessageType.UNKNOWN;
     }
 
+    private static String[] fileFields(String message, MessageType type, int count) {
+        // The last field (e.g. file name) may contain the separator.
+        return message.substring(type.headerString.length()).split(Protocol.FILE_FIELD_SEPARATOR, count);
+    }
+
     /**
      * Message tokenizer entrance method.
      *
@@ -17,18 +17,19 @@
 
 package ac.adproj.mchat.handler;
 
+import ac.adproj.mchat.model.ChatEvent;
 import ac.adproj.mchat.model.Protocol;
 import ac.adproj.mchat.model.User;
 import ac.adproj.mchat.protocol.ServerListener;
+import ac.adproj.mchat.service.ChatHistoryService;
+import ac.adproj.mchat.service.MessageFanout;
+import ac.adproj.mchat.service.Metrics;
+import ac.adproj.mchat.service.OfflineMailbox;
 import ac.adproj.mchat.service.UserManager;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -45,6 +46,15 @@ import static ac.adproj.mchat.model.Protocol.MESSAGE_HEADER_RIGHT_HALF;
 @Slf4j
 public class ServerMessageHandler implements Handler {
     private static final Pattern PATTERN_OF_PRIVATE_CHATTING_MESSAGE = Pattern.compile("[@].*[#]");
+
+    private static final Metrics.Counter[] MESSAGES_HANDLED = Metrics.getInstance().counters(
+            "mchat_messages_handled_total", "Protocol messages handled, by transport and type.",
+            "transport=\"tcp\"", "type", MessageType.class);
+
+    private static final Metrics.Histogram MESSAGE_HANDLING = Metrics.getInstance().histogram(
+            "mchat_message_handling_seconds", "Time of handling a protocol message, by transport.",
+            "transport=\"tcp\"");
+
     private final UserManager userManager = UserManager.getInstance();
     private final ServerListener listener;
 
@@ -55,22 +65,50 @@ public class ServerMessageHandler implements Handler {
 
     @Override
     public String handleMessage(String message, AsynchronousSocketChannel channel) {
+        ChatEvent event = handleEvent(message, channel);
+
+        return event == null ? "" : event.toUiString();
+    }
+
+    /**
+     * Handle protocol messages.
+     *
+     * @param message Raw protocol message.
+     * @param channel The socket channel of the other side.
+     * @return The event to distribute, or null if there's nothing to distribute.
+     */
+    public ChatEvent handleEvent(String message, AsynchronousSocketChannel channel) {
+        long start = System.nanoTime();
         MessageType msgTyp = MessageType.getMessageType(message);
 
+        MESSAGES_HANDLED[msgTyp.ordinal()].increment();
+
+        try {
+            return handle(msgTyp, message, channel);
+        } finally {
+            MESSAGE_HANDLING.recordSince(start);
+        }
+    }
+
+    private ChatEvent handle(MessageType msgTyp, String message, AsynchronousSocketChannel channel) {
         return switch (msgTyp) {
             case REGISTER -> handleRegister(message, channel);
             case DEBUG -> {
                 System.out.println(userManager.toString());
-                yield "";
+                yield null;
             }
             case LOGOFF -> handleLogoff(message);
             case INCOMING_MESSAGE -> handleIncomingMessage(message);
             case KEEP_ALIVE -> handleKeepAlive(message);
-            default -> message;
+            case FILE_OFFER, FILE_GET -> {
+                FileTransferHandler.handle(userManager.lookupByChannel(channel), msgTyp, message);
+                yield null;
+            }
+            default -> ChatEvent.system(message);
         };
     }
 
-    private String handleRegister(String message, AsynchronousSocketChannel channel) {
+    private ChatEvent handleRegister(String message, AsynchronousSocketChannel channel) {
         String[] data = message.replace(Protocol.CONNECTING_GREET_LEFT_HALF, "")
                 .replace(Protocol.CONNECTING_GREET_RIGHT_HALF, "")
                 .split(Protocol.CONNECTING_GREET_MIDDLE_HALF);
@@ -80,33 +118,30 @@ public class ServerMessageHandler implements Handler {
 
         User userObject = new User(uuid, channel, name);
 
-        userManager.register(userObject);
+        if (userManager.register(userObject)) {
+            ChatHistoryService.getInstance().welcome(userObject);
+        }
 
-        return "Client: " + uuid + " (" + name + ") Connected.";
+        return ChatEvent.join(uuid, name, "Client: " + uuid + " (" + name + ") Connected.");
     }
 
-    private String handleKeepAlive(String message) {
+    private ChatEvent handleKeepAlive(String message) {
         var keepAliveMessageUuid = MessageType.KEEP_ALIVE.tokenize(message).get("uuid");
 
         if (userManager.containsUuid(keepAliveMessageUuid)) {
             log.info("Got KA message from UUID: {}", keepAliveMessageUuid);
 
-            userManager.lookup(keepAliveMessageUuid)
-                    .getKeepAlivePackageTimestamp()
-                    .getAndUpdate(prev -> {
-                        long millis = System.currentTimeMillis();
-
-                        return Math.max(millis, prev);
-                    });
+            userManager.lookup(keepAliveMessageUuid).touchKeepAlive(System.currentTimeMillis());
 
             System.out.println(userManager.lookup(keepAliveMessageUuid));
         }
 
-        return "";
+        return null;
     }
 
-    private String handleLogoff(String message) {
+    private ChatEvent handleLogoff(String message) {
         String uuidToLogoff = message.replace(Protocol.DISCONNECT, "");
+        String name = userManager.getName(uuidToLogoff);
 
         try {
             log.info("Disconnecting: {}", uuidToLogoff);
@@ -115,16 +150,16 @@ public class ServerMessageHandler implements Handler {
             log.error("Error when handling the logoff of uid: {}", uuidToLogoff, e);
         }
 
-        return "Client: " + message.replace(Protocol.DISCONNECT, "") + " Disconnected.";
+        return ChatEvent.leave(uuidToLogoff, name, "Client: " + uuidToLogoff + " Disconnected.");
     }
 
-    private String handleIncomingMessage(String message) {
+    private ChatEvent handleIncomingMessage(String message) {
         String[] messageData = message.replace(MESSAGE_HEADER_LEFT_HALF, "")
                 .replace(MESSAGE_HEADER_RIGHT_HALF, "")
                 .split(MESSAGE_HEADER_MIDDLE_HALF);
 
         if (messageData.length < 2) {
-            return "";
+            return null;
         }
 
         String fromUuid = messageData[0];
@@ -136,39 +171,13 @@ public class ServerMessageHandler implements Handler {
         // Private chatting message.
         if (matcherOfMessageText.find()) {
             messageText = handlePrivateChattingMessage(fromUuid, messageText, matcherOfMessageText);
-        } else {
-            handleBroadcastMessage(fromUuid, nameOnlyMessage);
-        }
-
-        message = userManager.getName(fromUuid) + ": " + messageText;
-        return message;
-    }
-
-    private void handleBroadcastMessage(String fromUuid, String nameOnlyMessage) {
-        ByteBuffer bb = ByteBuffer.wrap(nameOnlyMessage.getBytes(StandardCharsets.UTF_8));
-
-        for (User u : userManager.userProfileValueSet()) {
-
-            Future<Integer> futureOfWriting;
 
-            try {
-                if (!fromUuid.equals(u.getUuid())) {
-                    bb.rewind();
-                    futureOfWriting = u.getChannel().write(bb);
-                    futureOfWriting.get();
-                }
-            } catch (InterruptedException interruptedException) {
-
-                // Propagate the interruption status.
-                Thread.currentThread().interrupt();
-
-                log.error("Got interrupted when waiting for message sent.", interruptedException);
+            return ChatEvent.privateChat(fromUuid, userManager.getName(fromUuid), messageText);
+        }
 
-            } catch (ExecutionException executionException) {
+        MessageFanout.getInstance().broadcast(nameOnlyMessage, fromUuid);
 
-                log.error("Exception occurred when waiting for message sent.", executionException);
-            }
-        }
+        return ChatEvent.chat(fromUuid, userManager.getName(fromUuid), messageText);
     }
 
     private String handlePrivateChattingMessage(String fromUuid, String messageText, Matcher matcherOfMessageText) {
@@ -176,22 +185,28 @@ public class ServerMessageHandler implements Handler {
                 .replace("@", "")
                 .replace("#", "");
 
-        var targetUser = UserManager.getInstance().findUuidByName(target);
-
-        if (targetUser.isPresent()) {
+        var targetSession = userManager.findSessionByName(target);
 
-            var um = UserManager.getInstance();
+        if (targetSession.isPresent()) {
 
             messageText = messageText.split("[#]")[1];
 
             listener.sendCommunicationData(MESSAGE_HEADER_LEFT_HALF +
-                            um.getName(fromUuid) + " -> " + um.getName(targetUser.get()) + " (私聊)" +
+                            userManager.getName(fromUuid) + " -> " + targetSession.get().getName() + " (私聊)" +
                             MESSAGE_HEADER_MIDDLE_HALF + MESSAGE_HEADER_RIGHT_HALF +
                             messageText,
-                    targetUser.get());
+                    targetSession.get().getUuid());
 
         } else {
-            listener.sendMessage("INVALID username", fromUuid);
+            String[] parts = messageText.split("[#]", 2);
+
+            if (parts.length == 2 && OfflineMailbox.getInstance().deposit(target, userManager.getName(fromUuid),
+                    parts[1])) {
+                messageText = parts[1];
+                listener.sendMessage(target + " 不在线，消息将在其上线后送达。", fromUuid);
+            } else {
+                listener.sendMessage("INVALID username", fromUuid);
+            }
         }
         return messageText;
     }
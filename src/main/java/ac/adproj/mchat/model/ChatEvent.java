@@ -0,0 +1,99 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.model;
+
+/**
+ * Event carried by the MessageDistributor.
+ *
+ * @param kind       Kind of the event.
+ * @param senderUuid UUID of the sending session, or {@link Protocol#BROADCAST_MESSAGE_UUID} for the server.
+ * @param senderName Name of the sending session.
+ * @param body       The message text (chatting messages) or the notice (other kinds).
+ * @param timestamp  Creation time of the event, in milliseconds.
+ * @author Andy Cheung
+ */
+public record ChatEvent(Kind kind, String senderUuid, String senderName, String body, long timestamp) {
+    /**
+     * Kind of the event.
+     */
+    public enum Kind {
+        /**
+         * Public chatting message.
+         */
+        CHAT,
+
+        /**
+         * Private chatting message.
+         */
+        PRIVATE_CHAT,
+
+        /**
+         * A user has joined.
+         */
+        JOIN,
+
+        /**
+         * A user has left.
+         */
+        LEAVE,
+
+        /**
+         * Other notices.
+         */
+        SYSTEM
+    }
+
+    public static ChatEvent chat(String senderUuid, String senderName, String body) {
+        return new ChatEvent(Kind.CHAT, senderUuid, senderName, body, System.currentTimeMillis());
+    }
+
+    public static ChatEvent privateChat(String senderUuid, String senderName, String body) {
+        return new ChatEvent(Kind.PRIVATE_CHAT, senderUuid, senderName, body, System.currentTimeMillis());
+    }
+
+    public static ChatEvent join(String uuid, String name, String notice) {
+        return new ChatEvent(Kind.JOIN, uuid, name, notice, System.currentTimeMillis());
+    }
+
+    public static ChatEvent leave(String uuid, String name, String notice) {
+        return new ChatEvent(Kind.LEAVE, uuid, name, notice, System.currentTimeMillis());
+    }
+
+    public static ChatEvent system(String notice) {
+        return new ChatEvent(Kind.SYSTEM, Protocol.BROADCAST_MESSAGE_UUID, Protocol.BROADCAST_MESSAGE_UUID,
+                notice, System.currentTimeMillis());
+    }
+
+    /**
+     * Whether the event is a chatting message (public or private).
+     *
+     * @return True if it's a chatting message.
+     */
+    public boolean isChat() {
+        return kind == Kind.CHAT || kind == Kind.PRIVATE_CHAT;
+    }
+
+    /**
+     * Render the event as the message that can be displayed directly in UI.
+     *
+     * @return The UI message.
+     */
+    public String toUiString() {
+        return isChat() ? senderName + ": " + body : body;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport-agnostic view of an online user, shared by TCP and WebSocket server.
+ *
+ * @author Andy Cheung
+ */
+public interface ChatSession {
+    /**
+     * The transport that the user came in on.
+     */
+    enum Transport {
+        TCP,
+        WEBSOCKET
+    }
+
+    /**
+     * Obtain the UUID of the session.
+     *
+     * @return The UUID.
+     */
+    String getUuid();
+
+    /**
+     * Obtain the username of the session.
+     *
+     * @return The username.
+     */
+    String getName();
+
+    /**
+     * Obtain the transport of the session.
+     *
+     * @return The transport.
+     */
+    Transport getTransport();
+
+    /**
+     * Obtain the max size of a message the client reads as a whole, in UTF-8 bytes.
+     *
+     * @return The size, {@link Integer#MAX_VALUE} if the transport separates the messages.
+     */
+    default int getMaxMessageSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Send raw protocol message to the user.
+     *
+     * @param text The raw protocol message.
+     * @throws IOException If I/O Error occurs.
+     */
+    void send(String text) throws IOException;
+
+    /**
+     * Send the raw protocol message shared with other sessions to the user.
+     * Override it to reuse the encodings of the message.
+     *
+     * @param message The message.
+     * @throws IOException If I/O Error occurs.
+     */
+    default void send(OutboundMessage message) throws IOException {
+        send(message.text());
+    }
+
+    /**
+     * Send the chunk of file transfer to the user.
+     *
+     * @param transferId ID of the transfer.
+     * @param offset     Offset of the data in the file.
+     * @param data       The data, may be a view of a file mapping shared with other sessions.
+     * @throws IOException If I/O Error occurs, or the transport doesn't support file transfer.
+     */
+    default void sendChunk(String transferId, long offset, ByteBuffer data) throws IOException {
+        throw new IOException("File transfer isn't supported by " + getTransport());
+    }
+}
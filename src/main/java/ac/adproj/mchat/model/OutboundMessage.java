@@ -0,0 +1,99 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Raw protocol message on its way to many sessions.
+ * </p>
+ *
+ * <p>
+ * The UTF-8 and the compact encodings of the message are computed once and shared by all recipients,
+ * so fanning out to N TCP users or binary WebSocket clients doesn't encode the message N times.
+ * The text WebSocket frames are encoded by Jetty for every session, since its public API only takes
+ * the string for them.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+public final class OutboundMessage {
+    private final String text;
+
+    private volatile ByteBuffer utf8;
+
+    private volatile byte[] compact;
+
+    private OutboundMessage(String text) {
+        this.text = text;
+    }
+
+    public static OutboundMessage of(String text) {
+        return new OutboundMessage(text);
+    }
+
+    /**
+     * Obtain the raw protocol message.
+     *
+     * @return The raw protocol message.
+     */
+    public String text() {
+        return text;
+    }
+
+    /**
+     * Obtain the UTF-8 encoding of the message.
+     *
+     * @return Read-only buffer of the encoding, with its own position and limit.
+     */
+    public ByteBuffer utf8() {
+        ByteBuffer buffer = utf8;
+
+        if (buffer == null) {
+            // Racing threads compute the same value, no need to lock.
+            buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+            utf8 = buffer;
+        }
+
+        return buffer.duplicate();
+    }
+
+    /**
+     * Obtain the compact (binary) encoding of the message.
+     *
+     * @param encoder The encoder, only invoked for the first call.
+     * @return The encoding, must not be modified.
+     */
+    public byte[] compact(Function<String, byte[]> encoder) {
+        byte[] bytes = compact;
+
+        if (bytes == null) {
+            bytes = encoder.apply(text);
+            compact = bytes;
+        }
+
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
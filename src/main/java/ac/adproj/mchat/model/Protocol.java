@@ -119,4 +119,59 @@ public interface Protocol {
     // // KA // <UUID>
     String KEEP_ALIVE_HEADER = "// KA // ";
     String KEEP_ALIVE_TAIL = " //";
+
+    /**
+     * <p>Separator of the fields of file transfer messages.</p>
+     */
+    String FILE_FIELD_SEPARATOR = ">>>>>";
+
+    /**
+     * <p>Header of file transfer offer (client to server).</p>
+     * <br />
+     * <p>Format: << FILE >>(transferId)>>>>>(target name, or SERVER for everyone)>>>>>(size)>>>>>(file name)</p>
+     */
+    String FILE_OFFER_HEADER = "<< FILE >>";
+
+    /**
+     * <p>Header of file transfer acknowledgement (server to client), the client may send the bytes
+     * from the offset until offset + window.</p>
+     * <br />
+     * <p>Format: << FILE ACK >>(transferId)>>>>>(offset)>>>>>(window)</p>
+     */
+    String FILE_ACK_HEADER = "<< FILE ACK >>";
+
+    /**
+     * <p>Header of the notice of a received file (server to client).</p>
+     * <br />
+     * <p>Format: << FILE READY >>(transferId)>>>>>(sender name)>>>>>(size)>>>>>(file name)</p>
+     */
+    String FILE_READY_HEADER = "<< FILE READY >>";
+
+    /**
+     * <p>Header of file download request (client to server).</p>
+     * <br />
+     * <p>Format: << FILE GET >>(transferId)>>>>>(offset)>>>>>(length)</p>
+     */
+    String FILE_GET_HEADER = "<< FILE GET >>";
+
+    /**
+     * <p>Header of file transfer error (server to client).</p>
+     * <br />
+     * <p>Format: << FILE ERROR >>(transferId)>>>>>(reason)</p>
+     */
+    String FILE_ERROR_HEADER = "<< FILE ERROR >>";
+
+    /**
+     * <p>Header of file chunk on TCP connections, followed by (length) bytes of raw data.</p>
+     * <br />
+     * <p>Format: << CHUNK >>(transferId)>>>>>(offset)>>>>>(length)\n(data)</p>
+     */
+    String FILE_CHUNK_HEADER = "<< CHUNK >>";
+
+    /**
+     * <p>Path of the attachments on the web server, followed by the hash of the content.</p>
+     * <br />
+     * <p>Format: /acmcs/attachments/(hash)?name=(fileName)</p>
+     */
+    String ATTACHMENT_PATH = "/acmcs/attachments/";
 }
@@ -0,0 +1,251 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.model;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Outbound queue of a TCP user.
+ * </p>
+ *
+ * <p>
+ * The queued data is written with the asynchronous API of the channel, one write at a time, so the callers never
+ * block on a slow client. The chat messages are written ahead of the file chunks, and a chunk is written as a
+ * whole (the header and the data are contiguous in the stream), so a large download delays a chat message by one
+ * chunk at most.
+ * </p>
+ *
+ * <p>
+ * The queues are bounded (system properties {@value #CAPACITY_PROPERTY} and {@value #CHUNK_CAPACITY_PROPERTY}),
+ * the data exceeding the capacity is refused. When a write fails or times out, the channel is closed and
+ * the queued data is discarded.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+final class SocketOutbound implements CompletionHandler<Long, Void> {
+    /**
+     * Name of the system property of the max number of queued messages.
+     */
+    static final String CAPACITY_PROPERTY = "mchat.tcp.outboundCapacity";
+
+    /**
+     * Name of the system property of the max number of queued file chunks.
+     */
+    static final String CHUNK_CAPACITY_PROPERTY = "mchat.tcp.outboundChunkCapacity";
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int DEFAULT_CHUNK_CAPACITY = 64;
+
+    /**
+     * Max time of a write, so a stalled client is disconnected eventually.
+     */
+    private static final long WRITE_TIMEOUT_SECONDS = 30;
+
+    private final AsynchronousSocketChannel channel;
+    private final int capacity;
+    private final int chunkCapacity;
+
+    private final Queue<ByteBuffer> messages = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer[]> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    private final AtomicInteger queuedChunks = new AtomicInteger();
+
+    /**
+     * Set while a write is pending, the writer owns the fields below.
+     */
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private ByteBuffer[] current;
+
+    private volatile boolean failed;
+    private volatile boolean closing;
+
+    SocketOutbound(AsynchronousSocketChannel channel) {
+        this(channel, Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+                Integer.getInteger(CHUNK_CAPACITY_PROPERTY, DEFAULT_CHUNK_CAPACITY));
+    }
+
+    SocketOutbound(AsynchronousSocketChannel channel, int capacity, int chunkCapacity) {
+        this.channel = channel;
+        this.capacity = capacity;
+        this.chunkCapacity = chunkCapacity;
+    }
+
+    /**
+     * Queue the message to be written.
+     *
+     * @param message The encoded message, must not be modified until written.
+     * @return False if the message is refused.
+     */
+    boolean offer(ByteBuffer message) {
+        if (!reserve(queuedMessages, capacity)) {
+            return false;
+        }
+
+        messages.offer(message);
+        flush();
+
+        return true;
+    }
+
+    /**
+     * Queue the file chunk to be written.
+     *
+     * @param header The encoded header of the chunk.
+     * @param data   The data, must not be modified until written.
+     * @return False if the chunk is refused.
+     */
+    boolean offerChunk(ByteBuffer header, ByteBuffer data) {
+        if (!reserve(queuedChunks, chunkCapacity)) {
+            return false;
+        }
+
+        chunks.offer(new ByteBuffer[]{header, data});
+        flush();
+
+        return true;
+    }
+
+    private boolean reserve(AtomicInteger queued, int limit) {
+        if (failed || closing) {
+            return false;
+        }
+
+        if (queued.incrementAndGet() > limit) {
+            queued.decrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Close the channel once the queued data is written. Nothing can be queued afterwards.
+     */
+    void closeWhenFlushed() {
+        closing = true;
+        flush();
+    }
+
+    int size() {
+        return queuedMessages.get() + queuedChunks.get();
+    }
+
+    private void flush() {
+        while (!failed && writing.compareAndSet(false, true)) {
+            ByteBuffer[] next = poll();
+
+            if (next != null) {
+                write(next);
+                return;
+            }
+
+            writing.set(false);
+
+            if (messages.isEmpty() && chunks.isEmpty()) {
+                if (closing) {
+                    closeChannel();
+                }
+
+                return;
+            }
+        }
+    }
+
+    private ByteBuffer[] poll() {
+        ByteBuffer message = messages.poll();
+
+        if (message != null) {
+            queuedMessages.decrementAndGet();
+            single[0] = message;
+            return single;
+        }
+
+        ByteBuffer[] chunk = chunks.poll();
+
+        if (chunk != null) {
+            queuedChunks.decrementAndGet();
+        }
+
+        return chunk;
+    }
+
+    private void write(ByteBuffer[] buffers) {
+        current = buffers;
+
+        try {
+            channel.write(buffers, 0, buffers.length, WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS, null, this);
+        } catch (RuntimeException e) {
+            // The channel is closed, or the channel group is shut down.
+            failed(e, null);
+        }
+    }
+
+    @Override
+    public void completed(Long result, Void attachment) {
+        for (ByteBuffer buffer : current) {
+            if (buffer.hasRemaining()) {
+                write(current);
+                return;
+            }
+        }
+
+        current = null;
+        single[0] = null;
+        writing.set(false);
+
+        flush();
+    }
+
+    @Override
+    public void failed(Throwable exc, Void attachment) {
+        failed = true;
+        current = null;
+        single[0] = null;
+
+        log.warn("Failed in writing to {}, {} queued message(s) discarded: {}", channel, size(), exc.toString());
+
+        messages.clear();
+        chunks.clear();
+        queuedMessages.set(0);
+        queuedChunks.set(0);
+
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error when closing channel.", e);
+        }
+    }
+}
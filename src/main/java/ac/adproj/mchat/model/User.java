@@ -18,34 +18,144 @@
 package ac.adproj.mchat.model;
 
 import lombok.AccessLevel;
-import lombok.Data;
+import lombok.Getter;
 import lombok.Setter;
+import lombok.ToString;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.util.concurrent.atomic.AtomicLong;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
- * Data class that wraps the user information.
+ * Data class that wraps the user information (TCP Server).
+ *
+ * <p>
+ * The identity of a user is the UUID, so the equality doesn't depend on the mutable fields.
+ * </p>
+ *
+ * <p>
+ * The messages are queued and written asynchronously (see {@link SocketOutbound}), so sending never blocks
+ * on a slow client.
+ * </p>
  *
  * @author Andy Cheung
  * @date 2020-4-27
  */
-@Data
-public final class User {
+@Getter
+@Setter
+@ToString(exclude = {"channel", "outbound"})
+public final class User implements ChatSession {
+    private static final AtomicLongFieldUpdater<User> KEEP_ALIVE_TIMESTAMP_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(User.class, "keepAliveTimestamp");
+
     private String uuid;
 
+    @Setter(AccessLevel.NONE)
     private AsynchronousSocketChannel channel;
 
     private String name;
 
-    @Setter(value = AccessLevel.PRIVATE)
-    private AtomicLong keepAlivePackageTimestamp;
+    /**
+     * Timestamp of the latest keep-alive message.
+     */
+    private volatile long keepAliveTimestamp;
+
+    /**
+     * Queue of the data written to the channel, or null if there's no channel.
+     */
+    @Getter(AccessLevel.NONE)
+    private final SocketOutbound outbound;
 
     public User(String uuid, AsynchronousSocketChannel channel, String name) {
         super();
         this.uuid = uuid;
         this.channel = channel;
+        this.outbound = channel == null ? null : new SocketOutbound(channel);
         this.name = name;
-        this.keepAlivePackageTimestamp = new AtomicLong(System.currentTimeMillis());
+        this.keepAliveTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Update the keep-alive timestamp, unless the stored one is newer.
+     *
+     * @param timestamp The timestamp of the keep-alive message.
+     */
+    public void touchKeepAlive(long timestamp) {
+        KEEP_ALIVE_TIMESTAMP_UPDATER.accumulateAndGet(this, timestamp, Math::max);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof User)) {
+            return false;
+        }
+
+        return Objects.equals(uuid, ((User) o).uuid);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(uuid);
+    }
+
+    @Override
+    public Transport getTransport() {
+        return Transport.TCP;
+    }
+
+    /**
+     * The TCP protocol doesn't separate the messages, and the client reads {@link Protocol#BUFFER_SIZE} bytes
+     * at a time, handling every read as one message.
+     */
+    @Override
+    public int getMaxMessageSize() {
+        return Protocol.BUFFER_SIZE;
+    }
+
+    @Override
+    public void send(String text) throws IOException {
+        write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public void send(OutboundMessage message) throws IOException {
+        write(message.utf8());
+    }
+
+    /**
+     * Queue the chunk of file transfer, the data is written from the buffer directly (gathering write),
+     * after the header {@link Protocol#FILE_CHUNK_HEADER}. The chat messages are written ahead of the chunks.
+     */
+    @Override
+    public void sendChunk(String transferId, long offset, ByteBuffer data) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap((Protocol.FILE_CHUNK_HEADER + transferId + Protocol.FILE_FIELD_SEPARATOR
+                + offset + Protocol.FILE_FIELD_SEPARATOR + data.remaining() + "\n").getBytes(StandardCharsets.UTF_8));
+
+        if (outbound == null || !outbound.offerChunk(header, data)) {
+            // The recipient requests the range again.
+            throw new IOException("Outbound queue of user " + uuid + " is full or closed.");
+        }
+    }
+
+    /**
+     * Close the connection once the queued messages are written.
+     */
+    public void closeWhenFlushed() {
+        if (outbound != null) {
+            outbound.closeWhenFlushed();
+        }
+    }
+
+    private void write(ByteBuffer bb) throws IOException {
+        if (outbound == null || !outbound.offer(bb)) {
+            throw new IOException("Outbound queue of user " + uuid + " is full or closed.");
+        }
     }
 }
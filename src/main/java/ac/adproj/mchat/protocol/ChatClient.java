@@ -0,0 +1,541 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.protocol;
+
+import ac.adproj.mchat.handler.ClientMessageHandler;
+import ac.adproj.mchat.model.Protocol;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Headless asynchronous chat client, usable without a display (bots, gateways and load tools).
+ * </p>
+ *
+ * <p>
+ * Every operation returns at once: {@link #connect(SocketAddress)}, {@link #send(String)} and
+ * {@link #disconnect()} return futures, and the messages received are delivered to the {@link EventListener}
+ * by the I/O threads. The messages sent are queued and written in order by a chain of asynchronous writes,
+ * each on its own (the server takes one read as one message).
+ * </p>
+ *
+ * <p>
+ * All the clients in the JVM share one event loop (an {@link AsynchronousChannelGroup} of
+ * {@value #THREADS_PROPERTY} daemon threads) and one scheduler of the keep-alive messages,
+ * so many clients cost a socket each, not threads. Closing a client never affects the others.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+public class ChatClient implements AutoCloseable {
+    /**
+     * Name of the system property of the number of the threads of the shared event loop.
+     */
+    public static final String THREADS_PROPERTY = "mchat.client.threads";
+
+    private static final long KEEP_ALIVE_INTERVAL_SECONDS = 10;
+
+    private static final int NAME_CHECK_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Time to wait for the queued messages in {@link #close()}, in seconds.
+     */
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Receiver of the events of a client, called by the I/O threads.
+     *
+     * @author Andy Cheung
+     */
+    public interface EventListener {
+        /**
+         * Called when the client is connected and the greeting is sent.
+         *
+         * @param client The client.
+         */
+        default void onConnected(ChatClient client) {
+        }
+
+        /**
+         * Called when a message is received.
+         *
+         * @param client  The client.
+         * @param message The message for displaying, like "name: text".
+         */
+        void onMessage(ChatClient client, String message);
+
+        /**
+         * Called once when the connection is closed.
+         *
+         * @param client The client.
+         * @param cause  The error, or null if the connection is closed normally (by either side).
+         */
+        default void onDisconnected(ChatClient client, Throwable cause) {
+        }
+    }
+
+    /**
+     * The shared event loop and scheduler, created with the first client.
+     */
+    private static class Shared {
+        private static final AsynchronousChannelGroup GROUP;
+
+        private static final ScheduledThreadPoolExecutor SCHEDULER;
+
+        /**
+         * Threads of the blocking queries of the duplication checking service.
+         */
+        private static final ExecutorService NAME_CHECKER = Executors.newCachedThreadPool(
+                daemonThreadFactory("Chat Client Name Checker - "));
+
+        static {
+            try {
+                GROUP = AsynchronousChannelGroup.withFixedThreadPool(
+                        Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+                        daemonThreadFactory("Chat Client I/O Thread - "));
+            } catch (IOException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+
+            SCHEDULER = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("Chat Client Scheduler - "));
+            SCHEDULER.setRemoveOnCancelPolicy(true);
+        }
+
+        private static ThreadFactory daemonThreadFactory(String prefix) {
+            var threadNumber = new AtomicInteger(0);
+
+            return r -> {
+                Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+
+    /**
+     * A queued message and the future completed when it's written.
+     */
+    private record PendingWrite(ByteBuffer buffer, CompletableFuture<Void> future) {
+    }
+
+    /**
+     * Marker in the write queue, closes the connection once the messages before it are written.
+     */
+    private static final PendingWrite CLOSE_MARKER = new PendingWrite(ByteBuffer.allocate(0), null);
+
+    private final String uuid = UUID.randomUUID().toString();
+    private final String name;
+    private final EventListener listener;
+    private final AsynchronousSocketChannel channel;
+    private final ClientMessageHandler handler;
+
+    private final Deque<PendingWrite> writeQueue = new ConcurrentLinkedDeque<>();
+
+    /**
+     * True while a write is in progress. Initially true, so the messages wait for the connection.
+     */
+    private final AtomicBoolean writing = new AtomicBoolean(true);
+
+    private final AtomicBoolean connectStarted = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+
+    private volatile boolean disconnecting;
+    private volatile ScheduledFuture<?> keepAliveFuture;
+
+    /**
+     * Create the client, call {@link #connect(SocketAddress)} to connect.
+     * The messages sent before connecting are sent once connected.
+     *
+     * @param name     The username.
+     * @param listener Receiver of the events.
+     * @throws IOException If the socket can't be created.
+     */
+    public ChatClient(String name, EventListener listener) throws IOException {
+        this.name = name;
+        this.listener = listener;
+        this.channel = AsynchronousSocketChannel.open(Shared.GROUP);
+        this.handler = new ClientMessageHandler(v -> closeChannel(null));
+    }
+
+    /**
+     * Create a client and connect to the server.
+     *
+     * @param server   Address of the server.
+     * @param name     The username.
+     * @param listener Receiver of the events.
+     * @return Future of the connected client.
+     */
+    public static CompletableFuture<ChatClient> connect(SocketAddress server, String name, EventListener listener) {
+        try {
+            var client = new ChatClient(name, listener);
+            return client.connect(server).thenApply(v -> client);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Bind the local address of the connection, before connecting.
+     *
+     * @param local The local address.
+     * @return This client.
+     * @throws IOException If the address can't be bound.
+     */
+    public ChatClient bind(SocketAddress local) throws IOException {
+        channel.bind(local);
+        return this;
+    }
+
+    /**
+     * Connect to the server, and send the greeting.
+     *
+     * @param server Address of the server.
+     * @return Future completed when the greeting is sent.
+     */
+    public CompletableFuture<Void> connect(SocketAddress server) {
+        if (!connectStarted.compareAndSet(false, true)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Connected already."));
+        }
+
+        var connected = new CompletableFuture<Void>();
+
+        channel.connect(server, null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment) {
+                var greeting = new PendingWrite(ByteBuffer.wrap((Protocol.CONNECTING_GREET_LEFT_HALF + uuid
+                        + Protocol.CONNECTING_GREET_MIDDLE_HALF + name).getBytes(StandardCharsets.UTF_8)),
+                        new CompletableFuture<>());
+
+                greeting.future().whenComplete((v, e) -> {
+                    if (e != null) {
+                        connected.completeExceptionally(e);
+                        return;
+                    }
+
+                    // Not right after the greeting, the server may read both as one message.
+                    keepAliveFuture = Shared.SCHEDULER.scheduleWithFixedDelay(() ->
+                                    sendRaw(Protocol.KEEP_ALIVE_HEADER + uuid + Protocol.KEEP_ALIVE_TAIL),
+                            KEEP_ALIVE_INTERVAL_SECONDS, KEEP_ALIVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+                    notifyListener(() -> listener.onConnected(ChatClient.this));
+                    connected.complete(null);
+                });
+
+                // Goes before the messages queued while connecting, then starts the write chain.
+                writeQueue.addFirst(greeting);
+                writeNext();
+
+                read(ByteBuffer.allocate(Protocol.BUFFER_SIZE));
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                connected.completeExceptionally(exc);
+                closeChannel(exc);
+            }
+        });
+
+        return connected;
+    }
+
+    private void read(ByteBuffer buffer) {
+        channel.read(buffer, buffer, new CompletionHandler<>() {
+            @Override
+            public void completed(Integer result, ByteBuffer buffer) {
+                if (result == -1) {
+                    closeChannel(null);
+                    return;
+                }
+
+                buffer.flip();
+                String text = StandardCharsets.UTF_8.decode(buffer).toString();
+                buffer.clear();
+
+                String message = handler.handleMessage(text, channel);
+
+                if (!message.isEmpty()) {
+                    notifyListener(() -> listener.onMessage(ChatClient.this, message));
+                }
+
+                if (channel.isOpen()) {
+                    channel.read(buffer, buffer, this);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, ByteBuffer buffer) {
+                closeChannel(exc instanceof AsynchronousCloseException ? null : exc);
+            }
+        });
+    }
+
+    private void notifyListener(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            log.error("Error in the listener of client {}", name, e);
+        }
+    }
+
+    /**
+     * Send the chatting message. Starts with @name# to send privately.
+     *
+     * @param message The message.
+     * @return Future completed when the message is written.
+     */
+    public CompletableFuture<Void> send(String message) {
+        return sendRaw(Protocol.MESSAGE_HEADER_LEFT_HALF + uuid + Protocol.MESSAGE_HEADER_MIDDLE_HALF
+                + Protocol.MESSAGE_HEADER_RIGHT_HALF + message);
+    }
+
+    /**
+     * Send the raw protocol message.
+     *
+     * @param text The protocol message.
+     * @return Future completed when the message is written.
+     */
+    public CompletableFuture<Void> sendRaw(String text) {
+        if (disconnecting) {
+            return CompletableFuture.failedFuture(new IOException("Client is disconnected."));
+        }
+
+        var pending = new PendingWrite(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)),
+                new CompletableFuture<>());
+        enqueue(pending);
+
+        return pending.future();
+    }
+
+    private void enqueue(PendingWrite pending) {
+        writeQueue.add(pending);
+
+        if (writing.compareAndSet(false, true)) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Write the head of the write queue, and the next one when it's done, until the queue is empty.
+     * The caller must own the write chain (set {@link #writing}).
+     */
+    private void writeNext() {
+        PendingWrite next = writeQueue.peek();
+
+        if (next == null) {
+            writing.set(false);
+
+            // A message may be queued after the peek, before the flag is cleared.
+            if (!writeQueue.isEmpty() && writing.compareAndSet(false, true)) {
+                writeNext();
+            }
+
+            return;
+        }
+
+        if (next == CLOSE_MARKER) {
+            // Keeps the chain owned, nothing is written after closing.
+            writeQueue.poll();
+            closeChannel(null);
+            return;
+        }
+
+        channel.write(next.buffer(), next, new CompletionHandler<>() {
+            @Override
+            public void completed(Integer result, PendingWrite pending) {
+                if (pending.buffer().hasRemaining()) {
+                    channel.write(pending.buffer(), pending, this);
+                    return;
+                }
+
+                writeQueue.poll();
+                pending.future().complete(null);
+                writeNext();
+            }
+
+            @Override
+            public void failed(Throwable exc, PendingWrite pending) {
+                closeChannel(exc instanceof AsynchronousCloseException ? null : exc);
+            }
+        });
+    }
+
+    /**
+     * Notify the server and disconnect, once the queued messages are sent.
+     *
+     * @return Future completed when the connection is closed.
+     */
+    public CompletableFuture<Void> disconnect() {
+        if (!disconnecting && channel.isOpen() && connectStarted.get()) {
+            sendRaw(Protocol.DISCONNECT + uuid);
+            disconnecting = true;
+            enqueue(CLOSE_MARKER);
+        } else {
+            closeChannel(null);
+        }
+
+        return closeFuture;
+    }
+
+    /**
+     * Close the connection at once, without notifying the server.
+     */
+    public void disconnectWithoutNotification() {
+        closeChannel(null);
+    }
+
+    private void closeChannel(Throwable cause) {
+        disconnecting = true;
+
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (cause != null) {
+            log.warn("Client {} disconnected: {}", name, cause.toString());
+        }
+
+        if (keepAliveFuture != null) {
+            keepAliveFuture.cancel(false);
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error when closing the connection of client {}", name, e);
+        }
+
+        // Fails the messages not sent.
+        var notSent = new IOException("Client is disconnected.", cause);
+
+        for (PendingWrite pending; (pending = writeQueue.poll()) != null; ) {
+            if (pending.future() != null) {
+                pending.future().completeExceptionally(notSent);
+            }
+        }
+
+        notifyListener(() -> listener.onDisconnected(this, cause));
+        closeFuture.complete(null);
+    }
+
+    /**
+     * Obtain the future completed when the connection is closed.
+     *
+     * @return The future.
+     */
+    public CompletableFuture<Void> closeFuture() {
+        return closeFuture;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isConnected() {
+        return !disconnecting && channel.isOpen();
+    }
+
+    /**
+     * Disconnect, and wait for the queued messages to be sent for a while.
+     */
+    @Override
+    public void close() {
+        try {
+            disconnect().get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeChannel(null);
+        } catch (ExecutionException | TimeoutException e) {
+            closeChannel(null);
+        }
+    }
+
+    /**
+     * Ask the server whether the username is in use, by the duplication checking service.
+     *
+     * @param server Address of the server, the port is ignored.
+     * @param name   The username.
+     * @return Future of true if the username is in use; fails if the server doesn't respond in 5 seconds.
+     */
+    public static CompletableFuture<Boolean> checkNameDuplicates(InetSocketAddress server, String name) {
+        var result = new CompletableFuture<Boolean>();
+
+        Shared.NAME_CHECKER.execute(() -> {
+            try {
+                result.complete(queryNameDuplicates(server, name));
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Ask the server whether the username is in use, blocking for at most 5 seconds.
+     *
+     * @param server Address of the server, the port is ignored.
+     * @param name   The username.
+     * @return True if the username is in use.
+     * @throws IOException If the server doesn't respond.
+     */
+    static boolean queryNameDuplicates(InetSocketAddress server, String name) throws IOException {
+        byte[] request = (Protocol.CHECK_DUPLICATE_REQUEST_HEADER + name).getBytes(StandardCharsets.UTF_8);
+
+        try (var socket = new DatagramSocket()) {
+            socket.setSoTimeout(NAME_CHECK_TIMEOUT_MILLIS);
+            socket.send(new DatagramPacket(request, request.length,
+                    new InetSocketAddress(server.getAddress(), Protocol.SERVER_CHECK_DUPLICATE_PORT)));
+
+            var response = new DatagramPacket(new byte[Protocol.BUFFER_SIZE], Protocol.BUFFER_SIZE);
+            socket.receive(response);
+
+            return !new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8)
+                    .startsWith(Protocol.USER_NAME_NOT_EXIST);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.protocol;
+
+import ac.adproj.mchat.model.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * Splits the file chunks out of the byte stream of a TCP connection.
+ * </p>
+ *
+ * <p>
+ * A chunk is the header {@link Protocol#FILE_CHUNK_HEADER}(transferId)>>>>>(offset)>>>>>(length)\n followed by
+ * (length) bytes of raw data. The data is handed over as views of the read buffer, piece by piece as it arrives,
+ * so a chunk never has to be held in memory as a whole. The bytes after the chunks in a read are
+ * a text protocol message, as before.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+final class ChunkStreamDecoder {
+    /**
+     * Receiver of the data of the chunks.
+     */
+    @FunctionalInterface
+    interface ChunkSink {
+        /**
+         * Receive a piece of data.
+         *
+         * @param transferId ID of the transfer.
+         * @param offset     Offset of the data in the file.
+         * @param data       The data, only valid until the method returns.
+         */
+        void accept(String transferId, long offset, ByteBuffer data);
+    }
+
+    private static final byte[] PREFIX = Protocol.FILE_CHUNK_HEADER.getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MAX_HEADER_SIZE = 256;
+
+    private final long maxChunkSize;
+
+    /**
+     * Bytes of the incomplete header.
+     */
+    private final byte[] header = new byte[MAX_HEADER_SIZE];
+    private int headerLength;
+
+    private String transferId;
+    private long offset;
+    private long remaining;
+
+    /**
+     * True if the stream is at the end of a chunk, where the next header may be split by the reads.
+     */
+    private boolean afterChunk;
+
+    ChunkStreamDecoder(long maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * Whether the buffer starts with a chunk.
+     *
+     * @param buffer The buffer, from position to limit.
+     * @return True if starts with the chunk header.
+     */
+    static boolean startsWithChunk(ByteBuffer buffer) {
+        return buffer.remaining() >= PREFIX.length && matchesPrefix(buffer, PREFIX.length);
+    }
+
+    private static boolean matchesPrefix(ByteBuffer buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(buffer.position() + i) != PREFIX[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether a chunk is partially received.
+     *
+     * @return True if in the middle of a chunk.
+     */
+    boolean isPending() {
+        return remaining > 0 || headerLength > 0;
+    }
+
+    /**
+     * Consume the chunks in the buffer.
+     *
+     * @param buffer The bytes read, from position to limit.
+     * @param sink   Receiver of the data.
+     * @return The text message after the chunks, may be empty.
+     * @throws IllegalArgumentException If the chunk header is malformed.
+     */
+    ByteBuffer decode(ByteBuffer buffer, ChunkSink sink) {
+        while (buffer.hasRemaining()) {
+            if (remaining > 0) {
+                int length = (int) Math.min(remaining, buffer.remaining());
+                long pieceOffset = offset;
+
+                offset += length;
+                remaining -= length;
+                afterChunk = remaining == 0;
+
+                ByteBuffer data = buffer.slice().limit(length);
+                buffer.position(buffer.position() + length);
+
+                sink.accept(transferId, pieceOffset, data);
+            } else if (headerLength > 0 || startsWithChunk(buffer)
+                    || (afterChunk && matchesPrefix(buffer, Math.min(buffer.remaining(), PREFIX.length)))) {
+                ByteBuffer text = readHeader(buffer);
+
+                if (text != null) {
+                    return text;
+                }
+            } else {
+                break;
+            }
+        }
+
+        afterChunk = afterChunk && !buffer.hasRemaining();
+
+        return buffer;
+    }
+
+    /**
+     * Read the header, until the end of the header or the buffer.
+     *
+     * @return The text message if the bytes turn out not to be a header, or null.
+     */
+    private ByteBuffer readHeader(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+
+            if (headerLength < PREFIX.length && b != PREFIX[headerLength]) {
+                // Not a chunk, it's a message split by the reads.
+                ByteBuffer text = ByteBuffer.allocate(headerLength + 1 + buffer.remaining());
+                text.put(header, 0, headerLength).put(b).put(buffer).flip();
+
+                headerLength = 0;
+                afterChunk = false;
+
+                return text;
+            }
+
+            if (b == '\n') {
+                parseHeader();
+                headerLength = 0;
+
+                return null;
+            }
+
+            if (headerLength == MAX_HEADER_SIZE) {
+                throw new IllegalArgumentException("Chunk header is too long.");
+            }
+
+            header[headerLength++] = b;
+        }
+
+        return null;
+    }
+
+    private void parseHeader() {
+        String[] fields = new String(header, PREFIX.length, headerLength - PREFIX.length, StandardCharsets.UTF_8)
+                .split(Protocol.FILE_FIELD_SEPARATOR);
+
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("Malformed chunk header.");
+        }
+
+        try {
+            offset = Long.parseLong(fields[1]);
+            remaining = Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed chunk header.", e);
+        }
+
+        if (offset < 0 || remaining < 0 || remaining > maxChunkSize) {
+            throw new IllegalArgumentException("Invalid chunk length: " + remaining);
+        }
+
+        transferId = fields[0];
+        afterChunk = remaining == 0;
+    }
+}
@@ -17,48 +17,68 @@
 
 package ac.adproj.mchat.protocol;
 
-import ac.adproj.mchat.handler.ClientMessageHandler;
-import ac.adproj.mchat.model.Protocol;
-import ac.adproj.mchat.service.CommonThreadPool;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.SWTException;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.*;
-import java.nio.charset.StandardCharsets;
-import java.util.UUID;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 /**
- * Listener class of Client.
+ * <p>
+ * Listener class of Client, the SWT layer over the {@link ChatClient}.
+ * </p>
+ *
+ * <p>
+ * The network I/O never waits for the UI: the messages received by the client are handed straight to the UI
+ * actions, which must be callable from any thread (like {@code BaseChattingUI#appendMessageDisplay(String)},
+ * which renders once per frame), and the errors are shown in dialogs.
+ * </p>
  *
  * @author Andy Cheung
  */
 @Slf4j
 public class ClientListener implements Listener {
-    private final AtomicInteger threadNumberOfScheduledThread = new AtomicInteger(0);
-
-    private final ScheduledThreadPoolExecutor scheduledThreadPoolExecutor = new ScheduledThreadPoolExecutor(2,
-            r -> new Thread(r, "Scheduled Thread Pooling Thread - " +
-                    threadNumberOfScheduledThread.getAndIncrement()));
-    private final String name;
-    private AsynchronousSocketChannel socketChannel;
-    private String uuid;
-    private ScheduledFuture<?> scheduledFutureOfKeepAliveSender;
+    private final Shell shell;
+    private final Display display;
+    private final Consumer<String> uiActions;
+    private final ChatClient client;
 
     public ClientListener(Shell shell, Consumer<String> uiActions, byte[] address, int port, String username)
             throws IOException {
-        this.name = username;
-        init(shell, uiActions, address, port, username);
+        this.shell = shell;
+        this.display = shell.getDisplay();
+        this.uiActions = uiActions;
+
+        client = new ChatClient(username, new ChatClient.EventListener() {
+            @Override
+            public void onConnected(ChatClient client) {
+                uiActions.accept(username + "，欢迎来到聊天室。");
+            }
+
+            @Override
+            public void onMessage(ChatClient client, String message) {
+                uiActions.accept(message);
+            }
+
+            @Override
+            public void onDisconnected(ChatClient client, Throwable cause) {
+                if (cause != null) {
+                    showError("客户机读取出错：" + cause.getMessage());
+                }
+            }
+        });
+
+        client.bind(new InetSocketAddress(port));
+        client.connect(new InetSocketAddress(InetAddress.getByAddress(address), SERVER_PORT))
+                .exceptionally(e -> {
+                    showError("客户机读取出错：" + e.getMessage());
+                    return null;
+                });
     }
 
     /**
@@ -75,247 +95,71 @@ public class ClientListener implements Listener {
     public static void checkNameDuplicatesAsync(byte[] serverAddress,
                                                 String name, Consumer<Boolean> completionHandler,
                                                 Runnable failureHandler) {
-        CommonThreadPool.execute(() -> {
-            ReentrantLock lock = new ReentrantLock(true);
-            AtomicInteger result = new AtomicInteger(-1);
-            AtomicReference<Thread> checkerThread = new AtomicReference<>(null);
-
-            CountDownLatch latch = new CountDownLatch(1);
-
-            // Run the actual checker logic in another thread.
-
-            CommonThreadPool.execute(() -> doUsernameCheckAsync(serverAddress, name, lock, result, checkerThread, latch));
-
-            try {
-                // Block the thread within specified seconds.
-
-                boolean isCheckerThreadFinished = latch.await(5, TimeUnit.SECONDS) && lock.tryLock();
-
-                if (!isCheckerThreadFinished || result.get() == -1) {
-                    // Interrupt the checker thread.
-                    checkerThread.get().interrupt();
-
-                    // Timeout exceeded.
-                    failureHandler.run();
-
-                    return;
-                }
-
-                completionHandler.accept(result.get() == 1);
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-
-                Thread.currentThread().interrupt();
-
-                if (result.get() == -1) {
+        try {
+            ChatClient.checkNameDuplicates(new InetSocketAddress(InetAddress.getByAddress(serverAddress),
+                    SERVER_CHECK_DUPLICATE_PORT), name).whenComplete((hasDuplicate, e) -> {
+                if (e != null) {
+                    log.error("Error when checking duplicate.", e);
                     failureHandler.run();
+                } else {
+                    completionHandler.accept(hasDuplicate);
                 }
-            }
-        });
-    }
-
-    private static void doUsernameCheckAsync(byte[] serverAddress, String name,
-                                             ReentrantLock lock, AtomicInteger result,
-                                             AtomicReference<Thread> checkerThread, CountDownLatch latch) {
-        checkerThread.set(Thread.currentThread());
-
-        lock.lock();
-        try {
-            result.compareAndSet(-1, checkNameDuplicates(serverAddress, name) ? 1 : 0);
-        } catch (ClosedByInterruptException ignored) {
-            // Timeout exceeded.
-            // Ignore the exception.
-
-            result.set(-1);
-
+            });
         } catch (IOException e) {
-            log.error("I/O exception when checking duplicate.", e);
-            result.set(-1);
-
-        } finally {
-            lock.unlock();
-            latch.countDown();
+            log.error("Invalid server address.", e);
+            failureHandler.run();
         }
     }
 
     public static boolean checkNameDuplicates(byte[] serverAddress, String name) throws IOException {
-        DatagramChannel dc = DatagramChannel.open();
-
-        ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
-
-        bb.put((Protocol.CHECK_DUPLICATE_REQUEST_HEADER + name).getBytes(StandardCharsets.UTF_8));
-        bb.flip();
-
-        StringBuilder buffer = new StringBuilder();
-
-        try {
-            dc.configureBlocking(true);
-            dc.send(bb, new InetSocketAddress(InetAddress.getByAddress(serverAddress), Protocol.SERVER_CHECK_DUPLICATE_PORT));
-
-            bb.clear();
-            dc.receive(bb);
-            bb.flip();
-
-            while (bb.hasRemaining()) {
-                buffer.append(StandardCharsets.UTF_8.decode(bb));
-            }
-
-            return !buffer.toString().startsWith(Protocol.USER_NAME_NOT_EXIST);
-
-        } catch (ClosedByInterruptException e) {
-
-            // Interrupted by parent thread.
-            // Propagate the situation to the parent thread.
-
-            throw e;
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            log.error("Error when performing I/O operation.", e);
-
-            throw new RuntimeException(e);
-        } finally {
-            dc.close();
-        }
-    }
-
-    private void registerKeepaliveSender() {
-        scheduledFutureOfKeepAliveSender = scheduledThreadPoolExecutor.scheduleWithFixedDelay(() -> {
-            if (log.isDebugEnabled()) {
-                log.debug("Sending KA message...");
-            }
-
-            sendCommunicationData(Protocol.KEEP_ALIVE_HEADER + uuid + Protocol.KEEP_ALIVE_TAIL, "");
-
-        }, 0, 10, TimeUnit.SECONDS);
-    }
-
-    private void init(Shell shell, Consumer<String> uiActions, byte[] address, int port, String username)
-            throws IOException {
-        socketChannel = AsynchronousSocketChannel.open();
-
-        socketChannel.bind(new InetSocketAddress(port));
-
-        InetAddress ia = InetAddress.getByAddress(address);
-
-        uuid = UUID.randomUUID().toString();
-
-        initNioSocketConnection(shell, uiActions, ia, username);
-
-        registerKeepaliveSender();
+        return ChatClient.queryNameDuplicates(new InetSocketAddress(InetAddress.getByAddress(serverAddress),
+                SERVER_CHECK_DUPLICATE_PORT), name);
     }
 
-    private void initNioSocketConnection(Shell shell, Consumer<String> uiActions, InetAddress ia, String username) {
-        ClientMessageHandler handler = new ClientMessageHandler(v -> {
-            try {
-                disconnectWithoutNotification();
-            } catch (IOException e) {
-                e.printStackTrace();
-                shell.getDisplay().syncExec(() -> MessageDialog.openError(shell, "出错", "下线出错：" + e.getMessage()));
-            }
-        });
-
-        socketChannel.connect(new InetSocketAddress(ia, SERVER_PORT), uuid, new CompletionHandler<>() {
-
-            @Override
-            public void completed(Void result, String attachment) {
-                sendGreetingMessage(attachment, username, shell, uiActions);
-
-                final ByteBuffer buffer = ByteBuffer.allocate(Protocol.BUFFER_SIZE);
-
-                socketChannel.read(buffer, shell.getDisplay(), new CompletionHandler<>() {
-
-                    @Override
-                    public void completed(Integer result, Display display) {
-                        if (result != -1) {
-                            buffer.flip();
-
-                            StringBuilder sbuffer = new StringBuilder();
-
-                            while (buffer.hasRemaining()) {
-                                sbuffer.append(StandardCharsets.UTF_8.decode(buffer));
-                            }
-
-                            display.syncExec(
-                                    () -> uiActions.accept(handler.handleMessage(sbuffer.toString(), socketChannel)));
-
-                            buffer.clear();
-                        }
-
-                        if (socketChannel != null && socketChannel.isOpen()) {
-                            socketChannel.read(buffer, shell.getDisplay(), this);
-                        }
-                    }
-
-                    @Override
-                    public void failed(Throwable exc, Display display) {
-                        if (exc.getClass() == AsynchronousCloseException.class) {
-                            return;
-                        }
-
-                        exc.printStackTrace();
-
-                        display.syncExec(() -> {
-                            MessageDialog.openError(shell, "出错", "客户机读取出错：" + exc.getMessage());
-                        });
-                    }
-                });
-            }
-
-            @Override
-            public void failed(Throwable exc, String attachment) {
-                exc.printStackTrace();
-
-                if (shell != null && !shell.isDisposed()) {
-                    shell.getDisplay().syncExec(() -> {
-                        MessageDialog.openError(shell, "出错", "客户机读取出错：" + exc.getMessage());
-                    });
-                }
+    private void showError(String message) {
+        runInUi(() -> {
+            if (!shell.isDisposed()) {
+                MessageDialog.openError(shell, "出错", message);
             }
         });
     }
 
-    private void sendGreetingMessage(String attachment, String username, Shell shell, Consumer<String> uiActions) {
-        String greetMessage = CONNECTING_GREET_LEFT_HALF + attachment + CONNECTING_GREET_MIDDLE_HALF + username;
-        final ByteBuffer greetBuffer = ByteBuffer.wrap(greetMessage.getBytes());
-
+    private void runInUi(Runnable action) {
         try {
-            socketChannel.write(greetBuffer).get();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
+            if (!display.isDisposed()) {
+                display.asyncExec(action);
+            }
+        } catch (SWTException e) {
+            // The display is disposed.
         }
-
-        shell.getDisplay().syncExec(() ->
-                uiActions.accept(username + "，欢迎来到聊天室。"));
     }
 
     public String getUuid() {
-        return uuid;
+        return client.getUuid();
     }
 
     public String getUserName() {
-        return name;
+        return client.getName();
     }
 
     @Override
     public boolean isConnected() {
-        return socketChannel != null && socketChannel.isOpen();
+        return client.isConnected();
     }
 
+    /**
+     * Queue the raw protocol message, it's sent after the messages queued before.
+     *
+     * @param text The raw protocol message.
+     * @param uuid Ignored, the message is sent to the server.
+     */
     @Override
     public void sendCommunicationData(String text, String uuid) {
-        final ByteBuffer bb = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
-
-        try {
-            socketChannel.write(bb).get();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
-        }
+        client.sendRaw(text);
     }
 
     public void sendMessage(String message) {
-        sendMessage(message, uuid);
+        client.send(message);
     }
 
     @Override
@@ -325,26 +169,21 @@ public class ClientListener implements Listener {
                 uuidValue);
     }
 
+    /**
+     * Notify the server and disconnect. The connection is closed once the queued messages are sent.
+     *
+     * @throws IOException Never, kept for compatibility.
+     */
     public void disconnect() throws IOException {
-        if (isConnected()) {
-            sendCommunicationData(DISCONNECT + uuid, uuid);
-            disconnectWithoutNotification();
-        }
+        client.disconnect();
     }
 
     public void disconnectWithoutNotification() throws IOException {
-        if (isConnected()) {
-            socketChannel.close();
-            socketChannel = null;
-        }
-
-        scheduledFutureOfKeepAliveSender.cancel(false);
-        scheduledThreadPoolExecutor.shutdownNow();
-        CommonThreadPool.shutdown();
+        client.disconnectWithoutNotification();
     }
 
     @Override
     public void close() throws Exception {
-        disconnect();
+        client.close();
     }
 }
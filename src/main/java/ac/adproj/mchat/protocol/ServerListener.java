@@ -17,26 +17,30 @@
 
 package ac.adproj.mchat.protocol;
 
-import ac.adproj.mchat.handler.Handler;
 import ac.adproj.mchat.handler.ServerMessageHandler;
+import ac.adproj.mchat.model.ChatEvent;
+import ac.adproj.mchat.model.ChatSession;
 import ac.adproj.mchat.model.Protocol;
 import ac.adproj.mchat.model.User;
+import ac.adproj.mchat.service.FileTransferService;
 import ac.adproj.mchat.service.HeartbeatDetectingService;
 import ac.adproj.mchat.service.MessageDistributor;
+import ac.adproj.mchat.service.MessageFanout;
+import ac.adproj.mchat.service.Metrics;
 import ac.adproj.mchat.service.UserManager;
 import ac.adproj.mchat.service.UserNameQueryService;
-import ac.adproj.mchat.ui.CommonDialogs;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.nio.charset.StandardCharsets;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -48,6 +52,15 @@ import java.util.concurrent.atomic.AtomicInteger;
 @Slf4j
 public class ServerListener implements Listener {
 
+    private static final Metrics.Counter CONNECTIONS_ACCEPTED = Metrics.getInstance().counter(
+            "mchat_tcp_connections_accepted_total", "TCP connections accepted.");
+
+    private static final Metrics.Counter BYTES_READ = Metrics.getInstance().counter(
+            "mchat_tcp_bytes_read_total", "Bytes read from the TCP connections.");
+
+    private static final Metrics.Histogram READ_HANDLING = Metrics.getInstance().histogram(
+            "mchat_tcp_read_handling_seconds", "Time of handling a read of a TCP connection.");
+
     private static ServerListener instance;
     private AsynchronousServerSocketChannel serverSocketChannel = null;
     private ExecutorService threadPool;
@@ -62,6 +75,32 @@ public class ServerListener implements Listener {
 
     private ScheduledFuture scheduledFutureOfHeartbeatDetectingService;
 
+    /**
+     * Max number of idle read buffers to keep for reuse.
+     */
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledBufferCount = new AtomicInteger(0);
+
+    /**
+     * Per-connection state, used as the attachment of read operations.
+     */
+    private static final class Connection {
+        private final AsynchronousSocketChannel channel;
+        private final ByteBuffer buffer;
+
+        /**
+         * Decoder of the file chunks, created when the first chunk arrives.
+         */
+        private ChunkStreamDecoder chunks;
+
+        private Connection(AsynchronousSocketChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
     private ServerListener() throws IOException {
         init();
     }
@@ -87,33 +126,90 @@ public class ServerListener implements Listener {
                         0, 30, TimeUnit.SECONDS);
     }
 
-    private void readMessage(ByteBuffer bb, Handler handler, Integer result, AsynchronousSocketChannel channel) {
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer bb = bufferPool.poll();
+
+        if (bb == null) {
+            return ByteBuffer.allocate(Protocol.BUFFER_SIZE);
+        }
+
+        pooledBufferCount.decrementAndGet();
+        return bb;
+    }
+
+    private void releaseBuffer(ByteBuffer bb) {
+        if (pooledBufferCount.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            bb.clear();
+            bufferPool.offer(bb);
+        } else {
+            pooledBufferCount.decrementAndGet();
+        }
+    }
+
+    private void readMessage(Connection connection, ServerMessageHandler handler, Integer result) {
+        ByteBuffer bb = connection.buffer;
+        AsynchronousSocketChannel channel = connection.channel;
 
         if (result != -1) {
+            long start = System.nanoTime();
+            BYTES_READ.add(result);
 
             bb.flip();
 
-            StringBuilder messageStringBuilder = new StringBuilder();
+            ByteBuffer text = bb;
 
-            while (bb.hasRemaining()) {
-                messageStringBuilder.append(StandardCharsets.UTF_8.decode(bb));
-            }
-
-            String message = handler.handleMessage(messageStringBuilder.toString(), channel);
+            if (connection.chunks != null || ChunkStreamDecoder.startsWithChunk(bb)) {
+                if (connection.chunks == null) {
+                    connection.chunks = new ChunkStreamDecoder(FileTransferService.getInstance().getWindow());
+                }
 
-            try {
-                MessageDistributor.getInstance().sendUiMessage(message);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                // Looked up only for the chunks, the text messages carry the UUID.
+                User user = UserManager.getInstance().lookupByChannel(channel);
 
                 try {
-                    close();
-                } catch (Exception e1) {
-                    // ignore
+                    text = connection.chunks.decode(bb, (transferId, offset, data) -> {
+                        if (user != null) {
+                            FileTransferService.getInstance().receive(user, transferId, offset, data);
+                        }
+                    });
+                } catch (IllegalArgumentException e) {
+                    log.info("Malformed chunk from {}, closing the connection: {}", user, e.getMessage());
+                    closeChannel(channel);
+                    bb.clear();
+                    return;
                 }
             }
 
+            if (text.hasRemaining()) {
+                handleText(text, handler, channel);
+            }
+
             bb.clear();
+            READ_HANDLING.recordSince(start);
+        }
+    }
+
+    private void handleText(ByteBuffer bb, ServerMessageHandler handler, AsynchronousSocketChannel channel) {
+        StringBuilder messageStringBuilder = new StringBuilder();
+
+        while (bb.hasRemaining()) {
+            messageStringBuilder.append(StandardCharsets.UTF_8.decode(bb));
+        }
+
+        ChatEvent event = handler.handleEvent(messageStringBuilder.toString(), channel);
+
+        try {
+            if (event != null) {
+                MessageDistributor.getInstance().publish(event);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+
+            try {
+                close();
+            } catch (Exception e1) {
+                // ignore
+            }
         }
     }
 
@@ -143,38 +239,40 @@ public class ServerListener implements Listener {
 
             @Override
             public void completed(AsynchronousSocketChannel result, Object attachment) {
-                final ByteBuffer bb = ByteBuffer.allocate(Protocol.BUFFER_SIZE);
+                CONNECTIONS_ACCEPTED.increment();
+
+                final Connection connection = new Connection(result, acquireBuffer());
 
                 /* Handle messages. */
-                result.read(bb, result, new CompletionHandler<>() {
+                result.read(connection.buffer, connection, new CompletionHandler<>() {
 
                     @Override
-                    public void completed(Integer result, AsynchronousSocketChannel channel) {
-                        readMessage(bb, handler, result, channel);
+                    public void completed(Integer result, Connection connection) {
+                        if (result == -1) {
+                            // End of stream, the client has gone.
+                            teardown(connection);
+                            return;
+                        }
+
+                        readMessage(connection, handler, result);
 
-                        if (channel.isOpen()) {
-                            channel.read(bb, channel, this);
+                        if (connection.channel.isOpen()) {
+                            connection.channel.read(connection.buffer, connection, this);
+                        } else {
+                            teardown(connection);
                         }
                     }
 
                     @Override
-                    public void failed(Throwable exc, AsynchronousSocketChannel channel) {
-                        log.error("Error when receiving message.", exc);
-
-                        SoftReference<User> sr = null;
-
-                        for (User user : UserManager.getInstance().userProfileValueSet()) {
-                            if (user.getChannel().equals(channel)) {
-                                sr = new SoftReference<>(user);
-                            }
+                    public void failed(Throwable exc, Connection connection) {
+                        if (exc instanceof AsynchronousCloseException) {
+                            // Closed by us (logoff, heartbeat or shutdown).
+                            log.debug("Channel closed when receiving message.");
+                        } else {
+                            log.info("Error when receiving message: {}", exc.toString());
                         }
 
-                        if (sr != null) {
-                            UserManager.getInstance().deleteUserProfile(sr.get().getUuid());
-
-                            sr.clear();
-                            sr = null;
-                        }
+                        teardown(connection);
                     }
                 });
 
@@ -190,6 +288,68 @@ public class ServerListener implements Listener {
         registerHeartbeatDetectingService();
     }
 
+    /**
+     * Tear down the connection once no read is pending on it.
+     *
+     * @param connection The connection.
+     */
+    private void teardown(Connection connection) {
+        User user = UserManager.getInstance().lookupByChannel(connection.channel);
+
+        if (user != null) {
+            teardownSession(user, "LOST connection to " + user.getName());
+        } else {
+            closeChannel(connection.channel);
+        }
+
+        releaseBuffer(connection.buffer);
+    }
+
+    /**
+     * <p>
+     * The teardown pipeline of a session: close the channel, remove the session and queue the leave notice.
+     * </p>
+     *
+     * <p>
+     * It's safe to call it several times for the same session, only the first call that removes the session
+     * queues the notice. The read buffer is released by the read handler when the pending read fails.
+     * </p>
+     *
+     * @param user   The User object.
+     * @param notice The leave notice to broadcast, or null if not needed.
+     */
+    public void teardownSession(User user, String notice) {
+        closeChannel(user.getChannel());
+
+        if (UserManager.getInstance().deleteUserProfile(user.getUuid()) == null || notice == null) {
+            return;
+        }
+
+        log.info("Session closed. Name: {}, UUID: {}", user.getName(), user.getUuid());
+
+        scheduledThreadPoolExecutor.execute(() -> {
+            sendMessage(notice, Protocol.BROADCAST_MESSAGE_UUID);
+
+            try {
+                MessageDistributor.getInstance().publish(ChatEvent.leave(user.getUuid(), user.getName(), notice));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private static void closeChannel(AsynchronousSocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error when closing channel.", e);
+        }
+    }
+
     @Override
     public boolean isConnected() {
         return !UserManager.getInstance().isEmptyUserProfile();
@@ -197,27 +357,20 @@ public class ServerListener implements Listener {
 
     @Override
     public void sendCommunicationData(String text, String uuid) {
-        final ByteBuffer bb = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
-
         if (uuid.equals(Protocol.BROADCAST_MESSAGE_UUID)) {
-            for (User u : UserManager.getInstance().userProfileValueSet()) {
-                try {
-                    bb.rewind();
+            MessageFanout.getInstance().broadcast(text, null);
+        } else {
+            ChatSession session = UserManager.getInstance().lookupSession(uuid);
 
-                    while (bb.hasRemaining()) {
-                        u.getChannel().write(bb).get();
-                    }
-                } catch (InterruptedException | ExecutionException e) {
-                    log.error("Got error when sending message.", e);
-                    CommonDialogs.errorDialog("发送信息出错: " + e.getMessage());
-                }
+            if (session == null) {
+                log.warn("Dropped message to the unknown session: {}", uuid);
+                return;
             }
-        } else {
+
             try {
-                UserManager.getInstance().lookup(uuid).getChannel().write(bb).get();
-            } catch (InterruptedException | ExecutionException e) {
+                session.send(text);
+            } catch (IOException e) {
                 log.error("Got error when sending message.", e);
-                e.printStackTrace();
             }
         }
     }
@@ -229,21 +382,22 @@ public class ServerListener implements Listener {
     }
 
     public void disconnect(String uuid) throws IOException {
-        UserManager.getInstance().lookup(uuid).getChannel().close();
-        UserManager.getInstance().deleteUserProfile(uuid);
+        User user = UserManager.getInstance().lookup(uuid);
+
+        if (user != null) {
+            teardownSession(user, null);
+        }
     }
 
     public void disconnectAll() {
         UserManager.getInstance().userProfileValueSet().forEach(value -> {
             try {
-                final ByteBuffer bb = ByteBuffer
-                        .wrap((Protocol.DISCONNECT + "SERVER").getBytes(StandardCharsets.UTF_8));
-
-                value.getChannel().write(bb).get();
-                value.getChannel().close();
-            } catch (IOException | InterruptedException | ExecutionException e) {
+                value.send(Protocol.DISCONNECT + "SERVER");
+            } catch (IOException e) {
                 // Ignore
             }
+
+            value.closeWhenFlushed();
         });
 
         UserManager.getInstance().clearAllProfiles();
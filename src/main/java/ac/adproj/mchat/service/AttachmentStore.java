@@ -0,0 +1,443 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Content-addressed store of the attachments, keyed by the SHA-256 hash of the content,
+ * so a file shared many times is stored once.
+ * </p>
+ *
+ * <p>
+ * Every blob has a reference count. Blobs without references are kept as a cache, and evicted in least recently
+ * used order when the total size exceeds the limit. Referenced blobs are never evicted.
+ * The reference counts live in memory only, so all the blobs are unreferenced after restarting.
+ * </p>
+ *
+ * <p>
+ * Every blob is mapped read-only once when it's first opened, and the mapping is shared by all the readers,
+ * so the popular blobs are served from the page cache without copying them onto the heap.
+ * </p>
+ *
+ * <p>
+ * Configured with the system properties {@value #DIRECTORY_PROPERTY} and {@value #MAX_SIZE_PROPERTY}.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+public class AttachmentStore {
+    /**
+     * Name of the system property of the directory of the blobs.
+     */
+    public static final String DIRECTORY_PROPERTY = "mchat.attachment.dir";
+
+    /**
+     * Name of the system property of the max total size of the blobs, in bytes.
+     */
+    public static final String MAX_SIZE_PROPERTY = "mchat.attachment.maxSize";
+
+    private static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    private static final String TEMP_DIRECTORY = "tmp";
+
+    /**
+     * Holder of instance.
+     */
+    private static class Holder {
+        private static final AttachmentStore INSTANCE = new AttachmentStore(
+                Path.of(System.getProperty(DIRECTORY_PROPERTY,
+                        Path.of(System.getProperty("user.home"), ".mchat", "attachments").toString())),
+                Long.getLong(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+    }
+
+    /**
+     * A stored blob, guarded by the store.
+     */
+    private static final class Blob {
+        private final Path path;
+        private final long size;
+        private int references;
+        private MappedByteBuffer mapping;
+
+        private Blob(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private final Path directory;
+    private final long maxSize;
+
+    /**
+     * Blobs in least recently used order, see {@link #touch(String)}.
+     */
+    private final LinkedHashMap<String, Blob> blobs = new LinkedHashMap<>(64);
+
+    private long totalSize;
+
+    AttachmentStore(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        try {
+            load();
+        } catch (IOException e) {
+            log.error("Failed to load the attachments in {}", directory, e);
+        }
+    }
+
+    /**
+     * Obtain the only instance of this class.
+     *
+     * @return The instance.
+     */
+    public static AttachmentStore getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Index the blobs stored by the previous run, the least recently modified ones first.
+     */
+    private void load() throws IOException {
+        Path temp = directory.resolve(TEMP_DIRECTORY);
+
+        if (Files.isDirectory(temp)) {
+            try (Stream<Path> files = Files.list(temp)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        List<Path> found;
+
+        try (Stream<Path> files = Files.walk(directory, 2)) {
+            found = files.filter(p -> HASH_PATTERN.matcher(p.getFileName().toString()).matches()
+                            && p.getParent().getFileName().toString().equals(p.getFileName().toString().substring(0, 2))
+                            && Files.isRegularFile(p))
+                    .sorted(Comparator.comparing(AttachmentStore::lastModified))
+                    .toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        synchronized (this) {
+            for (Path path : found) {
+                long size = Files.size(path);
+                blobs.put(path.getFileName().toString(), new Blob(path, size));
+                totalSize += size;
+            }
+
+            evict();
+        }
+
+        log.info("Loaded {} attachments ({} bytes) from {}", found.size(), totalSize, directory);
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Whether the string is a valid key of the store.
+     *
+     * @param hash The string.
+     * @return True if it's a lower-case hex SHA-256 hash.
+     */
+    public static boolean isValidHash(String hash) {
+        return hash != null && HASH_PATTERN.matcher(hash).matches();
+    }
+
+    /**
+     * Create the digest of the keys.
+     *
+     * @return A SHA-256 digest.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * Compute the key of the file.
+     *
+     * @param file The file.
+     * @return The hex SHA-256 hash of the content.
+     * @throws IOException If the file can't be read.
+     */
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+            while (channel.read(buffer) != -1) {
+                digest.update(buffer.flip());
+                buffer.clear();
+            }
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Move the file into the store and take a reference of it. If the same content is stored already,
+     * the file is deleted and the stored blob is shared.
+     *
+     * @param file The file, which is moved or deleted.
+     * @param hash The hash of the file computed by the caller, or null to compute it here.
+     * @return The key of the blob.
+     * @throws IOException If the file can't be stored.
+     */
+    public String put(Path file, String hash) throws IOException {
+        if (hash == null) {
+            hash = hash(file);
+        } else if (!isValidHash(hash)) {
+            throw new IllegalArgumentException("Invalid hash: " + hash);
+        }
+
+        long size = Files.size(file);
+
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Attachment is too large: " + size + " bytes.");
+        }
+
+        if (retain(hash)) {
+            Files.deleteIfExists(file);
+            return hash;
+        }
+
+        // Moves the file next to the blobs first (may be a copy between file systems),
+        // so the blob appears at once.
+        Path temp = directory.resolve(TEMP_DIRECTORY).resolve(hash + "." + Thread.currentThread().getId());
+        Path target = directory.resolve(hash.substring(0, 2)).resolve(hash);
+
+        Files.createDirectories(temp.getParent());
+        Files.createDirectories(target.getParent());
+        Files.move(file, temp, StandardCopyOption.REPLACE_EXISTING);
+
+        synchronized (this) {
+            if (retain(hash)) {
+                // Stored by another thread meanwhile.
+                Files.deleteIfExists(temp);
+                return hash;
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            var blob = new Blob(target, size);
+            blob.references = 1;
+            blobs.put(hash, blob);
+            totalSize += size;
+
+            evict();
+        }
+
+        return hash;
+    }
+
+    /**
+     * Take a reference of the blob.
+     *
+     * @param hash The key of the blob.
+     * @return True if the blob exists.
+     */
+    public synchronized boolean retain(String hash) {
+        Blob blob = touch(hash);
+
+        if (blob == null) {
+            return false;
+        }
+
+        blob.references++;
+        return true;
+    }
+
+    /**
+     * Release a reference of the blob. The blob may be evicted when it has no references.
+     *
+     * @param hash The key of the blob.
+     */
+    public synchronized void release(String hash) {
+        Blob blob = blobs.get(hash);
+
+        if (blob == null || blob.references == 0) {
+            log.warn("Released the unreferenced attachment {}", hash);
+            return;
+        }
+
+        if (--blob.references == 0) {
+            evict();
+        }
+    }
+
+    /**
+     * Obtain the content of the blob, and mark it as recently used.
+     *
+     * @param hash The key of the blob.
+     * @return Read-only view of the mapping of the blob, or empty if there's no such blob.
+     * @throws IOException If the blob can't be mapped.
+     */
+    public synchronized Optional<ByteBuffer> open(String hash) throws IOException {
+        Blob blob = touch(hash);
+
+        if (blob == null) {
+            return Optional.empty();
+        }
+
+        if (blob.mapping == null) {
+            try (var channel = FileChannel.open(blob.path, StandardOpenOption.READ)) {
+                blob.mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, blob.size);
+            }
+        }
+
+        return Optional.of(blob.mapping.duplicate());
+    }
+
+    /**
+     * Mark the blob as the most recently used, the caller must hold the lock of the store.
+     * Only sharing and reading the blob count as the use, releasing and querying don't.
+     */
+    private Blob touch(String hash) {
+        Blob blob = blobs.remove(hash);
+
+        if (blob != null) {
+            blobs.put(hash, blob);
+        }
+
+        return blob;
+    }
+
+    /**
+     * Evict the least recently used blobs without references, until the total size is within the limit.
+     * The caller must hold the lock of the store.
+     */
+    private void evict() {
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        List<Path> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Blob>> it = blobs.entrySet().iterator();
+
+        while (totalSize > maxSize && it.hasNext()) {
+            Blob blob = it.next().getValue();
+
+            if (blob.references == 0) {
+                it.remove();
+                totalSize -= blob.size;
+                evicted.add(blob.path);
+            }
+        }
+
+        if (totalSize > maxSize) {
+            log.warn("Referenced attachments ({} bytes) exceed the limit of {} bytes.", totalSize, maxSize);
+        }
+
+        // The readers holding the mapping are unaffected by the deletion.
+        for (Path path : evicted) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Failed to remove the attachment {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * Whether the blob is stored.
+     *
+     * @param hash The key of the blob.
+     * @return True if stored.
+     */
+    public synchronized boolean contains(String hash) {
+        return blobs.containsKey(hash);
+    }
+
+    /**
+     * Obtain the number of references of the blob.
+     *
+     * @param hash The key of the blob.
+     * @return The number of references, or -1 if there's no such blob.
+     */
+    public synchronized int getReferences(String hash) {
+        Blob blob = blobs.get(hash);
+        return blob == null ? -1 : blob.references;
+    }
+
+    /**
+     * Obtain the number of stored blobs.
+     *
+     * @return The number of blobs.
+     */
+    public synchronized int size() {
+        return blobs.size();
+    }
+
+    /**
+     * Obtain the total size of the stored blobs.
+     *
+     * @return The total size, in bytes.
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+}
@@ -0,0 +1,683 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.model.ChatEvent;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Append-only chat history, stored in memory-mapped segment files.
+ * </p>
+ *
+ * <p>
+ * Every message gets a sequential offset. A segment file is named by the offset of its first message,
+ * and holds records of the format: (length, int) (offset, long) (timestamp, long) (name length, int)
+ * (name, UTF-8) (message text, UTF-8), where the length counts the bytes after itself.
+ * A zero length marks the end of a segment, since the length is written last.
+ * </p>
+ *
+ * <p>
+ * A sparse index (offset, timestamp and position of every {@code indexInterval}-th record) is kept
+ * in memory for each segment, so reading the latest messages or the messages since a timestamp
+ * only scans a few records before streaming the result.
+ * </p>
+ *
+ * <p>
+ * Appended messages are durable after {@link #flush()}; until then they're kept in the page cache,
+ * which survives the crash of the process but not of the machine.
+ * </p>
+ *
+ * <p>
+ * The segments beyond {@code maxSegments} are unmapped and deleted outside the lock, after the append
+ * or by the next flush. A file that can't be deleted yet (e.g. still mapped on Windows) is retried by the
+ * later flushes.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+public final class ChatHistoryLog implements Closeable {
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Length, offset, timestamp and name length.
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 4;
+
+    /**
+     * {@code sun.misc.Unsafe} and its {@code invokeCleaner} method, or null if not available.
+     */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Unable to unmap the history segments, they're unmapped when collected: {}", e.toString());
+        }
+
+        UNSAFE = invokeCleaner != null ? unsafe : null;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Message in the history.
+     *
+     * @param offset     Sequential offset of the message.
+     * @param timestamp  Time of the message, in milliseconds.
+     * @param senderName Name of the sender.
+     * @param text       The message text.
+     * @author Andy Cheung
+     */
+    public record Entry(long offset, long timestamp, String senderName, String text) {
+    }
+
+    private static final class Segment {
+        private final long baseOffset;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+
+        /**
+         * End of the records.
+         */
+        private int position;
+
+        private int count;
+
+        private long lastTimestamp = Long.MIN_VALUE;
+
+        private boolean dirty;
+
+        private long[] indexOffsets = new long[16];
+        private long[] indexTimestamps = new long[16];
+        private int[] indexPositions = new int[16];
+        private int indexSize;
+
+        private Segment(long baseOffset, Path path, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        private void addIndexEntry(long offset, long timestamp, int recordPosition) {
+            if (indexSize == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+                indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+
+            indexOffsets[indexSize] = offset;
+            indexTimestamps[indexSize] = timestamp;
+            indexPositions[indexSize] = recordPosition;
+            indexSize++;
+        }
+
+        /**
+         * Find the position of the last indexed record at or before the offset.
+         */
+        private int floorPositionByOffset(long offset) {
+            int index = Arrays.binarySearch(indexOffsets, 0, indexSize, offset);
+            index = index >= 0 ? index : -index - 2;
+
+            return index < 0 ? 0 : indexPositions[index];
+        }
+
+        /**
+         * Find the position of the last indexed record before the timestamp.
+         */
+        private int floorPositionByTimestamp(long timestamp) {
+            int low = 0;
+            int high = indexSize - 1;
+            int found = -1;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+
+                if (indexTimestamps[mid] < timestamp) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            return found < 0 ? 0 : indexPositions[found];
+        }
+
+        private long nextOffset() {
+            return baseOffset + count;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int indexInterval;
+    private final int maxSegments;
+
+    private final List<Segment> segments = new ArrayList<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Segments removed from the history, but not deleted yet. Guarded by the write lock.
+     */
+    private final List<Segment> retiredSegments = new ArrayList<>();
+
+    /**
+     * Serializes forcing and deleting the segments, so a segment is never unmapped while being forced.
+     */
+    private final Lock maintenanceLock = new ReentrantLock();
+
+    /**
+     * Files of the retired segments that failed to be deleted. Guarded by the maintenance lock.
+     */
+    private final List<Path> undeletedFiles = new ArrayList<>();
+
+    private boolean closed;
+
+    private ChatHistoryLog(Path directory, int segmentSize, int indexInterval, int maxSegments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Open the history in the directory, recover the segments written before.
+     *
+     * @param directory     The directory of the segment files.
+     * @param segmentSize   Size of a segment file, in bytes.
+     * @param indexInterval Number of records between the index entries.
+     * @param maxSegments   Max number of segment files to keep, older segments are deleted.
+     * @return The history.
+     * @throws IOException If I/O Error occurs.
+     */
+    public static ChatHistoryLog open(Path directory, int segmentSize, int indexInterval, int maxSegments)
+            throws IOException {
+        if (segmentSize <= RECORD_HEADER_SIZE || indexInterval <= 0 || maxSegments <= 0) {
+            throw new IllegalArgumentException("Invalid history configuration.");
+        }
+
+        Files.createDirectories(directory);
+
+        var historyLog = new ChatHistoryLog(directory, segmentSize, indexInterval, maxSegments);
+
+        List<Path> files;
+
+        try (Stream<Path> paths = Files.list(directory)) {
+            files = paths.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+
+            historyLog.segments.add(historyLog.recover(historyLog.map(file, baseOffset)));
+        }
+
+        if (historyLog.segments.isEmpty()) {
+            historyLog.segments.add(historyLog.createSegment(0));
+        }
+
+        return historyLog;
+    }
+
+    private Segment map(Path file, long baseOffset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long size = Math.max(channel.size(), segmentSize);
+
+            // The mapping stays valid after the channel is closed.
+            return new Segment(baseOffset, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    private Segment createSegment(long baseOffset) throws IOException {
+        return map(directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX)), baseOffset);
+    }
+
+    /**
+     * Scan the records of the segment, rebuild the index and find the end.
+     */
+    private Segment recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+
+            if (length < RECORD_HEADER_SIZE - 4 || position + 4 + length > buffer.capacity()
+                    || buffer.getLong(position + 4) != segment.nextOffset()) {
+                break;
+            }
+
+            indexRecord(segment, position, buffer.getLong(position + 12));
+            position += 4 + length;
+        }
+
+        segment.position = position;
+
+        return segment;
+    }
+
+    private void indexRecord(Segment segment, int position, long timestamp) {
+        if (segment.count % indexInterval == 0) {
+            segment.addIndexEntry(segment.nextOffset(), timestamp, position);
+        }
+
+        segment.count++;
+        segment.lastTimestamp = timestamp;
+    }
+
+    private Segment activeSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Append the chatting messages.
+     *
+     * @param events The events, the events other than {@link ChatEvent.Kind#CHAT} are ignored.
+     * @throws IOException If I/O Error occurs.
+     */
+    public void append(List<ChatEvent> events) throws IOException {
+        boolean rolled;
+
+        lock.writeLock().lock();
+
+        try {
+            if (closed) {
+                throw new IOException("The history is closed.");
+            }
+
+            for (ChatEvent event : events) {
+                if (event.kind() == ChatEvent.Kind.CHAT) {
+                    appendRecord(event);
+                }
+            }
+
+            rolled = !retiredSegments.isEmpty();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // Left to the next flush if a flush is running.
+        if (rolled && maintenanceLock.tryLock()) {
+            try {
+                deleteRetiredSegments();
+            } finally {
+                maintenanceLock.unlock();
+            }
+        }
+    }
+
+    private void appendRecord(ChatEvent event) throws IOException {
+        byte[] name = event.senderName().getBytes(StandardCharsets.UTF_8);
+        byte[] text = event.body().getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER_SIZE + name.length + text.length;
+
+        if (recordSize > segmentSize) {
+            log.warn("Message of {} bytes is too large for the history, skipped.", recordSize);
+            return;
+        }
+
+        Segment segment = activeSegment();
+
+        if (segment.position + recordSize > segment.buffer.capacity()) {
+            segment = roll(segment);
+        }
+
+        // Keeps the timestamps ordered, so they can be searched.
+        long timestamp = Math.max(event.timestamp(), segment.lastTimestamp);
+        long offset = segment.nextOffset();
+        int position = segment.position;
+        MappedByteBuffer buffer = segment.buffer;
+
+        buffer.putLong(position + 4, offset);
+        buffer.putLong(position + 12, timestamp);
+        buffer.putInt(position + 20, name.length);
+        buffer.put(position + RECORD_HEADER_SIZE, name);
+        buffer.put(position + RECORD_HEADER_SIZE + name.length, text);
+
+        // Written last, so a torn record is never read.
+        buffer.putInt(position, recordSize - 4);
+
+        indexRecord(segment, position, timestamp);
+        segment.position += recordSize;
+        segment.dirty = true;
+    }
+
+    /**
+     * Start a new segment. The full segment stays dirty and is forced by the next flush.
+     */
+    private Segment roll(Segment full) throws IOException {
+        Segment segment = createSegment(full.nextOffset());
+        segment.lastTimestamp = full.lastTimestamp;
+        segments.add(segment);
+
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            oldest.dirty = false;
+            retiredSegments.add(oldest);
+        }
+
+        return segment;
+    }
+
+    /**
+     * Force the appended messages to the storage, and delete the retired segments.
+     */
+    public void flush() {
+        List<Segment> dirtySegments = new ArrayList<>(1);
+
+        maintenanceLock.lock();
+
+        try {
+            lock.writeLock().lock();
+
+            try {
+                for (Segment segment : segments) {
+                    if (segment.dirty) {
+                        segment.dirty = false;
+                        dirtySegments.add(segment);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            // Doesn't block the appending while waiting for the storage.
+            for (Segment segment : dirtySegments) {
+                segment.buffer.force();
+            }
+
+            deleteRetiredSegments();
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    /**
+     * Unmap and delete the retired segments, and retry the files failed to be deleted before.
+     * Called with the maintenance lock held.
+     */
+    private void deleteRetiredSegments() {
+        List<Segment> retired;
+
+        lock.writeLock().lock();
+
+        try {
+            retired = new ArrayList<>(retiredSegments);
+            retiredSegments.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        undeletedFiles.removeIf(ChatHistoryLog::delete);
+
+        // No reader can reach the retired segments, they were removed under the write lock.
+        for (Segment segment : retired) {
+            unmap(segment.buffer);
+
+            if (!delete(segment.path)) {
+                log.warn("Failed in deleting the history segment {}, it will be retried.", segment.path);
+                undeletedFiles.add(segment.path);
+            }
+        }
+    }
+
+    private static boolean delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException e) {
+            log.debug("Failed in deleting the history segment {}: {}", file, e.toString());
+            return false;
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (UNSAFE == null) {
+            return;
+        }
+
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            log.debug("Failed in unmapping the history segment: {}", e.toString());
+        }
+    }
+
+    /**
+     * Obtain the offset of the oldest message kept, the older ones are deleted with their segments.
+     *
+     * @return The offset.
+     */
+    public long firstOffset() {
+        lock.readLock().lock();
+
+        try {
+            return segments.get(0).baseOffset;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Obtain the offset of the next message.
+     *
+     * @return The offset.
+     */
+    public long nextOffset() {
+        lock.readLock().lock();
+
+        try {
+            return activeSegment().nextOffset();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read the messages from the offset.
+     *
+     * @param offset   Offset of the first message, the messages deleted already are skipped.
+     * @param maxCount Max number of messages.
+     * @return The messages, from the oldest to the newest.
+     */
+    public List<Entry> read(long offset, int maxCount) {
+        lock.readLock().lock();
+
+        try {
+            return readFrom(offset, maxCount);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the offset of the first message at or after the timestamp.
+     *
+     * @param timestamp The timestamp, in milliseconds.
+     * @return The offset, or the next offset if all messages are older.
+     */
+    public long findOffset(long timestamp) {
+        lock.readLock().lock();
+
+        try {
+            return findOffsetByTimestamp(timestamp);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read the latest messages.
+     *
+     * @param count Max number of messages.
+     * @return The messages, from the oldest to the newest.
+     */
+    public List<Entry> readLast(int count) {
+        lock.readLock().lock();
+
+        try {
+            long first = segments.get(0).baseOffset;
+            return readFrom(Math.max(first, activeSegment().nextOffset() - count), count);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read the messages since the timestamp.
+     *
+     * @param timestamp The timestamp, in milliseconds.
+     * @param maxCount  Max number of messages, the latest messages are returned if there are more.
+     * @return The messages, from the oldest to the newest.
+     */
+    public List<Entry> readSince(long timestamp, int maxCount) {
+        lock.readLock().lock();
+
+        try {
+            long next = activeSegment().nextOffset();
+            long start = Math.max(findOffsetByTimestamp(timestamp), next - maxCount);
+
+            return readFrom(start, maxCount);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private long findOffsetByTimestamp(long timestamp) {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+
+            if (segment.count == 0) {
+                continue;
+            }
+
+            // Starts from the segment holding the first message at or after the timestamp.
+            if (i == 0 || segment.indexTimestamps[0] < timestamp) {
+                int position = segment.floorPositionByTimestamp(timestamp);
+                long offset = segment.buffer.getLong(position + 4);
+
+                while (position < segment.position) {
+                    if (segment.buffer.getLong(position + 12) >= timestamp) {
+                        return offset;
+                    }
+
+                    position += 4 + segment.buffer.getInt(position);
+                    offset++;
+                }
+
+                // All messages of the segment are older.
+                return segment.nextOffset();
+            }
+        }
+
+        return segments.get(0).baseOffset;
+    }
+
+    private List<Entry> readFrom(long offset, int maxCount) {
+        if (maxCount <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> entries = new ArrayList<>(Math.min(maxCount, 256));
+
+        for (Segment segment : segments) {
+            if (segment.nextOffset() <= offset) {
+                continue;
+            }
+
+            MappedByteBuffer buffer = segment.buffer;
+            int position = segment.baseOffset <= offset ? segment.floorPositionByOffset(offset) : 0;
+
+            while (position < segment.position && entries.size() < maxCount) {
+                int length = buffer.getInt(position);
+                long recordOffset = buffer.getLong(position + 4);
+
+                if (recordOffset >= offset) {
+                    entries.add(readEntry(buffer, position, length, recordOffset));
+                }
+
+                position += 4 + length;
+            }
+
+            if (entries.size() >= maxCount) {
+                break;
+            }
+        }
+
+        return entries;
+    }
+
+    private static Entry readEntry(MappedByteBuffer buffer, int position, int length, long offset) {
+        int nameLength = buffer.getInt(position + 20);
+        byte[] name = new byte[nameLength];
+        byte[] text = new byte[length + 4 - RECORD_HEADER_SIZE - nameLength];
+
+        buffer.get(position + RECORD_HEADER_SIZE, name);
+        buffer.get(position + RECORD_HEADER_SIZE + nameLength, text);
+
+        return new Entry(offset, buffer.getLong(position + 12),
+                new String(name, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() {
+        flush();
+
+        lock.writeLock().lock();
+
+        try {
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
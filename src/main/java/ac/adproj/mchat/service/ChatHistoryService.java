@@ -0,0 +1,356 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.model.ChatEvent;
+import ac.adproj.mchat.model.ChatSession;
+import ac.adproj.mchat.model.Protocol;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Records the public chatting messages to the {@link ChatHistoryLog}, and replays the latest ones
+ * to the users who join.
+ * </p>
+ *
+ * <p>
+ * The messages are recorded by a subscriber of the {@link MessageDistributor}, so the sending of messages
+ * never waits for the history: if the storage stalls and the subscriber falls behind by
+ * {@value #SUBSCRIBER_CAPACITY} messages, the new messages are dropped from the history and counted. The history is forced to the storage every {@value #DEFAULT_FLUSH_INTERVAL}
+ * milliseconds (system property {@value #FLUSH_INTERVAL_PROPERTY}) when there's something new, and the new
+ * messages are added to the {@link ChatSearchIndex} by the same background thread.
+ * </p>
+ *
+ * <p>
+ * Configured with the system properties {@value #DIRECTORY_PROPERTY}, {@value #SEGMENT_SIZE_PROPERTY},
+ * {@value #MAX_SEGMENTS_PROPERTY} and {@value #REPLAY_COUNT_PROPERTY}.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+public class ChatHistoryService {
+    /**
+     * Name of the system property of the directory of the history.
+     */
+    public static final String DIRECTORY_PROPERTY = "mchat.history.dir";
+
+    /**
+     * Name of the system property of the size of the segment files, in bytes.
+     */
+    public static final String SEGMENT_SIZE_PROPERTY = "mchat.history.segmentSize";
+
+    /**
+     * Name of the system property of the max number of the segment files.
+     */
+    public static final String MAX_SEGMENTS_PROPERTY = "mchat.history.maxSegments";
+
+    /**
+     * Name of the system property of the number of messages replayed to the joining users.
+     */
+    public static final String REPLAY_COUNT_PROPERTY = "mchat.history.replayCount";
+
+    /**
+     * Name of the system property of the interval between the flushes, in milliseconds.
+     */
+    public static final String FLUSH_INTERVAL_PROPERTY = "mchat.history.flushInterval";
+
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_MAX_SEGMENTS = 8;
+    private static final int DEFAULT_REPLAY_COUNT = 50;
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    private static final int INDEX_INTERVAL = 64;
+
+    /**
+     * Capacity of the queue of the recording subscriber.
+     */
+    private static final int SUBSCRIBER_CAPACITY = 8192;
+
+    /**
+     * Holder of instance.
+     */
+    private static class Holder {
+        private static final ChatHistoryService INSTANCE = new ChatHistoryService();
+    }
+
+    private ChatHistoryLog historyLog;
+    private ChatSearchIndex searchIndex;
+    private ScheduledThreadPoolExecutor flushExecutor;
+    private ScheduledFuture<?> flushFuture;
+    private MessageDistributor.SubscriberCallback recorder;
+    private Subscription recording;
+
+    private ChatHistoryService() {
+    }
+
+    /**
+     * Obtain the only instance of this class.
+     *
+     * @return The instance.
+     */
+    public static ChatHistoryService getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Open the history and start recording. Does nothing if started already.
+     *
+     * @throws IOException If the history can't be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (historyLog != null) {
+            return;
+        }
+
+        Path directory = Path.of(System.getProperty(DIRECTORY_PROPERTY,
+                Path.of(System.getProperty("user.home"), ".mchat", "history").toString()));
+
+        historyLog = ChatHistoryLog.open(directory,
+                Integer.getInteger(SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_SIZE), INDEX_INTERVAL,
+                Integer.getInteger(MAX_SEGMENTS_PROPERTY, DEFAULT_MAX_SEGMENTS));
+
+        ChatHistoryLog recordingLog = historyLog;
+        ChatSearchIndex recordingIndex = new ChatSearchIndex();
+        searchIndex = recordingIndex;
+
+        recorder = new MessageDistributor.SubscriberCallback() {
+            @Override
+            public void onMessageReceived(ChatEvent event) {
+                onMessagesReceived(List.of(event));
+            }
+
+            @Override
+            public void onMessagesReceived(List<ChatEvent> events) {
+                try {
+                    recordingLog.append(events);
+                } catch (IOException e) {
+                    log.error("Error when recording the chat history.", e);
+                }
+            }
+        };
+
+        // Never blocks the publishers when the storage stalls: the messages are dropped and counted instead.
+        recording = MessageDistributor.getInstance().registerSubscriber(recorder, SUBSCRIBER_CAPACITY,
+                Subscription.OverflowPolicy.DROP_NEWEST);
+
+        long flushInterval = Long.getLong(FLUSH_INTERVAL_PROPERTY, DEFAULT_FLUSH_INTERVAL);
+
+        flushExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "Chat History Flushing Thread");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Indexes the history written before immediately.
+        flushFuture = flushExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                recordingLog.flush();
+                recordingIndex.update(recordingLog);
+            } catch (Exception e) {
+                // Keeps the task scheduled.
+                log.error("Error when flushing or indexing the chat history.", e);
+            }
+        }, 0, flushInterval, TimeUnit.MILLISECONDS);
+
+        log.info("Chat history opened at {}, next offset: {}", directory, historyLog.nextOffset());
+    }
+
+    /**
+     * Stop recording, flush and close the history.
+     */
+    public synchronized void stop() {
+        if (historyLog == null) {
+            return;
+        }
+
+        MessageDistributor.getInstance().unregisterSubscriber(recorder);
+        flushFuture.cancel(false);
+        flushExecutor.shutdown();
+        historyLog.close();
+
+        if (recording.getDropped() > 0) {
+            log.warn("{} messages were not recorded to the chat history.", recording.getDropped());
+        }
+
+        historyLog = null;
+        searchIndex = null;
+        recorder = null;
+        recording = null;
+    }
+
+    /**
+     * Whether the history is recording.
+     *
+     * @return True if started.
+     */
+    public synchronized boolean isStarted() {
+        return historyLog != null;
+    }
+
+    /**
+     * Find the messages in the history.
+     *
+     * @param query The query.
+     * @return The messages from the oldest to the newest, or empty if the history isn't started.
+     */
+    public List<ChatHistoryLog.Entry> search(ChatSearchIndex.Query query) {
+        ChatHistoryLog currentLog;
+        ChatSearchIndex currentIndex;
+
+        synchronized (this) {
+            currentLog = historyLog;
+            currentIndex = searchIndex;
+        }
+
+        if (currentLog == null) {
+            return Collections.emptyList();
+        }
+
+        return currentIndex.search(currentLog, query);
+    }
+
+    /**
+     * Send the latest messages in the history to the session in one message, the oldest ones are left out
+     * if they don't fit the message size of the session. Does nothing if the history isn't started.
+     *
+     * @param session The joining session.
+     */
+    public void replayTo(ChatSession session) {
+        Optional<String> message = replayMessage(session.getMaxMessageSize());
+
+        if (message.isEmpty()) {
+            return;
+        }
+
+        try {
+            session.send(message.get());
+        } catch (IOException e) {
+            log.warn("Error when replaying the chat history to {}", session.getUuid(), e);
+        }
+    }
+
+    /**
+     * Send the latest messages in the history and the offline messages to the TCP user just registered,
+     * by the background thread, so the reading thread never waits for the history.
+     *
+     * @param session The joining session.
+     */
+    public void welcome(ChatSession session) {
+        ScheduledThreadPoolExecutor executor;
+
+        synchronized (this) {
+            executor = historyLog == null ? null : flushExecutor;
+        }
+
+        Runnable task = () -> {
+            replayTo(session);
+            OfflineMailbox.getInstance().deliverTo(session);
+        };
+
+        try {
+            if (executor == null) {
+                task.run();
+            } else {
+                executor.execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            // Stopped in the meantime.
+            task.run();
+        }
+    }
+
+    /**
+     * Render the latest messages in the history as one chatting message.
+     *
+     * @param maxBytes Max size of the message, in UTF-8 bytes.
+     * @return The raw protocol message, or empty if the history isn't started or is empty.
+     */
+    Optional<String> replayMessage(int maxBytes) {
+        ChatHistoryLog currentLog;
+
+        synchronized (this) {
+            currentLog = historyLog;
+        }
+
+        if (currentLog == null) {
+            return Optional.empty();
+        }
+
+        List<ChatHistoryLog.Entry> entries = currentLog.readLast(Integer.getInteger(REPLAY_COUNT_PROPERTY,
+                DEFAULT_REPLAY_COUNT));
+
+        return entries.isEmpty() ? Optional.empty() : Optional.of(toProtocolMessage(entries, maxBytes));
+    }
+
+    /**
+     * Render the latest messages in the history as one chatting message, one message a line.
+     * The oldest messages are left out if they don't fit, and the latest one is cut if it doesn't fit alone.
+     *
+     * @param entries  The messages, not empty.
+     * @param maxBytes Max size of the message, in UTF-8 bytes.
+     * @return The raw protocol message.
+     */
+    static String toProtocolMessage(List<ChatHistoryLog.Entry> entries, int maxBytes) {
+        // The count in the header can only get shorter.
+        long budget = (long) maxBytes - Utf8Text.length(header(entries.size()));
+        long used = 0;
+        int first = entries.size();
+
+        while (first > 0) {
+            long size = Utf8Text.length(line(entries.get(first - 1))) + (first == entries.size() ? 0 : 1);
+
+            if (used + size > budget) {
+                break;
+            }
+
+            used += size;
+            first--;
+        }
+
+        if (first == entries.size()) {
+            String header = header(1);
+            return header + Utf8Text.truncate(line(entries.get(first - 1)), maxBytes - Utf8Text.length(header));
+        }
+
+        var sb = new StringBuilder(header(entries.size() - first));
+
+        for (int i = first; i < entries.size(); i++) {
+            sb.append(i == first ? "" : "\n").append(line(entries.get(i)));
+        }
+
+        return sb.toString();
+    }
+
+    private static String header(int count) {
+        return Protocol.MESSAGE_HEADER_LEFT_HALF + "历史消息 (" + count + ")" + Protocol.MESSAGE_HEADER_MIDDLE_HALF
+                + Protocol.MESSAGE_HEADER_RIGHT_HALF;
+    }
+
+    private static String line(ChatHistoryLog.Entry entry) {
+        return entry.senderName() + ": " + entry.text();
+    }
+}
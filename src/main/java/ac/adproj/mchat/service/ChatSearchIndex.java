@@ -0,0 +1,438 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ * Incremental inverted index over the {@link ChatHistoryLog}.
+ * </p>
+ *
+ * <p>
+ * Every term of the message text, and the sender name, maps to the list of offsets of the messages containing it.
+ * The offsets are stored as varint-encoded deltas in a growing byte array, so a posting costs one or two bytes
+ * most of the time. Since the offsets only grow, new messages are indexed by appending to the lists,
+ * and the bytes written before never change, so the queries decode them without holding the lock.
+ * When the history deletes its oldest segments, the lists are rebuilt without the deleted offsets
+ * (the lists of the terms that only appeared there are removed).
+ * </p>
+ *
+ * <p>
+ * Latin text is split into lower-cased words, and every CJK ideograph is a term by itself,
+ * so the query "你好" matches the messages containing both "你" and "好".
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+public final class ChatSearchIndex {
+    /**
+     * Max number of messages read from the history at once.
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    private static final int MAX_TERM_LENGTH = 64;
+
+    /**
+     * Query of messages. All conditions must be matched.
+     *
+     * @param text   Terms to find, or null / blank to match any text.
+     * @param sender Name of the sender (case-insensitive), or null to match any sender.
+     * @param from   Start of the time range (inclusive), in milliseconds.
+     * @param to     End of the time range (exclusive), in milliseconds.
+     * @param limit  Max number of the results, the latest messages are returned if there are more.
+     * @author Andy Cheung
+     */
+    public record Query(String text, String sender, long from, long to, int limit) {
+    }
+
+    /**
+     * Append-only list of offsets, encoded as varint deltas.
+     */
+    private static final class Postings {
+        private byte[] data = new byte[8];
+        private int size;
+        private long last = -1;
+
+        private void add(long offset) {
+            long delta = offset - last;
+            last = offset;
+
+            if (size + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+
+            while ((delta & ~0x7FL) != 0) {
+                data[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+
+            data[size++] = (byte) delta;
+        }
+
+        private Cursor cursor() {
+            return new Cursor(data, size);
+        }
+
+        /**
+         * Copy the offsets at or after the first one.
+         *
+         * @return The copy, or null if there are no such offsets.
+         */
+        private Postings since(long first) {
+            Postings copy = new Postings();
+            Cursor cursor = cursor();
+
+            for (long offset = cursor.advance(first); offset >= 0; offset = cursor.advance(offset + 1)) {
+                copy.add(offset);
+            }
+
+            return copy.size == 0 ? null : copy;
+        }
+    }
+
+    /**
+     * Forward-only decoder of a snapshot of the postings.
+     */
+    private static final class Cursor {
+        private final byte[] data;
+        private final int size;
+        private int position;
+        private long current = -1;
+
+        private Cursor(byte[] data, int size) {
+            this.data = data;
+            this.size = size;
+        }
+
+        /**
+         * Move to the first offset at or after the target.
+         *
+         * @return The offset, or -1 if there's no more.
+         */
+        private long advance(long target) {
+            while (current < target) {
+                if (position >= size) {
+                    return -1;
+                }
+
+                long delta = 0;
+                int shift = 0;
+                byte b;
+
+                do {
+                    b = data[position++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+
+                current += delta;
+            }
+
+            return current;
+        }
+    }
+
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<String, Postings> senders = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Offset of the next message to index, written by the indexing thread only.
+     */
+    private volatile long nextOffset;
+
+    /**
+     * Offsets before it are removed from the postings, accessed by the indexing thread only.
+     */
+    private long prunedOffset;
+
+    private volatile long indexedCount;
+
+    /**
+     * Split the text into terms.
+     *
+     * @param text The text.
+     * @return The distinct terms, in the order of appearance.
+     */
+    public static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int wordStart = -1;
+
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            boolean ideographic = Character.isIdeographic(codePoint);
+            boolean wordPart = !ideographic && Character.isLetterOrDigit(codePoint);
+
+            if (!wordPart && wordStart >= 0) {
+                addToken(tokens, text.substring(wordStart, i));
+                wordStart = -1;
+            } else if (wordPart && wordStart < 0) {
+                wordStart = i;
+            }
+
+            if (ideographic) {
+                tokens.add(new String(Character.toChars(codePoint)));
+            }
+
+            i += Character.charCount(codePoint);
+        }
+
+        return tokens;
+    }
+
+    private static void addToken(Set<String> tokens, String word) {
+        if (word.length() <= MAX_TERM_LENGTH) {
+            tokens.add(word.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Index the messages appended to the history since the last update.
+     * Should be called by one thread at a time.
+     *
+     * @param historyLog The history.
+     * @return The number of newly indexed messages.
+     */
+    public int update(ChatHistoryLog historyLog) {
+        long firstOffset = historyLog.firstOffset();
+
+        if (firstOffset > prunedOffset) {
+            prune(firstOffset);
+        }
+
+        int indexed = 0;
+        List<ChatHistoryLog.Entry> entries;
+
+        // Reads and tokenizes without the lock, so the queries only wait for the appending.
+        while (!(entries = historyLog.read(nextOffset, BATCH_SIZE)).isEmpty()) {
+            List<Set<String>> tokens = new ArrayList<>(entries.size());
+
+            for (ChatHistoryLog.Entry entry : entries) {
+                tokens.add(tokenize(entry.text()));
+            }
+
+            lock.writeLock().lock();
+
+            try {
+                for (int i = 0; i < entries.size(); i++) {
+                    long offset = entries.get(i).offset();
+
+                    for (String term : tokens.get(i)) {
+                        terms.computeIfAbsent(term, k -> new Postings()).add(offset);
+                    }
+
+                    senders.computeIfAbsent(entries.get(i).senderName().toLowerCase(Locale.ROOT),
+                            k -> new Postings()).add(offset);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            nextOffset = entries.get(entries.size() - 1).offset() + 1;
+            indexed += entries.size();
+        }
+
+        indexedCount += indexed;
+
+        return indexed;
+    }
+
+    /**
+     * Remove the offsets of the messages deleted from the history. The lists are rebuilt without the lock,
+     * since they're changed by the indexing thread only.
+     */
+    private void prune(long firstOffset) {
+        Map<String, Postings> prunedTerms = pruneAll(terms, firstOffset);
+        Map<String, Postings> prunedSenders = pruneAll(senders, firstOffset);
+
+        lock.writeLock().lock();
+
+        try {
+            apply(terms, prunedTerms);
+            apply(senders, prunedSenders);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        prunedOffset = firstOffset;
+    }
+
+    private static Map<String, Postings> pruneAll(Map<String, Postings> postingsMap, long firstOffset) {
+        Map<String, Postings> pruned = new HashMap<>();
+
+        for (Map.Entry<String, Postings> entry : postingsMap.entrySet()) {
+            Postings postings = entry.getValue();
+            Cursor cursor = postings.cursor();
+
+            // Unchanged if the oldest offset is kept.
+            if (cursor.advance(0) < firstOffset) {
+                pruned.put(entry.getKey(), postings.since(firstOffset));
+            }
+        }
+
+        return pruned;
+    }
+
+    private static void apply(Map<String, Postings> postingsMap, Map<String, Postings> pruned) {
+        for (Map.Entry<String, Postings> entry : pruned.entrySet()) {
+            if (entry.getValue() == null) {
+                postingsMap.remove(entry.getKey());
+            } else {
+                postingsMap.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Obtain the number of messages indexed.
+     *
+     * @return The number of messages.
+     */
+    public long getIndexedCount() {
+        return indexedCount;
+    }
+
+    /**
+     * Obtain the number of distinct terms.
+     *
+     * @return The number of terms.
+     */
+    public int getTermCount() {
+        lock.readLock().lock();
+
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the messages matching the query. Only the indexed messages are searched.
+     *
+     * @param historyLog The history.
+     * @param query      The query.
+     * @return The messages, from the oldest to the newest.
+     */
+    public List<ChatHistoryLog.Entry> search(ChatHistoryLog historyLog, Query query) {
+        if (query.limit() <= 0 || query.from() >= query.to()) {
+            return Collections.emptyList();
+        }
+
+        long lower = historyLog.findOffset(query.from());
+        long upper = query.to() == Long.MAX_VALUE ? Long.MAX_VALUE : historyLog.findOffset(query.to());
+
+        List<Cursor> cursors = new ArrayList<>();
+
+        lock.readLock().lock();
+
+        try {
+            upper = Math.min(upper, nextOffset);
+
+            for (String term : tokenize(query.text() == null ? "" : query.text())) {
+                Postings postings = terms.get(term);
+
+                if (postings == null) {
+                    return Collections.emptyList();
+                }
+
+                cursors.add(postings.cursor());
+            }
+
+            if (query.sender() != null) {
+                Postings postings = senders.get(query.sender().toLowerCase(Locale.ROOT));
+
+                if (postings == null) {
+                    return Collections.emptyList();
+                }
+
+                cursors.add(postings.cursor());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (cursors.isEmpty()) {
+            // Nothing but the time range.
+            return historyLog.read(Math.max(lower, upper - query.limit()), (int) Math.min(query.limit(),
+                    Math.max(0, upper - lower)));
+        }
+
+        ArrayDeque<Long> matches = intersect(cursors, lower, upper, query.limit());
+        List<ChatHistoryLog.Entry> results = new ArrayList<>(matches.size());
+
+        for (long offset : matches) {
+            List<ChatHistoryLog.Entry> entry = historyLog.read(offset, 1);
+
+            // Skips the messages deleted from the history.
+            if (!entry.isEmpty() && entry.get(0).offset() == offset) {
+                results.add(entry.get(0));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Find the offsets in all the postings, keep the latest ones.
+     */
+    private static ArrayDeque<Long> intersect(List<Cursor> cursors, long lower, long upper, int limit) {
+        ArrayDeque<Long> matches = new ArrayDeque<>(Math.min(limit, 256));
+        long candidate = lower;
+
+        while (candidate < upper) {
+            boolean matched = true;
+
+            for (Cursor cursor : cursors) {
+                long offset = cursor.advance(candidate);
+
+                if (offset < 0) {
+                    return matches;
+                }
+
+                if (offset != candidate) {
+                    candidate = offset;
+                    matched = false;
+                    break;
+                }
+            }
+
+            if (matched) {
+                if (matches.size() == limit) {
+                    matches.removeFirst();
+                }
+
+                matches.addLast(candidate);
+                candidate++;
+            }
+        }
+
+        return matches;
+    }
+}
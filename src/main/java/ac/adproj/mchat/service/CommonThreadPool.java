@@ -21,6 +21,7 @@ import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Thread pool for scattered tasks.
@@ -30,52 +31,47 @@ import java.util.concurrent.*;
  */
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class CommonThreadPool {
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+
     /**
-     * Mutex to make sure that the comment variable won't be "invaded" by other thread.
+     * Hands the tasks to the threads directly. With a queue, the pool only adds threads once the queue is full,
+     * so a task could wait behind the long-running ones (like the distributing service).
      */
-    private static final byte[] mutex = new byte[1];
-    private static int threadNumber = 0;
-
-    private static final BlockingQueue<Runnable> runnableLinkedBlockingQueue = new LinkedBlockingQueue<>(16);
-    private static String comment = "";
-
-    private static final ThreadFactory threadFactory = r -> {
-        synchronized (mutex) {
-            threadNumber++;
-
-            String threadName = "ScatteredTask - #" + threadNumber + (comment.isEmpty() ? "" : " - " + comment);
-
-            Thread t = new Thread(r, threadName);
+    private static final BlockingQueue<Runnable> handOffQueue = new SynchronousQueue<>();
 
-            comment = "";
+    private static final ThreadFactory threadFactory = r -> new Thread(r, "ScatteredTask - #" + threadNumber.incrementAndGet());
 
-            return t;
-        }
-    };
-
-    static ExecutorService threadPool = new ThreadPoolExecutor(3, 8, 1, TimeUnit.MINUTES, runnableLinkedBlockingQueue, threadFactory);
+    static ExecutorService threadPool = new ThreadPoolExecutor(3, 32, 1, TimeUnit.MINUTES, handOffQueue, threadFactory);
 
     /**
      * Commit task to the thread pool.
      *
      * @param r Runnable task to run.
      */
-    public static synchronized void execute(Runnable r) {
+    public static void execute(Runnable r) {
         threadPool.execute(r);
     }
 
     /**
-     * Commit task to the thread pool.
+     * Commit task to the thread pool. The statement is appended to the name of the thread while the task runs,
+     * since the threads are reused.
      *
      * @param r    Runnable task to run.
      * @param stmt The statement part in the thread name.
      */
-    public static synchronized void execute(Runnable r, String stmt) {
-        synchronized (mutex) {
-            comment = stmt;
-        }
-
-        threadPool.execute(r);
+    public static void execute(Runnable r, String stmt) {
+        threadPool.execute(() -> {
+            Thread current = Thread.currentThread();
+            String threadName = current.getName();
+
+            current.setName(threadName + " - " + stmt);
+
+            try {
+                r.run();
+            } finally {
+                current.setName(threadName);
+            }
+        });
     }
 
     /**
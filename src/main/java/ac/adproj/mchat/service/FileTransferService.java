@@ -0,0 +1,591 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.model.ChatEvent;
+import ac.adproj.mchat.model.ChatSession;
+import ac.adproj.mchat.model.Protocol;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static ac.adproj.mchat.model.Protocol.FILE_FIELD_SEPARATOR;
+
+/**
+ * <p>
+ * Chunked file transfer between the users, through the chat connections.
+ * </p>
+ *
+ * <p>
+ * The sender offers the file ({@link Protocol#FILE_OFFER_HEADER}), and sends the chunks within the window
+ * granted by the acknowledgements ({@link Protocol#FILE_ACK_HEADER}). The chunks are written to a spool file
+ * as they arrive. Offering the same transfer ID again resumes the transfer from the acknowledged offset.
+ * </p>
+ *
+ * <p>
+ * When the file is complete, it's moved into the {@link AttachmentStore} (the hash is computed as the chunks
+ * arrive), so the same file sent many times is stored once, and can be downloaded from the web server as well
+ * ({@link Protocol#ATTACHMENT_PATH}). The stored file is mapped read-only once, and the recipients are notified
+ * ({@link Protocol#FILE_READY_HEADER}). Recipients download the file by requesting ranges
+ * ({@link Protocol#FILE_GET_HEADER}), at most one window per request, so the download can be paced and resumed
+ * by the recipient. Chunks are sent as views of the shared mapping, the data is never copied onto the heap.
+ * </p>
+ *
+ * <p>
+ * The chunks are relayed by the threads of this service, so large transfers don't occupy the threads
+ * handling chat messages. Configured with the system properties {@value #DIRECTORY_PROPERTY},
+ * {@value #MAX_SIZE_PROPERTY}, {@value #CHUNK_SIZE_PROPERTY}, {@value #WINDOW_PROPERTY},
+ * {@value #MAX_TRANSFERS_PROPERTY}, {@value #TTL_PROPERTY} and {@value #THREADS_PROPERTY}.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+public class FileTransferService {
+    /**
+     * Name of the system property of the directory of the spool files.
+     */
+    public static final String DIRECTORY_PROPERTY = "mchat.transfer.dir";
+
+    /**
+     * Name of the system property of the max size of a file, in bytes.
+     */
+    public static final String MAX_SIZE_PROPERTY = "mchat.transfer.maxSize";
+
+    /**
+     * Name of the system property of the size of the chunks sent to the recipients, in bytes.
+     */
+    public static final String CHUNK_SIZE_PROPERTY = "mchat.transfer.chunkSize";
+
+    /**
+     * Name of the system property of the max number of bytes in flight, in bytes.
+     */
+    public static final String WINDOW_PROPERTY = "mchat.transfer.window";
+
+    /**
+     * Name of the system property of the max number of transfers kept by the server.
+     */
+    public static final String MAX_TRANSFERS_PROPERTY = "mchat.transfer.maxTransfers";
+
+    /**
+     * Name of the system property of the time to keep an idle transfer, in milliseconds.
+     */
+    public static final String TTL_PROPERTY = "mchat.transfer.ttl";
+
+    /**
+     * Name of the system property of the number of the relaying threads.
+     */
+    public static final String THREADS_PROPERTY = "mchat.transfer.threads";
+
+    private static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+    private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    private static final int DEFAULT_WINDOW = 256 * 1024;
+    private static final int DEFAULT_MAX_TRANSFERS = 64;
+    private static final long DEFAULT_TTL = 60L * 60 * 1000;
+
+    private static final String SPOOL_SUFFIX = ".part";
+
+    private static final Pattern TRANSFER_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    /**
+     * Holder of instance.
+     */
+    private static class Holder {
+        private static final FileTransferService INSTANCE = new FileTransferService(
+                Path.of(System.getProperty(DIRECTORY_PROPERTY,
+                        Path.of(System.getProperty("java.io.tmpdir"), "acmc-transfer").toString())),
+                AttachmentStore.getInstance(),
+                Long.getLong(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE),
+                Integer.getInteger(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE),
+                Integer.getInteger(WINDOW_PROPERTY, DEFAULT_WINDOW),
+                Integer.getInteger(MAX_TRANSFERS_PROPERTY, DEFAULT_MAX_TRANSFERS),
+                Long.getLong(TTL_PROPERTY, DEFAULT_TTL),
+                Integer.getInteger(THREADS_PROPERTY, 2));
+    }
+
+    /**
+     * State of a transfer, guarded by itself.
+     */
+    private static final class Transfer {
+        private final String id;
+        private final String senderName;
+
+        /**
+         * UUID of the latest session of the sender, which doesn't need the notice.
+         */
+        private volatile String senderUuid;
+
+        /**
+         * Name of the recipient, or null for everyone.
+         */
+        private final String target;
+        private final String fileName;
+        private final long size;
+        private final Path spool;
+
+        private FileChannel channel;
+        private final MessageDigest digest = AttachmentStore.newDigest();
+        private long received;
+        private long acknowledged;
+        private boolean resyncRequested;
+
+        /**
+         * Key of the complete file in the attachment store, the transfer holds a reference of it.
+         */
+        private String hash;
+
+        /**
+         * Read-only mapping of the complete file, shared by the recipients.
+         */
+        private volatile ByteBuffer mapping;
+
+        private volatile long lastActive;
+
+        private Transfer(String id, ChatSession sender, String target, String fileName, long size, Path spool) {
+            this.id = id;
+            this.senderName = sender.getName();
+            this.senderUuid = sender.getUuid();
+            this.target = target;
+            this.fileName = fileName;
+            this.size = size;
+            this.spool = spool;
+            this.lastActive = System.currentTimeMillis();
+        }
+
+        private boolean isComplete() {
+            return mapping != null;
+        }
+    }
+
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>(16);
+
+    private final Path directory;
+    private final AttachmentStore store;
+    private final long maxSize;
+    private final int chunkSize;
+    private final int window;
+    private final int maxTransfers;
+    private final long ttl;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    FileTransferService(Path directory, AttachmentStore store, long maxSize, int chunkSize, int window, int maxTransfers, long ttl,
+                        int threads) {
+        if (maxSize > Integer.MAX_VALUE || chunkSize <= 0 || window < chunkSize) {
+            throw new IllegalArgumentException("Invalid file transfer configuration.");
+        }
+
+        this.directory = directory;
+        this.store = store;
+        this.maxSize = maxSize;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.maxTransfers = maxTransfers;
+        this.ttl = ttl;
+
+        var threadNumber = new AtomicInteger(0);
+
+        executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "File Transfer Thread - " + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+
+        executor.scheduleWithFixedDelay(this::purgeExpired, 1, 1, TimeUnit.MINUTES);
+
+        removeSpoolFiles();
+    }
+
+    /**
+     * Obtain the only instance of this class.
+     *
+     * @return The instance.
+     */
+    public static FileTransferService getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Remove the spool files left by the previous run, the transfers can't be resumed after restarting.
+     */
+    private void removeSpoolFiles() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files.filter(p -> p.toString().endsWith(SPOOL_SUFFIX))::iterator) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to remove the spool files in {}", directory, e);
+        }
+    }
+
+    /**
+     * Handle the offer of a file. Replies the acknowledgement or the error to the sender.
+     *
+     * @param sender     The sender.
+     * @param transferId ID of the transfer, chosen by the sender.
+     * @param target     Name of the recipient, or {@link Protocol#BROADCAST_MESSAGE_UUID} for everyone.
+     * @param size       Size of the file, in bytes.
+     * @param fileName   Name of the file.
+     */
+    public void offer(ChatSession sender, String transferId, String target, long size, String fileName) {
+        if (!TRANSFER_ID_PATTERN.matcher(transferId).matches()) {
+            sendError(sender, transferId, "Invalid transfer ID.");
+            return;
+        }
+
+        Transfer existing = transfers.get(transferId);
+
+        if (existing != null) {
+            if (!existing.senderName.equals(sender.getName()) || existing.size != size) {
+                sendError(sender, transferId, "Transfer ID is in use.");
+                return;
+            }
+
+            synchronized (existing) {
+                // Resumes from the acknowledged offset.
+                existing.senderUuid = sender.getUuid();
+                existing.resyncRequested = false;
+                existing.acknowledged = existing.received;
+                existing.lastActive = System.currentTimeMillis();
+                sendAck(sender, existing);
+            }
+
+            return;
+        }
+
+        if (size < 0 || size > maxSize) {
+            sendError(sender, transferId, "File size exceeds the limit of " + maxSize + " bytes.");
+            return;
+        }
+
+        String recipient = Protocol.BROADCAST_MESSAGE_UUID.equals(target) ? null : target;
+
+        if (recipient != null && UserManager.getInstance().findSessionByName(recipient).isEmpty()) {
+            sendError(sender, transferId, recipient + " is offline.");
+            return;
+        }
+
+        if (transfers.size() >= maxTransfers) {
+            purgeExpired();
+
+            if (transfers.size() >= maxTransfers) {
+                sendError(sender, transferId, "Too many transfers, try again later.");
+                return;
+            }
+        }
+
+        // Drops the path of the sender.
+        String baseName = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+
+        var transfer = new Transfer(transferId, sender, recipient, baseName.isBlank() ? transferId : baseName, size,
+                directory.resolve(transferId + SPOOL_SUFFIX));
+
+        if (transfers.putIfAbsent(transferId, transfer) != null) {
+            sendError(sender, transferId, "Transfer ID is in use.");
+            return;
+        }
+
+        synchronized (transfer) {
+            try {
+                Files.createDirectories(directory);
+                transfer.channel = FileChannel.open(transfer.spool, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+                if (size == 0) {
+                    complete(transfer);
+                }
+            } catch (IOException e) {
+                log.error("Failed to create the spool file of transfer {}", transferId, e);
+                abort(transfer);
+                sendError(sender, transferId, "Server error.");
+                return;
+            }
+
+            sendAck(sender, transfer);
+        }
+    }
+
+    /**
+     * Write the data of the file. The data may be a part of a chunk, the rest of the chunk follows
+     * with the offset advanced.
+     *
+     * @param sender     The sender.
+     * @param transferId ID of the transfer.
+     * @param offset     Offset of the data in the file.
+     * @param data       The data, consumed by this method.
+     */
+    public void receive(ChatSession sender, String transferId, long offset, ByteBuffer data) {
+        Transfer transfer = transfers.get(transferId);
+
+        if (transfer == null || !transfer.senderName.equals(sender.getName())) {
+            log.debug("Dropped {} bytes of the unknown transfer {}", data.remaining(), transferId);
+            return;
+        }
+
+        synchronized (transfer) {
+            if (transfer.isComplete() || transfer.channel == null) {
+                return;
+            }
+
+            if (offset > transfer.received) {
+                // Something is missing, asks the sender to continue from the received offset (once).
+                if (!transfer.resyncRequested) {
+                    transfer.resyncRequested = true;
+                    transfer.acknowledged = transfer.received;
+                    sendAck(sender, transfer);
+                }
+
+                return;
+            }
+
+            long skipped = transfer.received - offset;
+
+            if (skipped >= data.remaining()) {
+                // Sent already.
+                return;
+            }
+
+            data.position(data.position() + (int) skipped);
+
+            if (transfer.received + data.remaining() > transfer.size) {
+                abort(transfer);
+                sendError(sender, transferId, "Data exceeds the file size.");
+                return;
+            }
+
+            try {
+                transfer.digest.update(data.duplicate());
+
+                while (data.hasRemaining()) {
+                    transfer.received += transfer.channel.write(data, transfer.received);
+                }
+
+                transfer.resyncRequested = false;
+                transfer.lastActive = System.currentTimeMillis();
+
+                if (transfer.received == transfer.size) {
+                    complete(transfer);
+                    sendAck(sender, transfer);
+                    announce(transfer);
+                } else if (transfer.received - transfer.acknowledged >= window / 2) {
+                    sendAck(sender, transfer);
+                }
+            } catch (IOException e) {
+                log.error("Failed to write the spool file of transfer {}", transferId, e);
+                abort(transfer);
+                sendError(sender, transferId, "Server error.");
+            }
+        }
+    }
+
+    /**
+     * Send a range of the complete file to the recipient, in the relaying threads.
+     *
+     * @param recipient  The recipient.
+     * @param transferId ID of the transfer.
+     * @param offset     Offset of the range.
+     * @param length     Length of the range, at most one window is sent.
+     */
+    public void request(ChatSession recipient, String transferId, long offset, long length) {
+        Transfer transfer = transfers.get(transferId);
+        ByteBuffer mapping = transfer == null ? null : transfer.mapping;
+
+        if (mapping == null || !isRecipient(transfer, recipient)) {
+            sendError(recipient, transferId, "No such file.");
+            return;
+        }
+
+        if (offset < 0 || offset > transfer.size) {
+            sendError(recipient, transferId, "Invalid offset.");
+            return;
+        }
+
+        long end = offset + Math.min(Math.max(length, 0), Math.min(window, transfer.size - offset));
+        transfer.lastActive = System.currentTimeMillis();
+
+        try {
+            executor.execute(() -> {
+                try {
+                    for (long position = offset; position < end; position += chunkSize) {
+                        int chunkLength = (int) Math.min(chunkSize, end - position);
+                        recipient.sendChunk(transferId, position, mapping.slice((int) position, chunkLength));
+                    }
+                } catch (IOException e) {
+                    log.info("Failed to send transfer {} to {}: {}", transferId, recipient.getName(), e.toString());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sendError(recipient, transferId, "Server is shutting down.");
+        }
+    }
+
+    private static boolean isRecipient(Transfer transfer, ChatSession session) {
+        return transfer.target == null || transfer.target.equals(session.getName())
+                || transfer.senderName.equals(session.getName());
+    }
+
+    /**
+     * Store and map the complete file, the caller must hold the lock of the transfer.
+     */
+    private void complete(Transfer transfer) throws IOException {
+        transfer.channel.close();
+        transfer.channel = null;
+
+        String hash = HexFormat.of().formatHex(transfer.digest.digest());
+        store.put(transfer.spool, hash);
+        transfer.hash = hash;
+
+        transfer.mapping = store.open(hash).orElseThrow(() -> new IOException("Attachment is missing: " + hash));
+    }
+
+    private void announce(Transfer transfer) {
+        String ready = Protocol.FILE_READY_HEADER + transfer.id + FILE_FIELD_SEPARATOR + transfer.senderName
+                + FILE_FIELD_SEPARATOR + transfer.size + FILE_FIELD_SEPARATOR + transfer.fileName;
+        String notice = "[文件] " + transfer.fileName + " (" + transfer.size + " 字节) " + Protocol.ATTACHMENT_PATH
+                + transfer.hash + "?name=" + URLEncoder.encode(transfer.fileName, StandardCharsets.UTF_8);
+
+        if (transfer.target == null) {
+            MessageFanout.getInstance().broadcast(ready, transfer.senderUuid);
+            MessageFanout.getInstance().broadcast(Protocol.MESSAGE_HEADER_LEFT_HALF + transfer.senderName
+                    + Protocol.MESSAGE_HEADER_MIDDLE_HALF + Protocol.MESSAGE_HEADER_RIGHT_HALF + notice,
+                    transfer.senderUuid);
+        } else {
+            UserManager.getInstance().findSessionByName(transfer.target).ifPresent(target -> {
+                try {
+                    target.send(ready);
+                    target.send(Protocol.MESSAGE_HEADER_LEFT_HALF + transfer.senderName + " -> " + transfer.target
+                            + " (私聊)" + Protocol.MESSAGE_HEADER_MIDDLE_HALF + Protocol.MESSAGE_HEADER_RIGHT_HALF
+                            + notice);
+                } catch (IOException e) {
+                    log.warn("Failed to notify {} of transfer {}", transfer.target, transfer.id, e);
+                }
+            });
+        }
+
+        try {
+            MessageDistributor.getInstance().publish(ChatEvent.system(transfer.senderName + " sent "
+                    + transfer.fileName + " (" + transfer.size + " bytes) to "
+                    + (transfer.target == null ? "everyone" : transfer.target)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendAck(ChatSession session, Transfer transfer) {
+        transfer.acknowledged = transfer.received;
+
+        send(session, Protocol.FILE_ACK_HEADER + transfer.id + FILE_FIELD_SEPARATOR + transfer.received
+                + FILE_FIELD_SEPARATOR + window);
+    }
+
+    private static void sendError(ChatSession session, String transferId, String reason) {
+        send(session, Protocol.FILE_ERROR_HEADER + transferId + FILE_FIELD_SEPARATOR + reason);
+    }
+
+    private static void send(ChatSession session, String message) {
+        try {
+            session.send(message);
+        } catch (IOException e) {
+            log.warn("Failed to send file transfer message to {}", session.getName(), e);
+        }
+    }
+
+    private void abort(Transfer transfer) {
+        transfers.remove(transfer.id, transfer);
+
+        synchronized (transfer) {
+            try {
+                if (transfer.channel != null) {
+                    transfer.channel.close();
+                    transfer.channel = null;
+                }
+
+                if (transfer.hash != null) {
+                    store.release(transfer.hash);
+                    transfer.hash = null;
+                    transfer.mapping = null;
+                }
+
+                Files.deleteIfExists(transfer.spool);
+            } catch (IOException e) {
+                log.warn("Failed to remove the spool file of transfer {}", transfer.id, e);
+            }
+        }
+    }
+
+    /**
+     * Remove the transfers idle for longer than the TTL.
+     */
+    public void purgeExpired() {
+        long deadline = System.currentTimeMillis() - ttl;
+
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.lastActive < deadline) {
+                log.info("Transfer {} ({}) expired.", transfer.id, transfer.fileName);
+                abort(transfer);
+            }
+        }
+    }
+
+    /**
+     * Obtain the number of transfers kept by the server.
+     *
+     * @return The number of transfers.
+     */
+    public int size() {
+        return transfers.size();
+    }
+
+    /**
+     * Obtain the size of the chunks sent to the recipients.
+     *
+     * @return The size, in bytes.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Obtain the max number of bytes in flight.
+     *
+     * @return The window, in bytes.
+     */
+    public int getWindow() {
+        return window;
+    }
+}
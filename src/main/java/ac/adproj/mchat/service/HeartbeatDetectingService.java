@@ -17,7 +17,6 @@
 
 package ac.adproj.mchat.service;
 
-import ac.adproj.mchat.model.Protocol;
 import ac.adproj.mchat.model.User;
 import ac.adproj.mchat.protocol.ServerListener;
 import lombok.extern.slf4j.Slf4j;
@@ -46,13 +45,10 @@ public class HeartbeatDetectingService implements Runnable {
 
         List<User> usersToRemove = new LinkedList<>();
 
-        for (User u : UserManager.getInstance()) {
-            if (System.currentTimeMillis() - u.getKeepAlivePackageTimestamp().get() > THIRTY_SECONDS) {
-                // Broadcast message.
-
-                serverListener.sendMessage("LOST connection to " + u.getName(),
-                        Protocol.BROADCAST_MESSAGE_UUID);
+        UserManager userManager = UserManager.getInstance();
 
+        for (User u : userManager) {
+            if (System.currentTimeMillis() - u.getKeepAliveTimestamp() > THIRTY_SECONDS) {
                 log.info("Lost connection from Name: {}, UUID: {}", u.getName(), u.getUuid());
 
                 usersToRemove.add(u);
@@ -60,7 +56,7 @@ public class HeartbeatDetectingService implements Runnable {
         }
 
         for (var u : usersToRemove) {
-            UserManager.getInstance().deleteUserProfile(u.getUuid());
+            serverListener.teardownSession(u, "LOST connection to " + u.getName());
         }
     }
 }
@@ -17,24 +17,72 @@
 
 package ac.adproj.mchat.service;
 
-import ac.adproj.mchat.handler.MessageType;
+import ac.adproj.mchat.model.ChatEvent;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Provide the functionality of broadcasting message to many subscribers. 
+ * <p>
+ * Provide the functionality of broadcasting message to many subscribers.
  * (Like broadcast mechanism in Android)
- * 
+ * </p>
+ *
+ * <p>
+ * The messages are structured {@link ChatEvent} objects, so subscribers can filter and route them
+ * by sender and kind.
+ * </p>
+ *
+ * <p>
+ * Messages are queued in a {@link MpscRingBuffer}, and the distributing service hands everything available
+ * to the subscribers in one batch. The capacity and the wait strategy can be configured with the system
+ * properties {@value #CAPACITY_PROPERTY} and {@value #WAIT_STRATEGY_PROPERTY} (see {@link WaitStrategy#of(String)}).
+ * </p>
+ *
+ * <p>
+ * Every subscriber has its own bounded queue and delivering thread (see {@link Subscription}), so a slow
+ * subscriber doesn't stall the others until its queue is full. Then, by default, the distribution waits for it,
+ * so no event is lost; the subscribers that can afford to miss events opt in to dropping them.
+ * </p>
+ *
  * @author Andy Cheung
  * @since 2020.5.24
  */
 @Slf4j
 public class MessageDistributor {
 
+    /**
+     * Name of the system property of the capacity of the message queue.
+     */
+    public static final String CAPACITY_PROPERTY = "mchat.distributor.capacity";
+
+    /**
+     * Name of the system property of the wait strategy of the message queue.
+     */
+    public static final String WAIT_STRATEGY_PROPERTY = "mchat.distributor.waitStrategy";
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Max number of messages handed to subscribers at once.
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * Default capacity of the queue of a subscriber.
+     */
+    public static final int DEFAULT_SUBSCRIBER_CAPACITY = 1024;
+
+    private static final Metrics.Counter EVENTS_PUBLISHED = Metrics.getInstance().counter(
+            "mchat_distributor_events_published_total", "Events published to the distributor.");
+
+    private static final Metrics.Histogram DISPATCH = Metrics.getInstance().histogram(
+            "mchat_distributor_dispatch_seconds", "Time of handing a batch of events to all the subscribers.");
+
     /**
      * Holder of instance.
      */
@@ -43,9 +91,19 @@ public class MessageDistributor {
     }
 
     private MessageDistributor() {
-        uiMessages = new LinkedBlockingQueue<>();
-        callbacks = new LinkedList<>();
+        events = new MpscRingBuffer<>(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+                WaitStrategy.of(System.getProperty(WAIT_STRATEGY_PROPERTY, "blocking")));
+        subscriptions = new CopyOnWriteArrayList<>();
         CommonThreadPool.execute(new MessageDistributingService(), "Message Distributing Service");
+
+        var metrics = Metrics.getInstance();
+        metrics.gauge("mchat_distributor_queue_depth", "Events waiting in the distributor queue.", events::size);
+        metrics.gauge("mchat_distributor_subscribers", "Registered subscribers.", subscriptions::size);
+        metrics.gauge("mchat_distributor_subscriber_lag", "Events waiting for the subscribers, in total.",
+                () -> subscriptions.stream().mapToLong(Subscription::getLag).sum());
+        metrics.counterFunction("mchat_distributor_subscriber_dropped_total",
+                "Events dropped by the registered subscribers that fell behind.",
+                () -> subscriptions.stream().mapToLong(Subscription::getDropped).sum());
     }
 
     /**
@@ -57,9 +115,9 @@ public class MessageDistributor {
         return Holder.INSTANCE;
     }
 
-    private BlockingQueue<String> uiMessages;
+    private final MpscRingBuffer<ChatEvent> events;
 
-    private LinkedList<SubscriberCallback> callbacks;
+    private final List<Subscription> subscriptions;
 
     /**
      * Message distributing service.
@@ -69,13 +127,20 @@ public class MessageDistributor {
     private class MessageDistributingService implements Runnable {
         @Override
         public void run() {
+            List<ChatEvent> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
             while (true) {
                 try {
-                    String message = uiMessages.take();
+                    batch.clear();
+                    events.awaitAndDrainTo(batch, MAX_BATCH_SIZE);
+
+                    long start = System.nanoTime();
 
-                    for (SubscriberCallback cb : callbacks) {
-                        cb.onMessageReceived(message);
+                    for (Subscription subscription : subscriptions) {
+                        dispatch(subscription, batch);
                     }
+
+                    DISPATCH.recordSince(start);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
 
@@ -91,6 +156,16 @@ public class MessageDistributor {
         }
     }
 
+    private void dispatch(Subscription subscription, List<ChatEvent> batch) throws InterruptedException {
+        for (ChatEvent event : batch) {
+            if (!subscription.enqueue(event)) {
+                subscriptions.remove(subscription);
+                subscription.cancel();
+                return;
+            }
+        }
+    }
+
     /**
      * Defines the callback interface when subscriber receives message.
      * (Like Broadcast receiver in Android.)
@@ -101,48 +176,92 @@ public class MessageDistributor {
     public interface SubscriberCallback {
         /**
          * Callback method.
-         * 
-         * @param uiMessage Processed message that can be displayed directly in UI.
+         *
+         * @param event The event, use {@link ChatEvent#toUiString()} to display it in UI.
+         */
+        void onMessageReceived(ChatEvent event);
+
+        /**
+         * Callback method of a batch of events. Override it to handle the whole batch at once.
+         *
+         * @param events The events in order, only valid until the method returns.
          */
-        void onMessageReceived(String uiMessage);
+        default void onMessagesReceived(List<ChatEvent> events) {
+            for (ChatEvent event : events) {
+                onMessageReceived(event);
+            }
+        }
     }
 
     /**
-     * Send user-friendly message to subscribers.
-     * 
-     * @param message User-friendly message
+     * Send the event to subscribers.
+     *
+     * @param event The event.
      * @throws InterruptedException If the operation is being interrupted.
      */
-    public void sendUiMessage(String message) throws InterruptedException {
-        uiMessages.put(message);
+    public void publish(ChatEvent event) throws InterruptedException {
+        events.put(event);
+        EVENTS_PUBLISHED.increment();
     }
 
     /**
-     * Convenience method of sending user-friendly message from raw protocol message (user message only).
-     * 
-     * @param message Raw "User message" protocol message.
+     * Convenience method of sending user-friendly message to subscribers, as a {@link ChatEvent.Kind#SYSTEM} event.
+     *
+     * @param message User-friendly message
      * @throws InterruptedException If the operation is being interrupted.
      */
-    public void sendRawProtocolMessage(String message) throws InterruptedException {
-        Map<String, String> tresult = MessageType.INCOMING_MESSAGE.tokenize(message);
-        uiMessages.put(tresult.get("uuid") + ": " + tresult.get("messageText"));
+    public void sendUiMessage(String message) throws InterruptedException {
+        publish(ChatEvent.system(message));
     }
 
     /**
-     * Register the subscriber to receive UI messages.
-     * 
+     * Register the subscriber to receive events. If it falls {@value #DEFAULT_SUBSCRIBER_CAPACITY} messages
+     * behind, it misses the new messages ({@link Subscription.OverflowPolicy#DROP_NEWEST}), so it never delays
+     * the distribution. A subscriber that must not lose messages registers with
+     * {@link Subscription.OverflowPolicy#BLOCK} instead.
+     *
      * @param callback The subscriber callback.
+     * @return The subscription.
+     */
+    public Subscription registerSubscriber(SubscriberCallback callback) {
+        return registerSubscriber(callback, DEFAULT_SUBSCRIBER_CAPACITY, Subscription.OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Register the subscriber to receive events.
+     *
+     * @param callback       The subscriber callback.
+     * @param capacity       Max number of events waiting for the subscriber.
+     * @param overflowPolicy What to do when the subscriber falls too far behind.
+     * @return The subscription.
      */
-    public void registerSubscriber(SubscriberCallback callback) {
-        callbacks.add(callback);
+    public Subscription registerSubscriber(SubscriberCallback callback, int capacity,
+                                           Subscription.OverflowPolicy overflowPolicy) {
+        Subscription subscription = new Subscription(callback, capacity, overflowPolicy, MAX_BATCH_SIZE);
+        subscriptions.add(subscription);
+
+        return subscription;
     }
-    
+
     /**
      * Unregister the subscriber.
-     * 
+     *
      * @param callback The subscriber callback.
      */
     public void unregisterSubscriber(SubscriberCallback callback) {
-        callbacks.remove(callback);
+        for (Subscription subscription : subscriptions) {
+            if (subscription.getCallback() == callback && subscriptions.remove(subscription)) {
+                subscription.cancel();
+            }
+        }
+    }
+
+    /**
+     * Obtain the read-only view of the subscriptions, to monitor the lag of subscribers.
+     *
+     * @return The subscriptions.
+     */
+    public Collection<Subscription> getSubscriptions() {
+        return Collections.unmodifiableList(subscriptions);
     }
 }
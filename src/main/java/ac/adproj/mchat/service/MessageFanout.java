@@ -0,0 +1,140 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.model.ChatSession;
+import ac.adproj.mchat.model.OutboundMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * The only place that broadcasts raw protocol messages to the online users.
+ * </p>
+ *
+ * <p>
+ * Every registered session receives the message exactly once, no matter which transport it came in on.
+ * The UTF-8 encoding (TCP) and the binary encoding (binary WebSocket clients) are computed once and shared
+ * (see {@link OutboundMessage}). The text WebSocket clients are sent the string, which Jetty encodes
+ * for every session.
+ * </p>
+ *
+ * <p>
+ * Sending only queues the message on the session (both transports write asynchronously), so a stalled client
+ * never delays the other recipients. A session whose queue is full misses the message. That is logged
+ * when the session starts and stops failing, and every miss is counted in {@code mchat_fanout_failures_total}.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+public class MessageFanout {
+    private static final Metrics.Histogram FANOUT = Metrics.getInstance().histogram(
+            "mchat_fanout_seconds", "Time of broadcasting a message to all the sessions.");
+
+    private static final Metrics.Counter DELIVERIES = Metrics.getInstance().counter(
+            "mchat_fanout_deliveries_total", "Messages handed to the sessions by broadcasting.");
+
+    private static final Metrics.Counter FAILURES = Metrics.getInstance().counter(
+            "mchat_fanout_failures_total", "Failed deliveries of broadcasting.");
+
+    private final UserManager userManager;
+
+    /**
+     * UUIDs of the sessions whose last delivery failed.
+     */
+    private final Set<String> failingSessions = ConcurrentHashMap.newKeySet();
+
+    MessageFanout(UserManager userManager) {
+        this.userManager = userManager;
+    }
+
+    /**
+     * Holder of the instance.
+     */
+    private static class Holder {
+        private static final MessageFanout INSTANCE = new MessageFanout(UserManager.getInstance());
+    }
+
+    /**
+     * Obtain the only instance.
+     *
+     * @return The instance.
+     */
+    public static MessageFanout getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Broadcast the raw protocol message.
+     *
+     * @param text         The raw protocol message.
+     * @param excludedUuid UUID of the session that shouldn't receive the message (usually the sender),
+     *                     or null if none.
+     * @return The number of sessions that the message has been delivered to.
+     */
+    public int broadcast(String text, String excludedUuid) {
+        return broadcast(OutboundMessage.of(text), excludedUuid);
+    }
+
+    /**
+     * Broadcast the message.
+     *
+     * @param message      The message.
+     * @param excludedUuid UUID of the session that shouldn't receive the message (usually the sender),
+     *                     or null if none.
+     * @return The number of sessions that the message has been delivered to.
+     */
+    public int broadcast(OutboundMessage message, String excludedUuid) {
+        long start = System.nanoTime();
+        int delivered = 0;
+
+        for (ChatSession session : userManager.sessions()) {
+            if (session.getUuid().equals(excludedUuid)) {
+                continue;
+            }
+
+            try {
+                session.send(message);
+                delivered++;
+
+                if (failingSessions.remove(session.getUuid())) {
+                    log.info("Broadcasting to session {} recovered.", session.getUuid());
+                }
+            } catch (IOException e) {
+                FAILURES.increment();
+
+                if (failingSessions.add(session.getUuid())) {
+                    log.warn("Failed in broadcasting message, further failures are only counted. [UUID = {}]: {}",
+                            session.getUuid(), e.getMessage());
+                }
+            }
+        }
+
+        if (!failingSessions.isEmpty()) {
+            failingSessions.removeIf(uuid -> userManager.lookupSession(uuid) == null);
+        }
+
+        DELIVERIES.add(delivered);
+        FANOUT.recordSince(start);
+
+        return delivered;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>
+ * Registry of the metrics of the server, exposed in the Prometheus text format (see {@link #writeTo(StringBuilder)}).
+ * </p>
+ *
+ * <p>
+ * The metrics are made for the hot paths: the counters are {@link LongAdder}s, and the histograms have fixed
+ * buckets of {@link LongAdder}s, so recording never allocates or contends on a shared variable.
+ * The metrics are registered once, usually as static fields of the instrumented classes, and registering
+ * the same name and labels again returns the registered metric.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+public final class Metrics {
+    /**
+     * Holder of instance.
+     */
+    private static class Holder {
+        private static final Metrics INSTANCE = new Metrics();
+    }
+
+    /**
+     * Metrics by name and labels, sorted so the metrics of a family are rendered together.
+     */
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    Metrics() {
+    }
+
+    /**
+     * Obtain the only instance of this class.
+     *
+     * @return The instance.
+     */
+    public static Metrics getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * A metric of a family (name), with the labels.
+     */
+    private abstract static class Metric {
+        final String name;
+        final String labels;
+        final String help;
+
+        private Metric(String name, String labels, String help) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void writeSamples(StringBuilder sb);
+    }
+
+    /**
+     * Monotonic counter.
+     *
+     * @author Andy Cheung
+     */
+    public static final class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String labels, String help) {
+            super(name, labels, help);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void writeSamples(StringBuilder sb) {
+            writeSample(sb, name, labels, null, get());
+        }
+    }
+
+    /**
+     * Value read when rendering, as a gauge or a counter maintained elsewhere.
+     */
+    private static final class Function extends Metric {
+        private final String type;
+        private final LongSupplier supplier;
+
+        private Function(String name, String labels, String help, String type, LongSupplier supplier) {
+            super(name, labels, help);
+            this.type = type;
+            this.supplier = supplier;
+        }
+
+        @Override
+        String type() {
+            return type;
+        }
+
+        @Override
+        void writeSamples(StringBuilder sb) {
+            writeSample(sb, name, labels, null, supplier.getAsLong());
+        }
+    }
+
+    /**
+     * Histogram of latencies, with the fixed buckets from 1 microsecond to 10 seconds (1-2-5 steps).
+     *
+     * @author Andy Cheung
+     */
+    public static final class Histogram extends Metric {
+        private static final long[] BOUNDS;
+        private static final String[] BOUND_LABELS;
+
+        static {
+            long[] steps = {1, 2, 5};
+            BOUNDS = new long[7 * steps.length + 1];
+
+            long decade = 1000;
+
+            for (int i = 0; i < BOUNDS.length - 1; i++) {
+                BOUNDS[i] = steps[i % steps.length] * decade;
+
+                if (i % steps.length == steps.length - 1) {
+                    decade *= 10;
+                }
+            }
+
+            BOUNDS[BOUNDS.length - 1] = 10_000_000_000L;
+
+            BOUND_LABELS = new String[BOUNDS.length];
+
+            for (int i = 0; i < BOUNDS.length; i++) {
+                BOUND_LABELS[i] = BigDecimal.valueOf(BOUNDS[i], 9).stripTrailingZeros().toPlainString();
+            }
+        }
+
+        /**
+         * Counts of the buckets, the last one is +Inf.
+         */
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(String name, String labels, String help) {
+            super(name, labels, help);
+
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Record a latency.
+         *
+         * @param nanos The latency, in nanoseconds.
+         */
+        public void record(long nanos) {
+            int index = Arrays.binarySearch(BOUNDS, nanos);
+            buckets[index >= 0 ? index : -index - 1].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Record the time elapsed since the start.
+         *
+         * @param startNanos The start, obtained by {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Obtain the number of recorded latencies.
+         *
+         * @return The count.
+         */
+        public long getCount() {
+            long count = 0;
+
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+
+            return count;
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void writeSamples(StringBuilder sb) {
+            long cumulative = 0;
+
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                writeSample(sb, name + "_bucket", labels,
+                        "le=\"" + (i < BOUND_LABELS.length ? BOUND_LABELS[i] : "+Inf") + "\"", cumulative);
+            }
+
+            // The count is the sum of the buckets, so the samples are consistent.
+            sb.append(name).append("_sum");
+            appendLabels(sb, labels, null);
+            sb.append(' ').append(String.format(Locale.ROOT, "%.9f", sumNanos.sum() / 1e9)).append('\n');
+
+            writeSample(sb, name + "_count", labels, null, cumulative);
+        }
+    }
+
+    /**
+     * Register a counter.
+     *
+     * @param name   Name of the metric, ending with _total.
+     * @param help   Description of the metric.
+     * @param labels The labels, like {@code transport="tcp"}, or empty.
+     * @return The counter.
+     */
+    public Counter counter(String name, String help, String labels) {
+        return register(new Counter(name, labels, help));
+    }
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    /**
+     * Register a counter for every constant of the enum, labeled with the lower-cased names.
+     *
+     * @param name      Name of the metrics, ending with _total.
+     * @param help      Description of the metrics.
+     * @param labels    Common labels, or empty.
+     * @param labelName Name of the label of the constants.
+     * @param type      The enum.
+     * @return The counters, indexed by the ordinals.
+     */
+    public <E extends Enum<E>> Counter[] counters(String name, String help, String labels, String labelName,
+                                                  Class<E> type) {
+        E[] constants = type.getEnumConstants();
+        Counter[] counters = new Counter[constants.length];
+
+        for (E constant : constants) {
+            String label = labelName + "=\"" + constant.name().toLowerCase(Locale.ROOT) + "\"";
+            counters[constant.ordinal()] = counter(name, help, labels.isEmpty() ? label : labels + "," + label);
+        }
+
+        return counters;
+    }
+
+    /**
+     * Register a latency histogram.
+     *
+     * @param name   Name of the metric, ending with _seconds.
+     * @param help   Description of the metric.
+     * @param labels The labels, or empty.
+     * @return The histogram.
+     */
+    public Histogram histogram(String name, String help, String labels) {
+        return register(new Histogram(name, labels, help));
+    }
+
+    public Histogram histogram(String name, String help) {
+        return histogram(name, help, "");
+    }
+
+    /**
+     * Register a gauge, read when rendering. Registering it again replaces the supplier.
+     *
+     * @param name     Name of the metric.
+     * @param help     Description of the metric.
+     * @param supplier Supplier of the value.
+     */
+    public void gauge(String name, String help, LongSupplier supplier) {
+        metrics.put(key(name, ""), new Function(name, "", help, "gauge", supplier));
+    }
+
+    /**
+     * Register a counter maintained elsewhere, read when rendering. Registering it again replaces the supplier.
+     *
+     * @param name     Name of the metric, ending with _total.
+     * @param help     Description of the metric.
+     * @param supplier Supplier of the value.
+     */
+    public void counterFunction(String name, String help, LongSupplier supplier) {
+        metrics.put(key(name, ""), new Function(name, "", help, "counter", supplier));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <M extends Metric> M register(M metric) {
+        Metric existing = metrics.putIfAbsent(key(metric.name, metric.labels), metric);
+
+        if (existing == null) {
+            return metric;
+        }
+
+        if (existing.getClass() != metric.getClass()) {
+            throw new IllegalArgumentException("Metric " + metric.name + " is registered as " + existing.type());
+        }
+
+        return (M) existing;
+    }
+
+    private static String key(String name, String labels) {
+        // The space sorts before the characters allowed in names, so a family isn't split by a longer name.
+        return name + " " + labels;
+    }
+
+    /**
+     * Render all the metrics in the Prometheus text format (version 0.0.4).
+     *
+     * @param sb The destination.
+     */
+    public void writeTo(StringBuilder sb) {
+        String family = null;
+
+        for (Metric metric : metrics.values()) {
+            if (!metric.name.equals(family)) {
+                family = metric.name;
+                sb.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                sb.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            }
+
+            metric.writeSamples(sb);
+        }
+    }
+
+    private static void writeSample(StringBuilder sb, String name, String labels, String extraLabel, long value) {
+        sb.append(name);
+        appendLabels(sb, labels, extraLabel);
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void appendLabels(StringBuilder sb, String labels, String extraLabel) {
+        if (labels.isEmpty() && extraLabel == null) {
+            return;
+        }
+
+        sb.append('{').append(labels);
+
+        if (extraLabel != null) {
+            if (!labels.isEmpty()) {
+                sb.append(',');
+            }
+
+            sb.append(extraLabel);
+        }
+
+        sb.append('}');
+    }
+}
@@ -0,0 +1,207 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Bounded, preallocated multi-producer single-consumer ring buffer.
+ * </p>
+ *
+ * <p>
+ * Producers claim a slot with a CAS on the tail, and publish it with the sequence number of the slot,
+ * so no lock is taken and no node is allocated per element. The only consumer drains everything
+ * available in one batch.
+ * </p>
+ *
+ * @param <E> Type of the elements.
+ * @author Andy Cheung
+ */
+public final class MpscRingBuffer<E> {
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * Only written by the consumer thread.
+     */
+    private volatile long head = 0;
+
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * Create the ring buffer.
+     *
+     * @param capacity     The capacity, rounded up to the power of 2.
+     * @param waitStrategy The strategy of waiting when the buffer is empty or full.
+     */
+    public MpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+
+        int actualCapacity = Integer.highestOneBit(capacity - 1) << 1;
+
+        if (capacity == 1) {
+            actualCapacity = 1;
+        }
+
+        this.elements = new Object[actualCapacity];
+        this.sequences = new AtomicLongArray(actualCapacity);
+        this.mask = actualCapacity - 1;
+        this.waitStrategy = waitStrategy;
+
+        for (int i = 0; i < actualCapacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Obtain the capacity.
+     *
+     * @return The capacity.
+     */
+    public int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * Obtain the (approximate) number of elements.
+     *
+     * @return The number of elements.
+     */
+    public int size() {
+        return (int) Math.max(0, Math.min(tail.get() - head, elements.length));
+    }
+
+    public boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    /**
+     * Insert the element if there is space.
+     *
+     * @param e The element, can't be null.
+     * @return True if inserted, false if the ring buffer is full.
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        long position;
+
+        while (true) {
+            position = tail.get();
+
+            int index = (int) (position & mask);
+            long sequence = sequences.get(index);
+
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = e;
+
+                    // Publish the slot.
+                    sequences.set(index, position + 1);
+                    waitStrategy.signalAll();
+
+                    return true;
+                }
+            } else if (sequence < position) {
+                // The consumer hasn't released the slot yet.
+                return false;
+            }
+
+            // Otherwise another producer has claimed the slot, retry.
+        }
+    }
+
+    /**
+     * Insert the element, waiting for space if the ring buffer is full.
+     *
+     * @param e The element, can't be null.
+     * @throws InterruptedException If the operation is being interrupted.
+     */
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            waitStrategy.waitFor(this::hasSpace);
+        }
+    }
+
+    private boolean hasSpace() {
+        long position = tail.get();
+        return sequences.get((int) (position & mask)) >= position;
+    }
+
+    /**
+     * Move all available elements (up to the limit) to the collection. Consumer thread only.
+     *
+     * @param target   The collection to hold the elements.
+     * @param maxCount The limit of number of elements.
+     * @return The number of elements drained.
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super E> target, int maxCount) {
+        long position = head;
+        int count = 0;
+
+        while (count < maxCount) {
+            int index = (int) (position & mask);
+
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+
+            target.add((E) elements[index]);
+            elements[index] = null;
+
+            // Release the slot for the next lap.
+            sequences.set(index, position + elements.length);
+
+            position++;
+            count++;
+        }
+
+        if (count > 0) {
+            head = position;
+            waitStrategy.signalAll();
+        }
+
+        return count;
+    }
+
+    /**
+     * Wait until at least one element is available, then drain the available elements (up to the limit).
+     * Consumer thread only.
+     *
+     * @param target   The collection to hold the elements.
+     * @param maxCount The limit of number of elements.
+     * @return The number of elements drained.
+     * @throws InterruptedException If the operation is being interrupted.
+     */
+    public int awaitAndDrainTo(Collection<? super E> target, int maxCount) throws InterruptedException {
+        waitStrategy.waitFor(() -> !isEmpty());
+
+        return drainTo(target, maxCount);
+    }
+}
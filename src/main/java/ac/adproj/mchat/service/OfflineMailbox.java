@@ -0,0 +1,401 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.model.ChatSession;
+import ac.adproj.mchat.model.Protocol;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>
+ * Keeps the private messages to the users who are offline, and delivers them when the users register again.
+ * Only the users who unregistered within the TTL can receive the messages, so a mailbox can't be opened
+ * for an arbitrary name.
+ * </p>
+ *
+ * <p>
+ * A mailbox exists only while it has messages, and stores them packed in one byte array as
+ * (time, long) (sender length, int) (sender, UTF-8) (text length, int) (text, UTF-8),
+ * instead of an object per message. When a mailbox holds more than {@value #DEFAULT_MAX_MESSAGES} messages
+ * or {@value #DEFAULT_MAX_BYTES} bytes, or a message is older than the TTL, the oldest messages are dropped.
+ * </p>
+ *
+ * <p>
+ * Configured with the system properties {@value #MAX_MESSAGES_PROPERTY}, {@value #MAX_BYTES_PROPERTY},
+ * {@value #TTL_PROPERTY} (in milliseconds, 1 day by default) and {@value #MAX_MAILBOXES_PROPERTY}.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+public class OfflineMailbox {
+    /**
+     * Name of the system property of the max number of messages in a mailbox.
+     */
+    public static final String MAX_MESSAGES_PROPERTY = "mchat.mailbox.maxMessages";
+
+    /**
+     * Name of the system property of the max size of a mailbox, in bytes.
+     */
+    public static final String MAX_BYTES_PROPERTY = "mchat.mailbox.maxBytes";
+
+    /**
+     * Name of the system property of the time to live of messages, in milliseconds.
+     */
+    public static final String TTL_PROPERTY = "mchat.mailbox.ttl";
+
+    /**
+     * Name of the system property of the max number of mailboxes.
+     */
+    public static final String MAX_MAILBOXES_PROPERTY = "mchat.mailbox.maxMailboxes";
+
+    private static final int DEFAULT_MAX_MESSAGES = 100;
+    private static final int DEFAULT_MAX_BYTES = 64 * 1024;
+    private static final long DEFAULT_TTL = 24L * 60 * 60 * 1000;
+    private static final int DEFAULT_MAX_MAILBOXES = 10000;
+
+    /**
+     * Max number of the recorded departures for each mailbox allowed.
+     */
+    private static final int DEPARTURES_PER_MAILBOX = 16;
+
+    private static final int RECORD_HEADER_SIZE = 8 + 4 + 4;
+
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * Message kept in a mailbox.
+     *
+     * @param sender    Name of the sender.
+     * @param text      The message text.
+     * @param timestamp Time of sending, in milliseconds.
+     * @author Andy Cheung
+     */
+    public record Letter(String sender, String text, long timestamp) {
+    }
+
+    /**
+     * Holder of instance.
+     */
+    private static class Holder {
+        private static final OfflineMailbox INSTANCE = new OfflineMailbox(
+                Integer.getInteger(MAX_MESSAGES_PROPERTY, DEFAULT_MAX_MESSAGES),
+                Integer.getInteger(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES),
+                Long.getLong(TTL_PROPERTY, DEFAULT_TTL),
+                Integer.getInteger(MAX_MAILBOXES_PROPERTY, DEFAULT_MAX_MAILBOXES),
+                System::currentTimeMillis);
+    }
+
+    /**
+     * Packed messages of a user, guarded by the lock of the map entry.
+     */
+    private static final class Mailbox {
+        private ByteBuffer data;
+        private int count;
+
+        private Mailbox(int initialCapacity) {
+            data = ByteBuffer.allocate(initialCapacity);
+        }
+
+        private long oldestTimestamp() {
+            return data.getLong(0);
+        }
+
+        private int size() {
+            return data.position();
+        }
+
+        private void append(long timestamp, byte[] sender, byte[] text) {
+            int recordSize = RECORD_HEADER_SIZE + sender.length + text.length;
+
+            if (data.remaining() < recordSize) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + recordSize));
+                data.flip();
+                data = grown.put(data);
+            }
+
+            data.putLong(timestamp).putInt(sender.length).put(sender).putInt(text.length).put(text);
+            count++;
+        }
+
+        private void removeOldest() {
+            int recordSize = RECORD_HEADER_SIZE + data.getInt(8) + data.getInt(12 + data.getInt(8));
+
+            data.flip().position(recordSize);
+            data.compact();
+            count--;
+        }
+
+        private List<Letter> letters() {
+            List<Letter> letters = new ArrayList<>(count);
+            ByteBuffer view = data.duplicate().flip();
+
+            while (view.hasRemaining()) {
+                long timestamp = view.getLong();
+                byte[] sender = new byte[view.getInt()];
+                view.get(sender);
+                byte[] text = new byte[view.getInt()];
+                view.get(text);
+
+                letters.add(new Letter(new String(sender, StandardCharsets.UTF_8),
+                        new String(text, StandardCharsets.UTF_8), timestamp));
+            }
+
+            return letters;
+        }
+    }
+
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>(16);
+
+    /**
+     * Time when the users unregistered, by name.
+     */
+    private final Map<String, Long> departures = new ConcurrentHashMap<>(16);
+
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long ttl;
+    private final int maxMailboxes;
+    private final LongSupplier clock;
+
+    OfflineMailbox(int maxMessages, int maxBytes, long ttl, int maxMailboxes, LongSupplier clock) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.maxMailboxes = maxMailboxes;
+        this.clock = clock;
+    }
+
+    /**
+     * Obtain the only instance of this class.
+     *
+     * @return The instance.
+     */
+    public static OfflineMailbox getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Record that the user unregistered, so the private messages to the user are kept for the TTL.
+     *
+     * @param name Name of the user.
+     */
+    public void recordDeparture(String name) {
+        if (name == null) {
+            return;
+        }
+
+        int maxDepartures = maxMailboxes * DEPARTURES_PER_MAILBOX;
+
+        if (departures.size() >= maxDepartures && !departures.containsKey(name)) {
+            purgeExpired();
+
+            if (departures.size() >= maxDepartures) {
+                log.debug("Too many users unregistered recently, no offline messages will be kept for {}.", name);
+                return;
+            }
+        }
+
+        departures.put(name, clock.getAsLong());
+    }
+
+    /**
+     * Keep the private message for the offline user.
+     *
+     * @param recipient Name of the recipient.
+     * @param sender    Name of the sender.
+     * @param text      The message text.
+     * @return True if kept, false if the recipient didn't unregister within the TTL, the sender is unknown,
+     * the message is too large, or there are too many mailboxes.
+     */
+    public boolean deposit(String recipient, String sender, String text) {
+        if (sender == null || !isRecentlyDeparted(recipient)) {
+            return false;
+        }
+
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER_SIZE + senderBytes.length + textBytes.length;
+
+        if (recordSize > maxBytes) {
+            return false;
+        }
+
+        if (mailboxes.size() >= maxMailboxes && !mailboxes.containsKey(recipient)) {
+            purgeExpired();
+
+            if (mailboxes.size() >= maxMailboxes) {
+                log.warn("Too many offline mailboxes, the message to {} is rejected.", recipient);
+                return false;
+            }
+        }
+
+        long now = clock.getAsLong();
+
+        mailboxes.compute(recipient, (name, mailbox) -> {
+            if (mailbox == null) {
+                mailbox = new Mailbox(Math.min(maxBytes, Math.max(256, recordSize)));
+            }
+
+            mailbox.append(now, senderBytes, textBytes);
+
+            while (mailbox.count > 0 && (mailbox.count > maxMessages || mailbox.size() > maxBytes
+                    || mailbox.oldestTimestamp() + ttl <= now)) {
+                mailbox.removeOldest();
+            }
+
+            return mailbox.count == 0 ? null : mailbox;
+        });
+
+        // The recipient may have registered in the meantime.
+        UserManager.getInstance().findSessionByName(recipient).ifPresent(this::deliverTo);
+
+        return true;
+    }
+
+    private boolean isRecentlyDeparted(String name) {
+        Long departure = departures.get(name);
+        return departure != null && departure + ttl > clock.getAsLong();
+    }
+
+    /**
+     * Take all messages that are not expired out of the mailbox.
+     *
+     * @param recipient Name of the recipient.
+     * @return The messages, from the oldest to the newest.
+     */
+    public List<Letter> collect(String recipient) {
+        Mailbox mailbox = mailboxes.remove(recipient);
+
+        if (mailbox == null) {
+            return Collections.emptyList();
+        }
+
+        long now = clock.getAsLong();
+
+        return mailbox.letters().stream().filter(letter -> letter.timestamp() + ttl > now).toList();
+    }
+
+    /**
+     * Deliver the messages kept for the session in one message, or one message each if they don't fit
+     * the message size of the session. Does nothing if there are no messages.
+     *
+     * @param session The session just registered.
+     */
+    public void deliverTo(ChatSession session) {
+        List<Letter> letters = collect(session.getName());
+
+        if (letters.isEmpty()) {
+            return;
+        }
+
+        String message = toProtocolMessage(letters);
+        int maxBytes = session.getMaxMessageSize();
+
+        try {
+            if (Utf8Text.length(message) <= maxBytes) {
+                session.send(message);
+            } else {
+                for (Letter letter : letters) {
+                    session.send(toProtocolMessage(letter, maxBytes));
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Error when delivering {} offline messages to {}", letters.size(), session.getName(), e);
+        }
+    }
+
+    /**
+     * Render the messages as one chatting message.
+     *
+     * @param letters The messages.
+     * @return The raw protocol message.
+     */
+    static String toProtocolMessage(List<Letter> letters) {
+        var sb = new StringBuilder(Protocol.MESSAGE_HEADER_LEFT_HALF)
+                .append("离线私聊 (").append(letters.size()).append(')')
+                .append(Protocol.MESSAGE_HEADER_MIDDLE_HALF)
+                .append(Protocol.MESSAGE_HEADER_RIGHT_HALF);
+
+        for (int i = 0; i < letters.size(); i++) {
+            sb.append(i == 0 ? "" : "\n").append(line(letters.get(i)));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Render the message as a chatting message by itself, the text is cut if it doesn't fit.
+     *
+     * @param letter   The message.
+     * @param maxBytes Max size of the message, in UTF-8 bytes.
+     * @return The raw protocol message.
+     */
+    static String toProtocolMessage(Letter letter, int maxBytes) {
+        String header = Protocol.MESSAGE_HEADER_LEFT_HALF + "离线私聊" + Protocol.MESSAGE_HEADER_MIDDLE_HALF
+                + Protocol.MESSAGE_HEADER_RIGHT_HALF;
+
+        return header + Utf8Text.truncate(line(letter), maxBytes - Utf8Text.length(header));
+    }
+
+    private static String line(Letter letter) {
+        return "[" + TIME_FORMATTER.format(Instant.ofEpochMilli(letter.timestamp())) + "] " + letter.sender()
+                + ": " + letter.text();
+    }
+
+    /**
+     * Remove the mailboxes whose messages are all expired, and the departures older than the TTL.
+     */
+    public void purgeExpired() {
+        long now = clock.getAsLong();
+
+        departures.values().removeIf(departure -> departure + ttl <= now);
+
+        for (String recipient : mailboxes.keySet()) {
+            mailboxes.computeIfPresent(recipient, (name, mailbox) -> {
+                while (mailbox.count > 0 && mailbox.oldestTimestamp() + ttl <= now) {
+                    mailbox.removeOldest();
+                }
+
+                return mailbox.count == 0 ? null : mailbox;
+            });
+        }
+    }
+
+    /**
+     * Obtain the number of mailboxes.
+     *
+     * @return The number of mailboxes.
+     */
+    public int size() {
+        return mailboxes.size();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.model.ChatEvent;
+import ac.adproj.mchat.service.MessageDistributor.SubscriberCallback;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A subscriber of {@link MessageDistributor}, with its own bounded queue. The queued messages are delivered
+ * by a task on the {@link CommonThreadPool}, which ends when the queue is empty, so an idle subscriber
+ * doesn't hold a thread.
+ * </p>
+ *
+ * <p>
+ * A slow subscriber only delays itself: when its queue is full, the {@link OverflowPolicy} decides what
+ * happens to the new messages. The lag (number of queued messages) and the counters can be used to monitor
+ * the subscriber.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+public final class Subscription {
+    /**
+     * What to do when the queue of the subscriber is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the new message for this subscriber.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Wait for the subscriber, which also delays other subscribers.
+         */
+        BLOCK,
+
+        /**
+         * Unregister the subscriber.
+         */
+        UNSUBSCRIBE
+    }
+
+    private static final AtomicInteger SUBSCRIBER_NUMBER = new AtomicInteger(0);
+
+    private final SubscriberCallback callback;
+    private final OverflowPolicy overflowPolicy;
+    private final MpscRingBuffer<ChatEvent> queue;
+    private final int maxBatchSize;
+    private final String name;
+
+    /**
+     * True while a delivering task is scheduled or running, so that at most one task delivers at a time.
+     */
+    private final AtomicBoolean delivering = new AtomicBoolean(false);
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile int maxLag = 0;
+    private volatile boolean active = true;
+
+    Subscription(SubscriberCallback callback, int capacity, OverflowPolicy overflowPolicy, int maxBatchSize) {
+        this.callback = callback;
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new MpscRingBuffer<>(capacity, WaitStrategy.blocking());
+        this.maxBatchSize = maxBatchSize;
+        this.name = "Subscriber - #" + SUBSCRIBER_NUMBER.incrementAndGet();
+    }
+
+    /**
+     * Start delivering the queued messages, unless a delivering task is running already.
+     */
+    private void scheduleDelivery() {
+        if (!active || !delivering.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            CommonThreadPool.execute(this::deliver, name);
+        } catch (RejectedExecutionException e) {
+            // The pool is saturated or shut down, deliver on the distributing thread instead.
+            deliver();
+        }
+    }
+
+    private void deliver() {
+        List<ChatEvent> batch = new ArrayList<>(maxBatchSize);
+        List<ChatEvent> readOnlyBatch = Collections.unmodifiableList(batch);
+
+        do {
+            while (active && queue.drainTo(batch, maxBatchSize) > 0) {
+                try {
+                    callback.onMessagesReceived(readOnlyBatch);
+                    delivered.add(batch.size());
+                } catch (Exception e) {
+                    // Problems of the subscriber, print the exception information and continue.
+
+                    log.error("Error occurred when delivering message to subscriber.", e);
+                }
+
+                batch.clear();
+            }
+
+            delivering.set(false);
+
+            // Takes over the messages queued after the last drain, but before the flag was cleared.
+        } while (active && !queue.isEmpty() && delivering.compareAndSet(false, true));
+    }
+
+    /**
+     * Queue the event for the subscriber and schedule the delivery. Called by the distributing service.
+     *
+     * @param event The event.
+     * @return False if the subscriber should be unregistered.
+     * @throws InterruptedException If the operation is being interrupted.
+     */
+    boolean enqueue(ChatEvent event) throws InterruptedException {
+        if (!queue.offer(event)) {
+            switch (overflowPolicy) {
+                case BLOCK -> queue.put(event);
+
+                case UNSUBSCRIBE -> {
+                    log.warn("Subscriber {} fell too far behind (lag: {}), unregistering.", name, queue.size());
+                    return false;
+                }
+
+                default -> {
+                    dropped.increment();
+
+                    if (dropped.sum() % 1000 == 1) {
+                        log.warn("Subscriber {} fell too far behind, {} messages dropped.", name, dropped.sum());
+                    }
+
+                    return true;
+                }
+            }
+        }
+
+        int lag = queue.size();
+
+        if (lag > maxLag) {
+            maxLag = lag;
+        }
+
+        scheduleDelivery();
+
+        return true;
+    }
+
+    /**
+     * Stop delivering messages to the subscriber. The batch being delivered is finished.
+     */
+    void cancel() {
+        active = false;
+    }
+
+    public SubscriberCallback getCallback() {
+        return callback;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Obtain the number of messages waiting to be delivered.
+     *
+     * @return The current lag.
+     */
+    public int getLag() {
+        return queue.size();
+    }
+
+    /**
+     * Obtain the highest lag observed.
+     *
+     * @return The highest lag.
+     */
+    public int getMaxLag() {
+        return maxLag;
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Subscription(" + name + ", lag=" + getLag() + ", maxLag=" + maxLag
+                + ", delivered=" + getDelivered() + ", dropped=" + getDropped() + ")";
+    }
+}
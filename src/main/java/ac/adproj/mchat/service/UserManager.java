@@ -17,6 +17,7 @@
 
 package ac.adproj.mchat.service;
 
+import ac.adproj.mchat.model.ChatSession;
 import ac.adproj.mchat.model.User;
 
 import java.nio.channels.AsynchronousSocketChannel;
@@ -29,14 +30,13 @@ import java.util.concurrent.ConcurrentHashMap;
  * </p>
  *
  * <p>
- * Intended to share user registration information between TCP server & WebSocket
- * Server.
+ * The session registry shared between TCP server & WebSocket Server.
  * </p>
  *
  * <p>
- * <b>Implementation Note: Although usernames are shared between TCP and
- * WebSocket server,</b> <b>the user information of WebSocket Server isn't
- * managed by this class.</b><br />
+ * Every online user is registered as a {@link ChatSession}, so the lookup by UUID or name costs the same
+ * no matter which transport the user came in on. The "user profile" (the {@link User} objects) is the
+ * TCP subset of the registry.
  * </p>
  *
  * @author Andy Cheung
@@ -44,9 +44,29 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class UserManager implements Iterable<User> {
 
+    /**
+     * All registered sessions (UUID -> Session).
+     */
+    private final Map<String, ChatSession> sessions;
 
+    /**
+     * The TCP subset of the registered sessions (UUID -> User).
+     */
     private final Map<String, User> userProfile;
 
+    /**
+     * Secondary index of the registered sessions (Name -> Session), to make the lookup by name constant-time.
+     */
+    private final Map<String, ChatSession> nameIndex;
+
+    /**
+     * Reverse index of the user profile (Channel -> User), to locate the owner of a broken connection quickly.
+     */
+    private final Map<AsynchronousSocketChannel, User> channelIndex;
+
+    /**
+     * Storage for the names in use (including the reserved names).
+     */
     private final Set<String> names;
 
     /**
@@ -55,9 +75,15 @@ public class UserManager implements Iterable<User> {
     private final Set<String> reservedNames;
 
     private UserManager() {
+        sessions = new ConcurrentHashMap<>(16);
         userProfile = new ConcurrentHashMap<>(16);
-        names = Collections.synchronizedSet(new HashSet<>());
-        reservedNames = Collections.synchronizedSet(new HashSet<>());
+        nameIndex = new ConcurrentHashMap<>(16);
+        channelIndex = new ConcurrentHashMap<>(16);
+        names = ConcurrentHashMap.newKeySet(16);
+        reservedNames = ConcurrentHashMap.newKeySet(16);
+
+        Metrics.getInstance().gauge("mchat_sessions", "Registered sessions of all transports.", sessions::size);
+        Metrics.getInstance().gauge("mchat_tcp_sessions", "Registered sessions of TCP.", userProfile::size);
     }
 
     /**
@@ -70,11 +96,12 @@ public class UserManager implements Iterable<User> {
     }
 
     /**
-     * Clears all user profiles.
+     * Clears all user profiles (TCP Server only).
      */
     public void clearAllProfiles() {
-        userProfile.clear();
-        names.clear();
+        for (String uuid : userProfile.keySet()) {
+            unregister(uuid);
+        }
     }
 
     /**
@@ -88,7 +115,7 @@ public class UserManager implements Iterable<User> {
     }
 
     /**
-     * Query the user UUID whether exists or not.
+     * Query the user UUID whether exists or not (TCP Server only).
      *
      * @param uuid UUID to query.
      * @return True if exists.
@@ -98,14 +125,44 @@ public class UserManager implements Iterable<User> {
     }
 
     /**
-     * Delete the user profile corresponding to the UUID,
+     * Delete the user profile corresponding to the UUID (TCP Server only).
      *
      * @param uuid The UUID.
-     * @return True if delete successfully.
+     * @return The deleted User object, or null if UUID not exists.
      */
     public User deleteUserProfile(String uuid) {
-        names.remove(lookup(uuid).getName());
-        return userProfile.remove(uuid);
+        if (!userProfile.containsKey(uuid)) {
+            return null;
+        }
+
+        return unregister(uuid) instanceof User u ? u : null;
+    }
+
+    /**
+     * Remove the session corresponding to the UUID from the registry.
+     *
+     * @param uuid The UUID.
+     * @return The removed session, or null if UUID not exists.
+     */
+    public ChatSession unregister(String uuid) {
+        ChatSession removed = sessions.remove(uuid);
+
+        if (removed != null) {
+            nameIndex.remove(removed.getName(), removed);
+
+            if (removed instanceof User u) {
+                userProfile.remove(uuid, u);
+
+                if (u.getChannel() != null) {
+                    channelIndex.remove(u.getChannel(), u);
+                }
+            }
+
+            names.remove(removed.getName());
+            OfflineMailbox.getInstance().recordDeparture(removed.getName());
+        }
+
+        return removed;
     }
 
     /**
@@ -115,11 +172,12 @@ public class UserManager implements Iterable<User> {
      * @return The corresponding username, or null if UUID not exists.
      */
     public String getName(String uuid) {
-        return lookup(uuid).getName();
+        ChatSession session = lookupSession(uuid);
+        return session == null ? null : session.getName();
     }
 
     /**
-     * True if the user register profile is empty.
+     * True if the user register profile (TCP Server only) is empty.
      *
      * @return True if empty.
      */
@@ -129,7 +187,7 @@ public class UserManager implements Iterable<User> {
 
     /**
      * <p>
-     * Obtain the read-only view of User object collection.
+     * Obtain the read-only view of User object collection (TCP Server only).
      * </p>
      *
      * <p>
@@ -142,7 +200,7 @@ public class UserManager implements Iterable<User> {
     }
 
     /**
-     * Obtain the corresponding User object from UUID.
+     * Obtain the corresponding User object (TCP Server only) from UUID.
      *
      * @param uuid UUID
      * @return The corresponding User object, or null if UUID not exists.
@@ -151,6 +209,26 @@ public class UserManager implements Iterable<User> {
         return userProfile.get(uuid);
     }
 
+    /**
+     * Obtain the corresponding session from UUID.
+     *
+     * @param uuid UUID
+     * @return The corresponding session, or null if UUID not exists.
+     */
+    public ChatSession lookupSession(String uuid) {
+        return sessions.get(uuid);
+    }
+
+    /**
+     * Obtain the corresponding User object from the socket channel.
+     *
+     * @param channel The remote TCP socket channel.
+     * @return The corresponding User object, or null if no user owns the channel.
+     */
+    public User lookupByChannel(AsynchronousSocketChannel channel) {
+        return channel == null ? null : channelIndex.get(channel);
+    }
+
     /**
      * Create a new User object, and register it to the user profile list.
      *
@@ -163,28 +241,45 @@ public class UserManager implements Iterable<User> {
     }
 
     /**
-     * Register the specified User object to the user profile list.
+     * Register the specified session (User object for TCP Server) to the registry.
      *
-     * @param u The User object.
+     * @param session The session.
+     * @return True if registered successfully.
      */
-    public boolean register(User u) {
-        if (!names.contains(u.getName())) {
-            return userProfile.put(u.getUuid(), u) == null && names.add(u.getName());
+    public boolean register(ChatSession session) {
+        // Claim the name first, so that concurrent registrations of the same name can't both succeed.
+        if (!names.add(session.getName())) {
+            return false;
         }
 
-        return false;
+        if (sessions.putIfAbsent(session.getUuid(), session) != null) {
+            names.remove(session.getName());
+            return false;
+        }
+
+        nameIndex.put(session.getName(), session);
+
+        if (session instanceof User u) {
+            userProfile.put(u.getUuid(), u);
+
+            if (u.getChannel() != null) {
+                channelIndex.put(u.getChannel(), u);
+            }
+        }
+
+        return true;
     }
 
     /**
-     * Register username, but not to associate with User object. (Reserve Username,
-     * Intended for WebSocket Service.)
+     * Register username, but not to associate with any session. (Reserve Username.)
      *
      * @param name The username.
      * @return True if registered successfully.
      */
     public boolean reserveName(String name) {
-        if (!names.contains(name) && !reservedNames.contains(name)) {
-            return names.add(name) && reservedNames.add(name);
+        if (names.add(name)) {
+            reservedNames.add(name);
+            return true;
         }
 
         return false;
@@ -197,20 +292,43 @@ public class UserManager implements Iterable<User> {
      * @return Whether the removal is success
      */
     public boolean undoReserveName(String name) {
-        if (reservedNames.contains(name) && names.contains(name)) {
-            return reservedNames.remove(name) && names.remove(name);
+        if (reservedNames.remove(name)) {
+            return names.remove(name);
         }
 
         return false;
     }
 
+    /**
+     * Find the UUID of the user (TCP Server only) with the specified name.
+     *
+     * @param name The username.
+     * @return The UUID, or empty if there's no such user.
+     */
     public Optional<String> findUuidByName(String name) {
-        var optionalOfEntry = userProfile.entrySet()
-                .stream()
-                .filter(x -> x.getValue().getName().equals(name))
-                .findFirst();
+        return findUserByName(name).map(User::getUuid);
+    }
+
+    /**
+     * Find the User object (TCP Server only) with the specified name.
+     *
+     * @param name The username.
+     * @return The User object, or empty if there's no such user.
+     */
+    public Optional<User> findUserByName(String name) {
+        return findSessionByName(name)
+                .filter(User.class::isInstance)
+                .map(User.class::cast);
+    }
 
-        return optionalOfEntry.map(Map.Entry::getKey);
+    /**
+     * Find the session with the specified name.
+     *
+     * @param name The username.
+     * @return The session, or empty if there's no such user.
+     */
+    public Optional<ChatSession> findSessionByName(String name) {
+        return Optional.ofNullable(nameIndex.get(name));
     }
 
     /**
@@ -222,7 +340,7 @@ public class UserManager implements Iterable<User> {
     }
 
     /**
-     * Return the read-only view of the User object collection.
+     * Return the read-only view of the User object collection (TCP Server only).
      *
      * @return Read-only User object collection.
      */
@@ -230,6 +348,15 @@ public class UserManager implements Iterable<User> {
         return Collections.unmodifiableCollection(userProfile.values());
     }
 
+    /**
+     * Return the read-only view of all registered sessions.
+     *
+     * @return Read-only session collection.
+     */
+    public Collection<ChatSession> sessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
     /**
      * Holder of the instance.
      */
@@ -32,6 +32,9 @@ import java.nio.charset.StandardCharsets;
  * @author Andy Cheung
  */
 public class UserNameQueryService implements Runnable {
+    private static final Metrics.Histogram QUERY = Metrics.getInstance().histogram(
+            "mchat_name_query_seconds", "Time of answering a query of the duplication checking service.");
+
     private DatagramChannel dc;
     private boolean stopSelf;
     private final UserManager userManager;
@@ -83,7 +86,9 @@ public class UserNameQueryService implements Runnable {
                     continue;
                 }
 
+                long start = System.nanoTime();
                 handleQueryRequest(address, message);
+                QUERY.recordSince(start);
 
             } catch (IOException e) {
                 String name = e.getClass().getName();
@@ -0,0 +1,81 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures and cuts the text by its size in UTF-8, to fit the messages into the read buffer of the clients.
+ *
+ * @author Andy Cheung
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+final class Utf8Text {
+    /**
+     * Obtain the size of the text in UTF-8.
+     *
+     * @param text The text.
+     * @return The size, in bytes.
+     */
+    static int length(String text) {
+        int length = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Cut the text to the size in UTF-8, never in the middle of a character.
+     *
+     * @param text     The text.
+     * @param maxBytes Max size, in bytes.
+     * @return The text, or the longest prefix of it that fits.
+     */
+    static String truncate(String text, int maxBytes) {
+        if (length(text) <= maxBytes) {
+            return text;
+        }
+
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int end = Math.max(0, maxBytes);
+
+        // Backs off the continuation bytes of the character being cut.
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+}
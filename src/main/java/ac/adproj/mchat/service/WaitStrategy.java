@@ -0,0 +1,181 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Defines how a thread waits for the ring buffer to become ready (not empty for the consumer, or not full
+ * for the producers).
+ *
+ * @author Andy Cheung
+ * @see MpscRingBuffer
+ */
+public interface WaitStrategy {
+    /**
+     * Wait until the condition is satisfied.
+     *
+     * @param ready The condition.
+     * @throws InterruptedException If the waiting is being interrupted.
+     */
+    void waitFor(BooleanSupplier ready) throws InterruptedException;
+
+    /**
+     * Wake up the waiting threads, called after the state of the ring buffer changes.
+     */
+    void signalAll();
+
+    /**
+     * Obtain the wait strategy by name ("blocking", "sleeping", "yielding" or "busy-spin").
+     *
+     * @param name The name of the strategy.
+     * @return The new WaitStrategy object.
+     */
+    static WaitStrategy of(String name) {
+        return switch (name.toLowerCase(Locale.ROOT)) {
+            case "busy-spin" -> busySpin();
+            case "yielding" -> yielding();
+            case "sleeping" -> sleeping();
+            case "blocking" -> blocking();
+            default -> throw new IllegalArgumentException("Unknown wait strategy: " + name);
+        };
+    }
+
+    /**
+     * Park the thread until it's signalled. Lowest CPU usage, highest wake-up latency.
+     *
+     * @return The new WaitStrategy object.
+     */
+    static WaitStrategy blocking() {
+        return new WaitStrategy() {
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition condition = lock.newCondition();
+            private volatile int waiters = 0;
+
+            @Override
+            public void waitFor(BooleanSupplier ready) throws InterruptedException {
+                if (ready.getAsBoolean()) {
+                    return;
+                }
+
+                lock.lockInterruptibly();
+
+                try {
+                    waiters++;
+
+                    while (!ready.getAsBoolean()) {
+                        condition.await();
+                    }
+                } finally {
+                    waiters--;
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void signalAll() {
+                if (waiters == 0) {
+                    return;
+                }
+
+                lock.lock();
+
+                try {
+                    condition.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    /**
+     * Spin, then yield, then sleep for a short while.
+     *
+     * @return The new WaitStrategy object.
+     */
+    static WaitStrategy sleeping() {
+        return new SpinningWaitStrategy(100, 200, TimeUnit.MICROSECONDS.toNanos(100));
+    }
+
+    /**
+     * Spin, then yield the processor.
+     *
+     * @return The new WaitStrategy object.
+     */
+    static WaitStrategy yielding() {
+        return new SpinningWaitStrategy(100, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Spin on the processor. Lowest latency, occupies a core while waiting.
+     *
+     * @return The new WaitStrategy object.
+     */
+    static WaitStrategy busySpin() {
+        return new SpinningWaitStrategy(Integer.MAX_VALUE, 0, 0);
+    }
+
+    /**
+     * Wait strategy that never blocks on a lock.
+     *
+     * @author Andy Cheung
+     */
+    final class SpinningWaitStrategy implements WaitStrategy {
+        private final int spins;
+        private final int yields;
+        private final long parkNanos;
+
+        private SpinningWaitStrategy(int spins, int yields, long parkNanos) {
+            this.spins = spins;
+            this.yields = yields;
+            this.parkNanos = parkNanos;
+        }
+
+        @Override
+        public void waitFor(BooleanSupplier ready) throws InterruptedException {
+            long counter = 0;
+
+            while (!ready.getAsBoolean()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                if (counter < spins) {
+                    Thread.onSpinWait();
+                } else if (counter < (long) spins + yields) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(parkNanos);
+                }
+
+                counter++;
+            }
+        }
+
+        @Override
+        public void signalAll() {
+            // Nobody sleeps for long, nothing to do.
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package ac.adproj.mchat.ui;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTException;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.layout.GridData;
@@ -27,33 +28,138 @@ import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Text;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
+ * <p>
  * Base Chatting UI.
+ * </p>
+ *
+ * <p>
+ * The messages are kept in a bounded scrollback ({@link TranscriptBuffer}, the number of messages is configured
+ * by the system property {@value #SCROLLBACK_PROPERTY}), and rendered at most once per frame: the messages
+ * arriving between the frames are appended to the display at once. The display is rebuilt from the scrollback
+ * only when it has grown a quarter beyond the scrollback, so the cost per message stays constant.
+ * </p>
  * 
  * @author Andy Cheung
  */
 public abstract class BaseChattingUI extends Shell {
+    /**
+     * Name of the system property of the max number of messages displayed.
+     */
+    public static final String SCROLLBACK_PROPERTY = "mchat.ui.scrollback";
+
+    private static final int DEFAULT_SCROLLBACK = 5000;
+
+    /**
+     * Min interval between the renderings, in milliseconds.
+     */
+    private static final int FRAME_INTERVAL = 16;
+
     protected Text messageToSend;
     protected Text messageDisplay;
     protected Button disconnect;
     protected Button send;
-    
-    private boolean hasReceivedMessage;
-    
+
+    private final TranscriptBuffer transcript = new TranscriptBuffer(
+            Integer.getInteger(SCROLLBACK_PROPERTY, DEFAULT_SCROLLBACK));
+
+    private final AtomicBoolean renderScheduled = new AtomicBoolean(false);
+
+    /**
+     * Rendering state, accessed by the UI thread only.
+     */
+    private long renderedSequence;
+    private int displayedCount;
+    private long lastRenderTime;
+
     /**
-     * Append text to the chatting content field.
+     * Append text to the chatting content field. Can be called by any thread, the message is displayed
+     * in the next frame.
      * 
      * @param message The chatting message.
      */
     public void appendMessageDisplay(String message) {
-        if (hasReceivedMessage) {
-            messageDisplay.setText(messageDisplay.getText() + "\r\n" + message);
+        transcript.add(message);
+
+        if (renderScheduled.compareAndSet(false, true)) {
+            try {
+                getDisplay().asyncExec(this::scheduleRender);
+            } catch (SWTException e) {
+                // The UI is disposed.
+            }
+        }
+    }
+
+    private void scheduleRender() {
+        if (isDisposed()) {
+            return;
+        }
+
+        long delay = lastRenderTime + FRAME_INTERVAL - System.currentTimeMillis();
+
+        if (delay > 0) {
+            getDisplay().timerExec((int) delay, this::render);
         } else {
-            messageDisplay.setText(message);
-            hasReceivedMessage = true;
+            render();
         }
     }
 
+    private void render() {
+        // Cleared first, so the messages added from now on schedule the next frame.
+        renderScheduled.set(false);
+
+        if (isDisposed()) {
+            return;
+        }
+
+        lastRenderTime = System.currentTimeMillis();
+
+        TranscriptBuffer.Update update = transcript.since(renderedSequence);
+
+        if (!update.reset() && displayedCount + update.messages().size() > transcript.capacity() * 5 / 4) {
+            update = transcript.all();
+        }
+
+        renderedSequence = update.sequence();
+
+        if (update.messages().isEmpty()) {
+            return;
+        }
+
+        if (update.reset()) {
+            messageDisplay.setText(join(update.messages(), false));
+            displayedCount = update.messages().size();
+            messageDisplay.setTopIndex(messageDisplay.getLineCount() - 1);
+        } else {
+            messageDisplay.append(join(update.messages(), displayedCount > 0));
+            displayedCount += update.messages().size();
+        }
+    }
+
+    private static String join(List<String> messages, boolean leadingDelimiter) {
+        int length = 0;
+
+        for (String message : messages) {
+            length += message.length() + Text.DELIMITER.length();
+        }
+
+        var sb = new StringBuilder(length);
+
+        for (String message : messages) {
+            if (leadingDelimiter) {
+                sb.append(Text.DELIMITER);
+            }
+
+            sb.append(message);
+            leadingDelimiter = true;
+        }
+
+        return sb.toString();
+    }
+
     /**
      * Create the shell.
      * @param display
@@ -21,6 +21,7 @@ import java.io.IOException;
 
 import ac.adproj.mchat.model.Protocol;
 import ac.adproj.mchat.protocol.ServerListener;
+import ac.adproj.mchat.service.ChatHistoryService;
 import ac.adproj.mchat.service.MessageDistributor;
 import ac.adproj.mchat.web.WebServerStarter;
 
@@ -39,10 +40,13 @@ public class HeadlessServer {
         System.out.println();
         
         try (ServerListener listener = ServerListener.getInstance(); WebServerStarter starter = new WebServerStarter()) {
-            MessageDistributor.getInstance().registerSubscriber((message) -> {
-                System.out.println(message);
+            MessageDistributor.getInstance().registerSubscriber((event) -> {
+                System.out.println(event.toUiString());
             });
             
+            ChatHistoryService.getInstance().start();
+            Runtime.getRuntime().addShutdownHook(new Thread(ChatHistoryService.getInstance()::stop));
+
             starter.start(8090);
             
             Thread.currentThread().join();
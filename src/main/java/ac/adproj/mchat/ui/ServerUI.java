@@ -19,8 +19,10 @@ package ac.adproj.mchat.ui;
 
 import ac.adproj.mchat.model.Protocol;
 import ac.adproj.mchat.protocol.ServerListener;
+import ac.adproj.mchat.service.ChatHistoryService;
 import ac.adproj.mchat.service.CommonThreadPool;
 import ac.adproj.mchat.service.MessageDistributor;
+import ac.adproj.mchat.service.Subscription;
 import ac.adproj.mchat.web.WebServerStarter;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.swt.widgets.Display;
@@ -33,9 +35,10 @@ public class ServerUI extends BaseChattingUI {
     private void initListener() throws IOException {
         listener = ServerListener.getInstance();
         
-        MessageDistributor.getInstance().registerSubscriber(message -> this.getDisplay().asyncExec(() -> {
-            appendMessageDisplay(message);
-        }));
+        // Rendered in frames by the UI, so there's no need to post every event to the UI thread.
+        // The display shouldn't miss any message, so the distribution waits for it.
+        MessageDistributor.getInstance().registerSubscriber(event -> appendMessageDisplay(event.toUiString()),
+                MessageDistributor.DEFAULT_SUBSCRIBER_CAPACITY, Subscription.OverflowPolicy.BLOCK);
     }
 
     @Override
@@ -67,6 +70,8 @@ public class ServerUI extends BaseChattingUI {
         ui.disconnect.setText("断开全部客户端");
 
         ui.initListener();
+
+        ChatHistoryService.getInstance().start();
         
         Display d = ui.getDisplay();
         
@@ -84,6 +89,7 @@ public class ServerUI extends BaseChattingUI {
         
         s.close();
         ui.listener.close();
+        ChatHistoryService.getInstance().stop();
         CommonThreadPool.shutdown();
     }
 
@@ -0,0 +1,114 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Bounded scrollback of the chatting messages, a ring buffer of the latest messages.
+ * </p>
+ *
+ * <p>
+ * Every message gets a sequence number, so the renderer can ask for the messages after the ones it has rendered,
+ * and learns when some of them have been overwritten before it caught up. Any thread can add messages.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+final class TranscriptBuffer {
+    /**
+     * Messages to render.
+     *
+     * @param reset    True if the messages replace everything rendered, since the renderer fell behind.
+     * @param messages The messages in order.
+     * @param sequence Sequence number of the last message.
+     */
+    record Update(boolean reset, List<String> messages, long sequence) {
+    }
+
+    private final String[] messages;
+
+    /**
+     * Number of the messages ever added, which is the sequence number of the latest message.
+     */
+    private long sequence;
+
+    TranscriptBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+
+        messages = new String[capacity];
+    }
+
+    /**
+     * Add a message, overwriting the oldest one if full.
+     *
+     * @param message The message.
+     * @return Sequence number of the message.
+     */
+    synchronized long add(String message) {
+        messages[(int) (sequence % messages.length)] = message;
+        return ++sequence;
+    }
+
+    /**
+     * Obtain the messages after the specified one.
+     *
+     * @param after Sequence number of the last message rendered.
+     * @return The newer messages, or all messages (with reset) if some of the newer ones were overwritten.
+     */
+    synchronized Update since(long after) {
+        long oldest = Math.max(sequence - messages.length, 0);
+
+        if (after < oldest) {
+            return all();
+        }
+
+        return new Update(false, copy(after, sequence), sequence);
+    }
+
+    /**
+     * Obtain all the messages kept.
+     *
+     * @return All the messages, with reset.
+     */
+    synchronized Update all() {
+        return new Update(true, copy(Math.max(sequence - messages.length, 0), sequence), sequence);
+    }
+
+    private List<String> copy(long from, long to) {
+        var result = new ArrayList<String>((int) (to - from));
+
+        for (long i = from; i < to; i++) {
+            result.add(messages[(int) (i % messages.length)]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Obtain the max number of messages kept.
+     *
+     * @return The capacity.
+     */
+    int capacity() {
+        return messages.length;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.web;
+
+import ac.adproj.mchat.service.AttachmentStore;
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * <p>
+ * Serves the attachments: {@code GET /attachments/(hash)?name=(fileName)}.
+ * </p>
+ *
+ * <p>
+ * The content is written from the shared read-only mapping of the {@link AttachmentStore}, so it comes out of the
+ * page cache without being copied onto the heap. Single byte ranges ({@code Range: bytes=}) are supported,
+ * other range requests are answered with the whole content. The content never changes for the hash,
+ * so the hash is the ETag and the responses can be cached forever.
+ * </p>
+ *
+ * <p>
+ * Only images, audio and video are displayed in the browser, everything else is sent as a download.
+ * The responses are sandboxed anyway, since they're served from the origin of the web client.
+ * </p>
+ *
+ * <p>
+ * The hash works as the capability of the attachment, it's known to the recipients of the file only.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@SuppressWarnings("serial")
+public class AttachmentServlet extends HttpServlet {
+    private static final String CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+    /**
+     * Types displayed in the browser, other attachments are always downloaded. The type comes from the file name
+     * chosen by the uploader, so nothing that the browser can run (HTML, SVG, XML...) is allowed here.
+     */
+    private static final Set<String> INLINE_TYPES = Set.of(
+            "image/png", "image/jpeg", "image/gif", "image/webp", "image/bmp",
+            "audio/mpeg", "audio/ogg", "audio/wav", "audio/webm", "audio/mp4",
+            "video/mp4", "video/webm", "video/ogg");
+
+    /**
+     * A byte range, both ends inclusive.
+     */
+    record Range(long first, long last) {
+        long length() {
+            return last - first + 1;
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String hash = req.getPathInfo() == null ? null : req.getPathInfo().substring(1);
+
+        if (!AttachmentStore.isValidHash(hash)) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        Optional<ByteBuffer> content = AttachmentStore.getInstance().open(hash);
+
+        if (content.isEmpty()) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        ByteBuffer buffer = content.get();
+        long size = buffer.remaining();
+        String etag = "\"" + hash + "\"";
+
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Cache-Control", CACHE_CONTROL);
+        resp.setHeader("Accept-Ranges", "bytes");
+        resp.setHeader("X-Content-Type-Options", "nosniff");
+        resp.setHeader("Content-Security-Policy", "sandbox");
+
+        String ifNoneMatch = req.getHeader("If-None-Match");
+
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        setContentHeaders(req, resp);
+
+        String rangeHeader = req.getHeader("Range");
+        String ifRange = req.getHeader("If-Range");
+        Range range = rangeHeader == null || (ifRange != null && !ifRange.equals(etag))
+                ? null : parseRange(rangeHeader, size);
+
+        if (range == null) {
+            resp.setContentLengthLong(size);
+        } else if (range.first() >= size || range.length() <= 0) {
+            resp.setHeader("Content-Range", "bytes */" + size);
+            resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        } else {
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            resp.setHeader("Content-Range", "bytes " + range.first() + "-" + range.last() + "/" + size);
+            resp.setContentLengthLong(range.length());
+            buffer = buffer.slice((int) range.first(), (int) range.length());
+        }
+
+        if ("HEAD".equals(req.getMethod())) {
+            return;
+        }
+
+        write(resp.getOutputStream(), buffer);
+    }
+
+    private void setContentHeaders(HttpServletRequest req, HttpServletResponse resp) {
+        String name = req.getParameter("name");
+        String contentType = inlineType(name == null ? null : getServletContext().getMimeType(name));
+        String disposition = contentType == null ? "attachment" : "inline";
+
+        resp.setContentType(contentType == null ? "application/octet-stream" : contentType);
+
+        if (name != null && !name.isBlank()) {
+            disposition += "; filename*=UTF-8''" + URLEncoder.encode(name, StandardCharsets.UTF_8).replace("+", "%20");
+        }
+
+        resp.setHeader("Content-Disposition", disposition);
+    }
+
+    /**
+     * Check whether the attachment of the type can be displayed in the browser.
+     *
+     * @param mimeType The type derived from the file name, can be null.
+     * @return The type without parameters if it's displayed in the browser, or null if it's downloaded.
+     */
+    static String inlineType(String mimeType) {
+        if (mimeType == null) {
+            return null;
+        }
+
+        int semicolon = mimeType.indexOf(';');
+        String type = (semicolon < 0 ? mimeType : mimeType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+
+        return INLINE_TYPES.contains(type) ? type : null;
+    }
+
+    /**
+     * Write the content, the mapping is handed to Jetty as is.
+     */
+    private static void write(ServletOutputStream out, ByteBuffer buffer) throws IOException {
+        if (out instanceof HttpOutput httpOutput) {
+            httpOutput.sendContent(buffer);
+        } else {
+            Channels.newChannel(out).write(buffer);
+        }
+    }
+
+    /**
+     * Parse the value of the Range header.
+     *
+     * @param value The header value.
+     * @param size  Size of the content.
+     * @return The range, clamped to the content, or null if the whole content should be sent.
+     *         An unsatisfiable range has the first byte beyond the content.
+     */
+    static Range parseRange(String value, long size) {
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+
+        String spec = value.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                // Suffix range: the last N bytes.
+                long suffix = Long.parseLong(last);
+                return suffix <= 0 ? new Range(size, size) : new Range(Math.max(size - suffix, 0), size - 1);
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+
+            if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                return null;
+            }
+
+            return new Range(start, end);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
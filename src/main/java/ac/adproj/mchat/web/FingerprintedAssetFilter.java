@@ -0,0 +1,84 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.web;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Gives the fingerprinted assets of the web client (names with a content hash, like {@code app.3f2a9c1b.js})
+ * the long-lived Cache-Control header, since their content never changes under the same name.
+ * The other assets keep the header of the static resource servlet.
+ *
+ * @author Andy Cheung
+ */
+public class FingerprintedAssetFilter implements Filter {
+    private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    /**
+     * A hash of 8 hex digits at least, before the extension.
+     */
+    private static final Pattern FINGERPRINTED_NAME = Pattern.compile("[^/]*[.-][0-9a-fA-F]{8,}\\.\\w+");
+
+    /**
+     * Whether the path is of a fingerprinted asset.
+     *
+     * @param path The request path.
+     * @return True if the name contains the content hash.
+     */
+    static boolean isFingerprinted(String path) {
+        return FINGERPRINTED_NAME.matcher(path.substring(path.lastIndexOf('/') + 1)).matches();
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (request instanceof HttpServletRequest req && response instanceof HttpServletResponse resp
+                && isFingerprinted(req.getRequestURI())) {
+            chain.doFilter(request, new HttpServletResponseWrapper(resp) {
+                @Override
+                public void setHeader(String name, String value) {
+                    super.setHeader(name, "Cache-Control".equalsIgnoreCase(name) ? CACHE_CONTROL : value);
+                }
+
+                @Override
+                public void addHeader(String name, String value) {
+                    super.addHeader(name, "Cache-Control".equalsIgnoreCase(name) ? CACHE_CONTROL : value);
+                }
+            });
+        } else {
+            chain.doFilter(request, response);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
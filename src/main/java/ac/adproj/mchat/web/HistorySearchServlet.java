@@ -0,0 +1,143 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.web;
+
+import ac.adproj.mchat.service.ChatHistoryLog;
+import ac.adproj.mchat.service.ChatHistoryService;
+import ac.adproj.mchat.service.ChatSearchIndex;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * <p>
+ * Admin query of the chat history: {@code GET /admin/search?q=&sender=&from=&to=&limit=},
+ * where from and to are epoch milliseconds. Responds a JSON object of the matched messages.
+ * </p>
+ *
+ * <p>
+ * The request must carry the token configured by the system property {@value #ADMIN_TOKEN_PROPERTY},
+ * in the header {@value #ADMIN_TOKEN_HEADER} or as the bearer token of the Authorization header.
+ * Admin queries are rejected if the token isn't configured.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@SuppressWarnings("serial")
+public class HistorySearchServlet extends HttpServlet {
+    /**
+     * Name of the system property of the token of admin queries.
+     */
+    public static final String ADMIN_TOKEN_PROPERTY = "mchat.admin.token";
+
+    /**
+     * Name of the request header carrying the token.
+     */
+    public static final String ADMIN_TOKEN_HEADER = "X-Admin-Token";
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 1000;
+
+    /**
+     * Whether the request carries the admin token. False if the token isn't configured.
+     *
+     * @param req The request.
+     * @return True if it's an admin request.
+     */
+    static boolean isAdminRequest(HttpServletRequest req) {
+        String token = System.getProperty(ADMIN_TOKEN_PROPERTY);
+        String requestToken = req.getHeader(ADMIN_TOKEN_HEADER);
+
+        if (requestToken == null) {
+            String authorization = req.getHeader("Authorization");
+
+            if (authorization != null && authorization.startsWith(BEARER_PREFIX)) {
+                requestToken = authorization.substring(BEARER_PREFIX.length());
+            }
+        }
+
+        return token != null && !token.isEmpty() && requestToken != null
+                && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                requestToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (!isAdminRequest(req)) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        if (!ChatHistoryService.getInstance().isStarted()) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Chat history is not enabled.");
+            return;
+        }
+
+        ChatSearchIndex.Query query;
+
+        try {
+            query = new ChatSearchIndex.Query(req.getParameter("q"), req.getParameter("sender"),
+                    parseLong(req.getParameter("from"), Long.MIN_VALUE),
+                    parseLong(req.getParameter("to"), Long.MAX_VALUE),
+                    (int) Math.min(parseLong(req.getParameter("limit"), DEFAULT_LIMIT), MAX_LIMIT));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid number: " + e.getMessage());
+            return;
+        }
+
+        List<ChatHistoryLog.Entry> results = ChatHistoryService.getInstance().search(query);
+
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-store");
+        resp.getWriter().write(toJson(results));
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value);
+    }
+
+    static String toJson(List<ChatHistoryLog.Entry> entries) {
+        var sb = new StringBuilder(64 + entries.size() * 96);
+        sb.append("{\"results\":[");
+
+        for (int i = 0; i < entries.size(); i++) {
+            ChatHistoryLog.Entry entry = entries.get(i);
+
+            if (i > 0) {
+                sb.append(',');
+            }
+
+            sb.append("{\"offset\":").append(entry.offset())
+                    .append(",\"timestamp\":").append(entry.timestamp())
+                    .append(",\"sender\":");
+            WebSocketOutbound.appendJsonString(sb, entry.senderName());
+            sb.append(",\"text\":");
+            WebSocketOutbound.appendJsonString(sb, entry.text());
+            sb.append('}');
+        }
+
+        return sb.append("]}").toString();
+    }
+}
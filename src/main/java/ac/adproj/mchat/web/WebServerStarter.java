@@ -18,21 +18,103 @@
 package ac.adproj.mchat.web;
 
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
-import org.eclipse.jetty.webapp.WebAppContext;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
 import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 
 import ac.adproj.mchat.service.CommonThreadPool;
 import ac.adproj.mchat.web.res.WebClientLoader;
 
+import javax.servlet.DispatcherType;
+import java.util.EnumSet;
+
 /**
+ * <p>
  * Bootstrapper of embedded Jetty HTTP Server and WebSocket listener.
- * 
+ * </p>
+ *
+ * <p>
+ * The thread pool, the connector and the WebSocket policy can be tuned with the system properties below
+ * (e.g. {@code -Dmchat.jetty.maxThreads=400}). Unset properties keep the defaults of Jetty.
+ * </p>
+ *
  * @author Andy Cheung
  * @since 2020/5/24 (originally 2020/5/18)
  */
 public class WebServerStarter implements AutoCloseable {
+    /**
+     * Max number of threads of the Jetty thread pool.
+     */
+    public static final String MAX_THREADS_PROPERTY = "mchat.jetty.maxThreads";
+
+    /**
+     * Min number of threads of the Jetty thread pool.
+     */
+    public static final String MIN_THREADS_PROPERTY = "mchat.jetty.minThreads";
+
+    /**
+     * Idle timeout (in milliseconds) of the threads of the Jetty thread pool.
+     */
+    public static final String THREAD_IDLE_TIMEOUT_PROPERTY = "mchat.jetty.threadIdleTimeout";
+
+    /**
+     * Number of acceptor threads of the connector.
+     */
+    public static final String ACCEPTORS_PROPERTY = "mchat.jetty.acceptors";
+
+    /**
+     * Number of selector threads of the connector.
+     */
+    public static final String SELECTORS_PROPERTY = "mchat.jetty.selectors";
+
+    /**
+     * Backlog of the server socket.
+     */
+    public static final String ACCEPT_QUEUE_SIZE_PROPERTY = "mchat.jetty.acceptQueueSize";
+
+    /**
+     * Idle timeout (in milliseconds) of the HTTP connections, before they're upgraded to WebSocket.
+     */
+    public static final String CONNECTOR_IDLE_TIMEOUT_PROPERTY = "mchat.jetty.idleTimeout";
+
+    /**
+     * Idle timeout (in milliseconds) of the WebSocket sessions. It also fails a write that makes no progress,
+     * e.g. to a client that stopped reading.
+     */
+    public static final String WEBSOCKET_IDLE_TIMEOUT_PROPERTY = "mchat.websocket.idleTimeout";
+
+    /**
+     * Max size of the WebSocket text messages.
+     */
+    public static final String WEBSOCKET_MAX_TEXT_MESSAGE_SIZE_PROPERTY = "mchat.websocket.maxTextMessageSize";
+
+    /**
+     * Max size of the WebSocket binary messages.
+     */
+    public static final String WEBSOCKET_MAX_BINARY_MESSAGE_SIZE_PROPERTY = "mchat.websocket.maxBinaryMessageSize";
+
+    /**
+     * Cache-Control header of the static assets of the web client, except the HTML pages and the fingerprinted
+     * assets (see {@link FingerprintedAssetFilter}). Revalidated with the ETags by default.
+     */
+    public static final String ASSET_CACHE_CONTROL_PROPERTY = "mchat.web.assetCacheControl";
+
+    /**
+     * Max total size (in bytes) of the static assets cached in memory.
+     */
+    public static final String ASSET_CACHE_SIZE_PROPERTY = "mchat.web.assetCacheSize";
+
+    /**
+     * The pages (and the assets by default) are always revalidated (cheap 304s), so a new version of the web
+     * client is picked up on the next load.
+     */
+    private static final String PAGE_CACHE_CONTROL = "no-cache";
+
     private Server server = null;
     private Thread serverThread;
 
@@ -45,10 +127,102 @@ public class WebServerStarter implements AutoCloseable {
     private static final class WebSocketHandlerFacade extends WebSocketServlet {
         @Override
         public void configure(WebSocketServletFactory arg0) {
+            configurePolicy(arg0.getPolicy());
             arg0.register(WebSocketHandler.class);
         }
     }
 
+    /**
+     * Create the servlet of WebSocket service.
+     *
+     * @return The servlet holder.
+     */
+    public static ServletHolder createWebSocketServletHolder() {
+        return new ServletHolder(new WebSocketHandlerFacade());
+    }
+
+    /**
+     * Create the Jetty server with the configured thread pool and connector, but without handlers.
+     *
+     * @param port Port of the HTTP Service.
+     * @return The server.
+     */
+    public static Server createServer(int port) {
+        var threadPool = new QueuedThreadPool(
+                Integer.getInteger(MAX_THREADS_PROPERTY, 200),
+                Integer.getInteger(MIN_THREADS_PROPERTY, 8),
+                Integer.getInteger(THREAD_IDLE_TIMEOUT_PROPERTY, 60000));
+        threadPool.setName("Jetty HTTP Server");
+
+        var server = new Server(threadPool);
+
+        // -1 lets Jetty choose by the number of CPU cores.
+        var connector = new ServerConnector(server,
+                Integer.getInteger(ACCEPTORS_PROPERTY, -1),
+                Integer.getInteger(SELECTORS_PROPERTY, -1));
+
+        connector.setPort(port);
+        connector.setAcceptQueueSize(Integer.getInteger(ACCEPT_QUEUE_SIZE_PROPERTY, 0));
+        connector.setIdleTimeout(Long.getLong(CONNECTOR_IDLE_TIMEOUT_PROPERTY, 30000L));
+
+        server.addConnector(connector);
+
+        return server;
+    }
+
+    /**
+     * Create the context serving the web client and the WebSocket service.
+     * The web client is served from the extracted files as static resources, with the gzip variants,
+     * ETags and the Cache-Control headers.
+     *
+     * @return The context.
+     */
+    public static ServletContextHandler createContext() {
+        var context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/acmcs");
+
+        // Like the web application contexts, the package metadata is never served.
+        context.setProtectedTargets(new String[]{"/WEB-INF", "/META-INF"});
+
+        WebClientLoader.getWebClientDirectory().ifPresent(directory -> {
+            context.setResourceBase(directory.toString());
+            context.setWelcomeFiles(new String[]{"index.html"});
+        });
+
+        context.addFilter(FingerprintedAssetFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+        context.addServlet(createStaticResourceServletHolder(System.getProperty(ASSET_CACHE_CONTROL_PROPERTY,
+                PAGE_CACHE_CONTROL)), "/");
+        context.addServlet(createStaticResourceServletHolder(PAGE_CACHE_CONTROL), "*.html");
+        context.addServlet(createWebSocketServletHolder(), "/wshandler");
+        context.addServlet(HistorySearchServlet.class, "/admin/search");
+        context.addServlet(AttachmentServlet.class, "/attachments/*");
+        context.addServlet(MetricsServlet.class, "/metrics");
+
+        return context;
+    }
+
+    private static ServletHolder createStaticResourceServletHolder(String cacheControl) {
+        var holder = new ServletHolder(DefaultServlet.class);
+
+        holder.setInitParameter("precompressed", "gzip=.gz");
+        holder.setInitParameter("etags", "true");
+        holder.setInitParameter("cacheControl", cacheControl);
+        holder.setInitParameter("dirAllowed", "false");
+        holder.setInitParameter("useFileMappedBuffer", "true");
+        holder.setInitParameter("maxCacheSize", Integer.toString(Integer.getInteger(ASSET_CACHE_SIZE_PROPERTY,
+                32 * 1024 * 1024)));
+
+        return holder;
+    }
+
+    private static void configurePolicy(WebSocketPolicy policy) {
+        policy.setIdleTimeout(Long.getLong(WEBSOCKET_IDLE_TIMEOUT_PROPERTY, policy.getIdleTimeout()));
+        policy.setMaxTextMessageSize(Integer.getInteger(WEBSOCKET_MAX_TEXT_MESSAGE_SIZE_PROPERTY,
+                policy.getMaxTextMessageSize()));
+        policy.setMaxBinaryMessageSize(Integer.getInteger(WEBSOCKET_MAX_BINARY_MESSAGE_SIZE_PROPERTY,
+                policy.getMaxBinaryMessageSize()));
+    }
+
     /**
      * Start the embedded Jetty Server.
      * 
@@ -58,13 +232,9 @@ public class WebServerStarter implements AutoCloseable {
         CommonThreadPool.execute(() -> {
             serverThread = Thread.currentThread();
 
-            server = new Server(port);
+            server = createServer(port);
 
-            WebAppContext webapp = new WebAppContext();
-            webapp.setContextPath("/acmcs");
-            webapp.setWar(WebClientLoader.getWebappWarPath());
-            webapp.addServlet(new ServletHolder(new WebSocketHandlerFacade()), "/wshandler");
-            server.setHandler(webapp);
+            server.setHandler(createContext());
 
             try {
                 server.start();
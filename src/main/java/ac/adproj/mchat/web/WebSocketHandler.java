@@ -17,62 +17,190 @@
 
 package ac.adproj.mchat.web;
 
+import ac.adproj.mchat.handler.BinaryMessageCodec;
+import ac.adproj.mchat.handler.FileTransferHandler;
 import ac.adproj.mchat.handler.MessageType;
+import ac.adproj.mchat.model.ChatEvent;
+import ac.adproj.mchat.model.ChatSession;
+import ac.adproj.mchat.model.OutboundMessage;
 import ac.adproj.mchat.model.Protocol;
-import ac.adproj.mchat.protocol.ServerListener;
+import ac.adproj.mchat.service.ChatHistoryService;
+import ac.adproj.mchat.service.FileTransferService;
 import ac.adproj.mchat.service.MessageDistributor;
-import ac.adproj.mchat.service.MessageDistributor.SubscriberCallback;
+import ac.adproj.mchat.service.MessageFanout;
+import ac.adproj.mchat.service.Metrics;
+import ac.adproj.mchat.service.OfflineMailbox;
 import ac.adproj.mchat.service.UserManager;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
+import static ac.adproj.mchat.handler.MessageType.INCOMING_MESSAGE;
 import static ac.adproj.mchat.handler.MessageType.REGISTER;
 import static ac.adproj.mchat.handler.MessageType.USERNAME_QUERY_REQUEST;
 import static ac.adproj.mchat.model.Protocol.*;
 
 /**
+ * <p>
  * Message Handler of WebSocket.
+ * </p>
+ *
+ * <p>
+ * Messages to the browser are sent asynchronously through a bounded per-session queue
+ * (see {@link WebSocketOutbound}). Clients connecting with the query parameter {@value #BATCH_PARAMETER}=1
+ * may receive several messages coalesced into one JSON array frame.
+ * </p>
+ *
+ * <p>
+ * Compact protocol clients can send binary frames encoded by {@link BinaryMessageCodec}. Clients connecting
+ * with the query parameter {@value #BINARY_PARAMETER}=1 receive binary frames as well. Text protocol messages
+ * without binary equivalent (e.g. file transfer control) can be sent in {@link BinaryMessageCodec#TEXT} frames.
+ * </p>
+ *
+ * <p>
+ * File chunks are sent and received as {@link BinaryMessageCodec#FILE_CHUNK} frames, whatever the mode is.
+ * </p>
  *
  * @author Andy Cheung
  * @since 2020/5/18
  */
 @Slf4j
-public class WebSocketHandler implements WebSocketListener {
+public class WebSocketHandler implements WebSocketListener, ChatSession {
+    /**
+     * Name of the query parameter that enables coalescing of the outbound messages.
+     */
+    public static final String BATCH_PARAMETER = "batch";
+
+    /**
+     * Name of the query parameter that switches the outbound messages to binary frames.
+     */
+    public static final String BINARY_PARAMETER = "binary";
+
     private static final Pattern PATTERN_OF_PRIVATE_CHATTING_MESSAGE = Pattern.compile("[@].*[#]");
-    private static final Set<WebSocketHandler> connections;
-    // UUID, Name
-    private static final Map<String, String> nameBindings;
+
+    private static final Metrics.Counter[] MESSAGES_HANDLED = Metrics.getInstance().counters(
+            "mchat_messages_handled_total", "Protocol messages handled, by transport and type.",
+            "transport=\"websocket\"", "type", MessageType.class);
+
+    private static final Metrics.Histogram MESSAGE_HANDLING = Metrics.getInstance().histogram(
+            "mchat_message_handling_seconds", "Time of handling a protocol message, by transport.",
+            "transport=\"websocket\"");
+
+    private static final Metrics.Counter BINARY_FRAMES = Metrics.getInstance().counter(
+            "mchat_websocket_binary_frames_total", "Binary frames received from the WebSocket sessions.");
+
+    private static final Metrics.Counter CONNECTIONS_ACCEPTED = Metrics.getInstance().counter(
+            "mchat_websocket_connections_accepted_total", "WebSocket sessions connected.");
+
+    private static final Metrics.Counter OUTBOUND_DROPPED = Metrics.getInstance().counter(
+            "mchat_websocket_outbound_dropped_total", "Messages dropped since the outbound queue was full.");
+    /**
+     * Connected sessions (UUID -> Handler). The iteration is weakly consistent, so broadcasting never
+     * fails or blocks when sessions connect and close concurrently.
+     */
+    private static final Map<String, WebSocketHandler> connections;
 
     static {
-        connections = Collections.synchronizedSet(new HashSet<>(16));
-        nameBindings = new ConcurrentHashMap<>(16);
-        MessageDistributor.getInstance().registerSubscriber(new WebSocketBridge());
+        connections = new ConcurrentHashMap<>(16);
+
+        Metrics.getInstance().gauge("mchat_websocket_connections", "Connected WebSocket sessions.",
+                connections::size);
     }
 
     private final String uuid = UUID.randomUUID().toString();
     private Session session;
+    private WebSocketOutbound outbound;
     private String nickname;
 
     public static boolean isConnected() {
         return !connections.isEmpty();
     }
 
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public String getName() {
+        return nickname;
+    }
+
+    @Override
+    public Transport getTransport() {
+        return Transport.WEBSOCKET;
+    }
+
+    /**
+     * Queue the text to be sent asynchronously. The text is dropped if too many messages are waiting.
+     *
+     * @param text The text.
+     */
+    @Override
+    public void send(String text) {
+        send(OutboundMessage.of(text));
+    }
+
+    @Override
+    public void send(OutboundMessage message) {
+        if (!outbound.offer(message) && session.isOpen()) {
+            OUTBOUND_DROPPED.increment();
+            log.warn("Outbound queue of WebSocket session {} is full, message dropped.", uuid);
+        }
+    }
+
+    @Override
+    public void sendChunk(String transferId, long offset, ByteBuffer data) throws IOException {
+        // The recipient requests the range again if it fails.
+        outbound.sendChunk(BinaryMessageCodec.encodeChunkHeader(transferId, offset), data);
+    }
+
     @Override
     public void onWebSocketBinary(byte[] payload, int offset, int len) {
-        /* only interested in text messages */
+        BINARY_FRAMES.increment();
+
+        try {
+            if (len > 0 && payload[offset] == BinaryMessageCodec.FILE_CHUNK) {
+                var chunk = BinaryMessageCodec.decodeChunk(ByteBuffer.wrap(payload, offset, len));
+
+                if (UserManager.getInstance().lookupSession(uuid) == this) {
+                    FileTransferService.getInstance().receive(this, chunk.transferId(), chunk.offset(), chunk.data());
+                }
+
+                return;
+            }
+
+            var frame = BinaryMessageCodec.decode(ByteBuffer.wrap(payload, offset, len));
+
+            switch (frame.type()) {
+                case BinaryMessageCodec.MESSAGE -> handleIncomingMessage(frame.field(1));
+                case BinaryMessageCodec.REGISTER -> handleRegister(frame.field(1));
+                case BinaryMessageCodec.NAME_QUERY -> handleUsernameQueryRequest(frame.field(0));
+                case BinaryMessageCodec.TEXT -> onWebSocketText(frame.field(0));
+                default -> {
+                    // Don't do anything.
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("Malformed binary frame from WebSocket session {}: {}", uuid, e.getMessage());
+        }
     }
 
     @Override
     public void onWebSocketClose(int statusCode, String reason) {
-        connections.remove(this);
-        nameBindings.remove(uuid);
-        UserManager.getInstance().undoReserveName(nickname);
+        connections.remove(uuid, this);
+        UserManager.getInstance().unregister(uuid);
+
+        if (outbound != null) {
+            outbound.close();
+        }
     }
 
     @Override
@@ -82,15 +210,37 @@ public class WebSocketHandler implements WebSocketListener {
 
     @Override
     public void onWebSocketText(String message) {
-        var um = UserManager.getInstance();
+        long start = System.nanoTime();
+        MessageType type = MessageType.getMessageType(message);
 
-        switch (MessageType.getMessageType(message)) {
+        MESSAGES_HANDLED[type.ordinal()].increment();
 
-            case INCOMING_MESSAGE -> handleIncomingMessage(message, um);
+        try {
+            handleText(type, message);
+        } finally {
+            MESSAGE_HANDLING.recordSince(start);
+        }
+    }
+
+    private void handleText(MessageType type, String message) {
+        switch (type) {
+
+            case INCOMING_MESSAGE -> {
+                String messageText = INCOMING_MESSAGE.tokenize(message).get("messageText");
+
+                if (messageText != null) {
+                    handleIncomingMessage(messageText);
+                }
+            }
+
+            case REGISTER -> handleRegister(REGISTER.tokenize(message).get("name"));
 
-            case REGISTER -> handleRegister(message);
+            case FILE_OFFER, FILE_GET -> FileTransferHandler.handle(
+                    UserManager.getInstance().lookupSession(uuid) == this ? this : null,
+                    type, message);
 
-            case USERNAME_QUERY_REQUEST -> handleUsernameQueryRequest(message);
+            case USERNAME_QUERY_REQUEST -> handleUsernameQueryRequest(USERNAME_QUERY_REQUEST.tokenize(message)
+                    .get("username"));
 
             default -> {
                 // Don't do anything.
@@ -98,33 +248,42 @@ public class WebSocketHandler implements WebSocketListener {
         }
     }
 
-    private void handleUsernameQueryRequest(String message) {
-        String name = USERNAME_QUERY_REQUEST.tokenize(message).get("username");
+    private void handleUsernameQueryRequest(String name) {
+        send(UserManager.getInstance().containsName(name) ? Protocol.USER_NAME_DUPLICATED
+                : Protocol.USER_NAME_NOT_EXIST);
+    }
 
-        try {
-            session.getRemote()
-                    .sendString(UserManager.getInstance().containsName(name) ? Protocol.USER_NAME_DUPLICATED
-                            : Protocol.USER_NAME_NOT_EXIST);
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+    private void handleRegister(String name) {
+        if (nickname != null) {
+            log.warn("WebSocket session {} is already registered as {}.", uuid, nickname);
+            return;
         }
-    }
 
-    private void handleRegister(String message) {
-        Map<String, String> result = REGISTER.tokenize(message);
+        // The registry reads the name from the session, so it is cleared again if the registration fails.
+        nickname = name;
 
-        if (UserManager.getInstance().reserveName(result.get("name"))) {
-            nameBindings.put(result.get("uuid"), result.get("name"));
+        if (!UserManager.getInstance().register(this)) {
+            nickname = null;
+            log.warn("Name {} is already in use, WebSocket session {} is not registered.", name, uuid);
+            session.close(StatusCode.POLICY_VIOLATION, "Name is already in use.");
+            return;
         }
 
-        nickname = result.get("name");
+        ChatHistoryService.getInstance().replayTo(this);
+        OfflineMailbox.getInstance().deliverTo(this);
     }
 
-    private void handleIncomingMessage(String message, UserManager um) {
-        String protoMsg = message.replace(uuid, nickname);
+    private void handleIncomingMessage(String messageText) {
+        if (nickname == null) {
+            log.debug("Message from unregistered WebSocket session {} ignored.", uuid);
+            return;
+        }
+
+        var um = UserManager.getInstance();
+        String protoMsg = MESSAGE_HEADER_LEFT_HALF + nickname + MESSAGE_HEADER_MIDDLE_HALF
+                + MESSAGE_HEADER_RIGHT_HALF + messageText;
 
-        var matcherOfMessageText = PATTERN_OF_PRIVATE_CHATTING_MESSAGE.matcher(message);
+        var matcherOfMessageText = PATTERN_OF_PRIVATE_CHATTING_MESSAGE.matcher(messageText);
 
         // Private chatting message.
         if (matcherOfMessageText.find()) {
@@ -132,76 +291,56 @@ public class WebSocketHandler implements WebSocketListener {
                     .replace("@", "")
                     .replace("#", "");
 
-            connections.stream()
-                    .filter(x -> x.nickname.equals(targetName))
-                    .findFirst()
-                    .ifPresentOrElse(x -> {
-                        try {
-                            x.session.getRemote().sendString(protoMsg);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }, () -> {
-                        try {
-                            var tokenizedMessage = MessageType.INCOMING_MESSAGE.tokenize(message);
-
-                            var messageText = tokenizedMessage.get("messageText").split("#", 2)[1];
-
-                            ServerListener.getInstance().sendCommunicationData(MESSAGE_HEADER_LEFT_HALF +
-                                    this.nickname + " -> " + targetName + " (私聊)" +
-                                    MESSAGE_HEADER_MIDDLE_HALF + MESSAGE_HEADER_RIGHT_HALF +
-                                    messageText, um.findUuidByName(targetName).get());
-
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    });
+            um.findSessionByName(targetName).ifPresentOrElse(target -> {
+                try {
+                    if (target.getTransport() == Transport.WEBSOCKET) {
+                        target.send(protoMsg);
+                    } else {
+                        target.send(MESSAGE_HEADER_LEFT_HALF +
+                                this.nickname + " -> " + targetName + " (私聊)" +
+                                MESSAGE_HEADER_MIDDLE_HALF + MESSAGE_HEADER_RIGHT_HALF +
+                                messageText.split("#", 2)[1]);
+                    }
+                } catch (IOException e) {
+                    log.error("Failed in sending private message. [Target = " + targetName + "]", e);
+                }
+            }, () -> {
+                String[] parts = messageText.split("#", 2);
+                boolean kept = parts.length == 2
+                        && OfflineMailbox.getInstance().deposit(targetName, nickname, parts[1]);
+
+                send(MESSAGE_HEADER_LEFT_HALF + BROADCAST_MESSAGE_UUID + MESSAGE_HEADER_MIDDLE_HALF
+                        + MESSAGE_HEADER_RIGHT_HALF + (kept ? targetName + " 不在线，消息将在其上线后送达。"
+                        : "INVALID username"));
+            });
 
             return;
         }
 
         try {
-            MessageDistributor.getInstance().sendRawProtocolMessage(protoMsg);
+            MessageDistributor.getInstance().publish(ChatEvent.chat(uuid, nickname, messageText));
         } catch (InterruptedException e1) {
-            e1.printStackTrace();
+            Thread.currentThread().interrupt();
         }
 
-        broadcastMessage(protoMsg);
+        MessageFanout.getInstance().broadcast(protoMsg, uuid);
     }
 
     @Override
     public void onWebSocketConnect(Session session) {
         this.session = session;
-        connections.add(this);
+        this.outbound = new WebSocketOutbound(session.getRemote(),
+                isRequested(session, BATCH_PARAMETER), isRequested(session, BINARY_PARAMETER));
+        connections.put(uuid, this);
+        CONNECTIONS_ACCEPTED.increment();
 
-        try {
-            session.getRemote().sendString(Protocol.WEBSOCKET_UUID_HEADER + uuid + Protocol.WEBSOCKET_UUID_TAIL);
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        send(Protocol.WEBSOCKET_UUID_HEADER + uuid + Protocol.WEBSOCKET_UUID_TAIL);
     }
 
-    private void broadcastMessage(String message) {
-        if ((session != null) && (session.isOpen())) {
-            for (WebSocketHandler h : connections) {
-                if (h != this) {
-                    try {
-                        h.session.getRemote().sendString(message);
-                    } catch (IOException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }
+    private static boolean isRequested(Session session, String parameter) {
+        List<String> values = session.getUpgradeRequest().getParameterMap().get(parameter);
 
-        try {
-            ServerListener.getInstance().sendCommunicationData(message, Protocol.BROADCAST_MESSAGE_UUID);
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        return values != null && (values.contains("1") || values.contains("true"));
     }
 
     @Override
@@ -224,28 +363,4 @@ public class WebSocketHandler implements WebSocketListener {
         WebSocketHandler other = (WebSocketHandler) obj;
         return Objects.equals(uuid, other.uuid);
     }
-
-    public static class WebSocketBridge implements SubscriberCallback {
-        @Override
-        public void onMessageReceived(String uiMessage) {
-
-            if (uiMessage.isEmpty()) {
-                return;
-            }
-
-            String name = uiMessage.split("\\s*:\\s*")[0];
-
-            for (WebSocketHandler conn : connections) {
-                if (conn.nickname.equals(name) || conn.uuid.equals(name)) {
-                    continue;
-                }
-
-                try {
-                    conn.session.getRemote().sendString(uiMessage);
-                } catch (IOException e) {
-                    log.error("Failed in sending websocket message in broadcasting. [UUID = " + conn.uuid + "]", e);
-                }
-            }
-        }
-    }
 }
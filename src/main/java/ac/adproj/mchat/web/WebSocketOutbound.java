@@ -0,0 +1,325 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.web;
+
+import ac.adproj.mchat.handler.BinaryMessageCodec;
+import ac.adproj.mchat.model.OutboundMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jetty.util.IteratingCallback;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Outbound message queue of a WebSocket session.
+ * </p>
+ *
+ * <p>
+ * Messages are sent with the asynchronous API of Jetty, one frame at a time, so the callers never block
+ * on a slow browser. The queue is bounded (system property {@value #CAPACITY_PROPERTY}), the messages
+ * exceeding the capacity are dropped.
+ * </p>
+ *
+ * <p>
+ * When batching is enabled, the messages queued up while a frame is being written are coalesced into one
+ * frame, as a JSON array of strings. A single message is always sent as is.
+ * </p>
+ *
+ * <p>
+ * In binary mode, the messages are sent as binary frames encoded by {@link BinaryMessageCodec},
+ * and coalesced into {@link BinaryMessageCodec#BATCH} frames. A single message is sent from the encoding
+ * shared by all sessions ({@link OutboundMessage#compact}), while Jetty encodes every text frame again.
+ * </p>
+ *
+ * <p>
+ * File chunks are always sent as {@link BinaryMessageCodec#FILE_CHUNK} frames, never coalesced. The relaying
+ * thread waits for the turn of the chunk in the queue, then sends the header and the data (a view of the file
+ * mapping) with the blocking partial writes, so the data is not copied.
+ * </p>
+ *
+ * <p>
+ * Only the public API of {@link RemoteEndpoint} is used, so the message state checks of Jetty stay in effect.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+@Slf4j
+final class WebSocketOutbound extends IteratingCallback implements WriteCallback {
+    /**
+     * Name of the system property of the capacity of the outbound queue.
+     */
+    static final String CAPACITY_PROPERTY = "mchat.websocket.outboundCapacity";
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Max number of messages coalesced into one frame.
+     */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    /**
+     * Max time waiting for the turn of a file chunk, so a stalled session doesn't hold the relaying thread.
+     */
+    private static final long CHUNK_TURN_TIMEOUT_SECONDS = 30;
+
+    private final RemoteEndpoint remote;
+    private final boolean batching;
+    private final boolean binary;
+    private final int capacity;
+
+    /**
+     * File chunk waiting for its turn, the relaying thread sends it when the turn is completed.
+     */
+    private record Chunk(CompletableFuture<Void> turn) {
+    }
+
+    /**
+     * The queued {@link OutboundMessage} and {@link Chunk} objects.
+     */
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Only used by the iterating thread.
+     */
+    private final StringBuilder frame = new StringBuilder();
+
+    WebSocketOutbound(RemoteEndpoint remote, boolean batching, boolean binary) {
+        this(remote, batching, binary, Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+    }
+
+    WebSocketOutbound(RemoteEndpoint remote, boolean batching, boolean binary, int capacity) {
+        this.remote = remote;
+        this.batching = batching;
+        this.binary = binary;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queue the message to be sent.
+     *
+     * @param message The message.
+     * @return False if the message is dropped.
+     */
+    boolean offer(String message) {
+        return offer(OutboundMessage.of(message));
+    }
+
+    /**
+     * Queue the message to be sent.
+     *
+     * @param message The message.
+     * @return False if the message is dropped.
+     */
+    boolean offer(OutboundMessage message) {
+        return enqueue(message);
+    }
+
+    /**
+     * Send the file chunk after the messages queued before, blocking. Must not be called by the Jetty threads.
+     *
+     * @param header The encoded header of the chunk, see {@link BinaryMessageCodec#encodeChunkHeader(String, long)}.
+     * @param data   The data, must not be modified until sent.
+     * @throws IOException If the queue is full or closed, the turn doesn't come in time, or the write fails.
+     */
+    void sendChunk(byte[] header, ByteBuffer data) throws IOException {
+        var chunk = new Chunk(new CompletableFuture<>());
+
+        if (!enqueue(chunk)) {
+            throw new IOException("Outbound queue is full or closed.");
+        }
+
+        try {
+            chunk.turn().get(CHUNK_TURN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+
+            // Skipped by the iterating thread, unless the turn has just come.
+            chunk.turn().completeExceptionally(e);
+
+            if (chunk.turn().isCompletedExceptionally()) {
+                throw new IOException("File chunk is not sent.", e);
+            }
+        }
+
+        try {
+            remote.sendPartialBytes(ByteBuffer.wrap(header), false);
+            remote.sendPartialBytes(data, true);
+        } catch (IOException | RuntimeException e) {
+            failed(e);
+            throw e;
+        }
+
+        succeeded();
+    }
+
+    private boolean enqueue(Object message) {
+        if (isClosed() || isFailed()) {
+            return false;
+        }
+
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        queue.offer(message);
+        iterate();
+
+        return true;
+    }
+
+    int size() {
+        return queued.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    protected Action process() {
+        Object next;
+
+        do {
+            next = queue.poll();
+
+            if (next == null) {
+                return Action.IDLE;
+            }
+
+            queued.decrementAndGet();
+
+            // The relaying thread sends the chunk, and completes the callback. Skips the abandoned ones.
+            if (next instanceof Chunk chunk && chunk.turn().complete(null)) {
+                return Action.SCHEDULED;
+            }
+        } while (next instanceof Chunk);
+
+        OutboundMessage first = (OutboundMessage) next;
+
+        if (binary) {
+            return processBinary(first);
+        }
+
+        if (!batching || !(queue.peek() instanceof OutboundMessage)) {
+            remote.sendString(first.text(), this);
+            return Action.SCHEDULED;
+        }
+
+        frame.setLength(0);
+        frame.append('[');
+        appendJsonString(frame, first.text());
+
+        for (int n = 1; n < MAX_BATCH_SIZE && queue.peek() instanceof OutboundMessage; n++) {
+            queued.decrementAndGet();
+            frame.append(',');
+            appendJsonString(frame, ((OutboundMessage) queue.poll()).text());
+        }
+
+        frame.append(']');
+        remote.sendString(frame.toString(), this);
+
+        return Action.SCHEDULED;
+    }
+
+    private Action processBinary(OutboundMessage first) {
+        if (!batching || !(queue.peek() instanceof OutboundMessage)) {
+            remote.sendBytes(ByteBuffer.wrap(first.compact(BinaryMessageCodec::encode)), this);
+            return Action.SCHEDULED;
+        }
+
+        List<byte[]> frames = new ArrayList<>();
+        frames.add(first.compact(BinaryMessageCodec::encode));
+
+        while (frames.size() < MAX_BATCH_SIZE && queue.peek() instanceof OutboundMessage) {
+            queued.decrementAndGet();
+            frames.add(((OutboundMessage) queue.poll()).compact(BinaryMessageCodec::encode));
+        }
+
+        remote.sendBytes(ByteBuffer.wrap(BinaryMessageCodec.encodeBatch(frames)), this);
+
+        return Action.SCHEDULED;
+    }
+
+    @Override
+    public void writeSuccess() {
+        succeeded();
+    }
+
+    @Override
+    public void writeFailed(Throwable x) {
+        failed(x);
+    }
+
+    @Override
+    protected void onCompleteFailure(Throwable cause) {
+        log.warn("Failed in sending websocket message, {} queued message(s) discarded.", queued.get(), cause);
+
+        Object next;
+
+        while ((next = queue.poll()) != null) {
+            if (next instanceof Chunk chunk) {
+                chunk.turn().completeExceptionally(cause);
+            }
+        }
+
+        queued.set(0);
+    }
+
+    static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+
+        sb.append('"');
+    }
+}
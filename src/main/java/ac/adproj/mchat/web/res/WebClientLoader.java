@@ -14,54 +14,262 @@
     You should have received a copy of the GNU General Public License
     along with this program.  If not, see <https://www.gnu.org/licenses/>.
 */
-
 package ac.adproj.mchat.web.res;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
+ * <p>
  * Loader of WebSocket (client) web application package.
- * 
+ * </p>
+ *
+ * <p>
+ * The package is extracted once into the cache directory (system property {@value #CACHE_DIRECTORY_PROPERTY},
+ * defaults to "acmc-webC" in the temporary directory), under the SHA-256 of its content. Later starts
+ * with the same package reuse the extracted files, and the extractions of outdated packages are removed
+ * (only the entries named by the loader, other files in the directory are kept).
+ * </p>
+ *
+ * <p>
+ * The modification time of the files is taken from the package, so the validators (Last-Modified & ETag)
+ * stay the same across restarts and servers. The compressible files get a gzip variant (".gz"),
+ * which is served to the browsers accepting gzip.
+ * </p>
+ *
  * @author Andy Cheung
  * @since 2020/5/22
  */
+@Slf4j
 public final class WebClientLoader {
     public static final String WAR_NAME_IN_RESOURCE_PATH = "webClient.war";
 
     /**
-     * Load web application package in resource, and copy it to temporary location.
-     * (Delete when application stops.)
-     * 
-     * @return The absolute path of copied web application.
+     * Name of the system property of the cache directory.
+     */
+    public static final String CACHE_DIRECTORY_PROPERTY = "mchat.web.cacheDir";
+
+    /**
+     * Extensions of the files to be precompressed.
+     */
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = Set.of(
+            "html", "htm", "js", "mjs", "css", "json", "map", "svg", "txt", "xml", "wasm");
+
+    /**
+     * Files smaller than this are not worth compressing.
+     */
+    private static final int MIN_COMPRESSIBLE_SIZE = 256;
+
+    /**
+     * Names of the entries made by the loader: the extractions (hash) and their temporary ones (hash.random).
+     * The packages copied by the earlier versions (hash.war, hash.random.war) are matched as well, so they're
+     * cleaned up.
+     */
+    private static final Pattern ENTRY_NAME = Pattern.compile("([0-9a-f]{64})(\\.war)?(\\.[^.]+(\\.war)?)?");
+
+    /**
+     * Temporary entries younger than this may be in use by an extraction of another version.
+     */
+    private static final Duration TEMPORARY_ENTRY_EXPIRY = Duration.ofHours(1);
+
+    private WebClientLoader() {
+        throw new UnsupportedOperationException("No instance.");
+    }
+
+    private static Path getCacheDirectory() {
+        return Path.of(System.getProperty(CACHE_DIRECTORY_PROPERTY,
+                Path.of(System.getProperty("java.io.tmpdir"), "acmc-webC").toString()));
+    }
+
+    private static Optional<byte[]> readWar() throws IOException {
+        try (InputStream is = WebClientLoader.class.getResourceAsStream(WAR_NAME_IN_RESOURCE_PATH)) {
+            return is == null ? Optional.empty() : Optional.of(is.readAllBytes());
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Obtain the directory of the extracted web application, extract the package if it's not cached.
+     *
+     * @return The directory, or empty if the package doesn't exist in resource.
+     * @throws UncheckedIOException If failed to extract the package.
      */
-    public static String getWebappWarPath() {
-        FileOutputStream fos = null;
+    public static Optional<Path> getWebClientDirectory() {
+        try {
+            Optional<byte[]> war = readWar();
+
+            if (war.isEmpty()) {
+                log.warn("{} is not found in resource, the web client is not available.", WAR_NAME_IN_RESOURCE_PATH);
+                return Optional.empty();
+            }
+
+            String hash = sha256(war.get());
+            Path cacheDirectory = getCacheDirectory();
+            Path target = cacheDirectory.resolve(hash);
+
+            if (!Files.isDirectory(target)) {
+                Files.createDirectories(cacheDirectory);
+
+                // Extract to a temporary directory first, so an interrupted extraction is never reused.
+                Path temp = Files.createTempDirectory(cacheDirectory, hash + ".");
+
+                try {
+                    extract(war.get(), temp);
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    deleteRecursively(temp);
+
+                    // Extracted by another process concurrently.
+                    if (!Files.isDirectory(target)) {
+                        throw e;
+                    }
+                }
+
+                log.info("Web client extracted to {}", target);
+                removeOutdatedEntries(cacheDirectory, hash, Instant.now());
+            }
 
-        try (BufferedInputStream is = new BufferedInputStream(
-                WebClientLoader.class.getResourceAsStream(WAR_NAME_IN_RESOURCE_PATH))) {
+            return Optional.of(target);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to extract the web client.", e);
+        }
+    }
+
+    static void extract(byte[] war, Path target) throws IOException {
+        try (var zis = new ZipInputStream(new ByteArrayInputStream(war))) {
+            ZipEntry entry;
+
+            while ((entry = zis.getNextEntry()) != null) {
+                Path path = target.resolve(entry.getName()).normalize();
+
+                if (!path.startsWith(target)) {
+                    throw new IOException("Invalid entry in web application package: " + entry.getName());
+                }
+
+                if (entry.isDirectory()) {
+                    Files.createDirectories(path);
+                    continue;
+                }
+
+                Files.createDirectories(path.getParent());
+
+                try (OutputStream os = Files.newOutputStream(path)) {
+                    zis.transferTo(os);
+                }
 
-            File f = File.createTempFile("acmc-webC-", ".war");
-            f.deleteOnExit();
-            fos = new FileOutputStream(f);
+                if (isCompressible(path)) {
+                    precompress(path);
+                }
 
-            int dataBit;
-            while ((dataBit = is.read()) != -1) {
-                fos.write(dataBit);
+                setLastModifiedTime(path, entry.getLastModifiedTime());
             }
+        }
+    }
+
+    private static boolean isCompressible(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+
+        return dot >= 0 && COMPRESSIBLE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))
+                && Files.size(path) >= MIN_COMPRESSIBLE_SIZE;
+    }
+
+    private static void precompress(Path path) throws IOException {
+        Path compressed = path.resolveSibling(path.getFileName() + ".gz");
+
+        try (InputStream is = Files.newInputStream(path);
+             OutputStream os = new GZIPOutputStream(Files.newOutputStream(compressed)) {
+                 {
+                     def.setLevel(Deflater.BEST_COMPRESSION);
+                 }
+             }) {
+            is.transferTo(os);
+        }
+
+        // Keep the variant only if it saves something.
+        if (Files.size(compressed) >= Files.size(path)) {
+            Files.delete(compressed);
+        }
+    }
+
+    private static void setLastModifiedTime(Path path, FileTime time) throws IOException {
+        if (time == null) {
+            return;
+        }
+
+        Files.setLastModifiedTime(path, time);
+
+        Path compressed = path.resolveSibling(path.getFileName() + ".gz");
+
+        // Jetty serves the variant only if it's not older than the original.
+        if (Files.exists(compressed)) {
+            Files.setLastModifiedTime(compressed, time);
+        }
+    }
 
-            return f.getAbsolutePath();
+    /**
+     * Remove the extractions and the packages of the other versions. Other files in the cache directory
+     * are left alone, and the temporary entries are removed only when they're expired.
+     */
+    static void removeOutdatedEntries(Path cacheDirectory, String currentHash, Instant now) {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(cacheDirectory)) {
+            for (Path entry : entries) {
+                Matcher matcher = ENTRY_NAME.matcher(entry.getFileName().toString());
+
+                if (!matcher.matches() || matcher.group(1).equals(currentHash)) {
+                    continue;
+                }
+
+                boolean temporary = matcher.group(3) != null;
+
+                if (!temporary || Files.getLastModifiedTime(entry).toInstant()
+                        .isBefore(now.minus(TEMPORARY_ENTRY_EXPIRY))) {
+                    deleteRecursively(entry);
+                }
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-
-            return null;
-        } finally {
-            try {
-                fos.close();
-            } catch (IOException e) {
-                // ignore
+            log.warn("Failed to remove outdated web client in {}", cacheDirectory, e);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
             }
         }
     }
@@ -0,0 +1,116 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.benchmark;
+
+import ac.adproj.mchat.service.MpscRingBuffer;
+import ac.adproj.mchat.service.WaitStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * <p>
+ * Compares the throughput of the message queue of MessageDistributor under a chat burst:
+ * the former {@link LinkedBlockingQueue} taking one message per wake-up, and the {@link MpscRingBuffer}
+ * draining in batches.
+ * </p>
+ *
+ * <p>
+ * Arguments: [producers] [messages per producer] [wait strategy]
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+public class MessageQueueBenchmark {
+
+    private interface Producer {
+        void put(String message) throws InterruptedException;
+    }
+
+    private interface Consumer {
+        int consume(List<String> batch) throws InterruptedException;
+    }
+
+    private static double run(int producers, int messagesPerProducer, Producer producer, Consumer consumer)
+            throws InterruptedException {
+        final String message = "Alice: Hello, everyone!";
+        CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            Thread t = new Thread(() -> {
+                try {
+                    startLatch.await();
+
+                    for (int i = 0; i < messagesPerProducer; i++) {
+                        producer.put(message);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            t.start();
+            threads.add(t);
+        }
+
+        long total = (long) producers * messagesPerProducer;
+        long received = 0;
+        List<String> batch = new ArrayList<>(256);
+
+        long start = System.nanoTime();
+        startLatch.countDown();
+
+        while (received < total) {
+            batch.clear();
+            received += consumer.consume(batch);
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        return total / (elapsed / 1e9);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int messagesPerProducer = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        String waitStrategy = args.length > 2 ? args[2] : "blocking";
+
+        for (int round = 0; round < 5; round++) {
+            BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+            double linkedQueue = run(producers, messagesPerProducer, queue::put, batch -> {
+                batch.add(queue.take());
+                return 1;
+            });
+
+            MpscRingBuffer<String> ringBuffer = new MpscRingBuffer<>(4096, WaitStrategy.of(waitStrategy));
+            double ring = run(producers, messagesPerProducer, ringBuffer::put,
+                    batch -> ringBuffer.awaitAndDrainTo(batch, 256));
+
+            System.out.printf("Round %d: LinkedBlockingQueue %.0f msg/s, MpscRingBuffer (%s) %.0f msg/s%n",
+                    round, linkedQueue, waitStrategy, ring);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.benchmark;
+
+import ac.adproj.mchat.service.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * <p>
+ * Measures the cost of recording metrics on the hot paths from many threads: incrementing a
+ * {@link Metrics.Counter}, recording into a {@link Metrics.Histogram}, and timing with {@link System#nanoTime()}
+ * alone as the baseline. A shared {@link AtomicLong} is shown for comparison.
+ * </p>
+ *
+ * <p>
+ * Arguments: [threads] [operations per thread]
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+public class MetricsBenchmark {
+
+    private static volatile long sink;
+
+    private static double run(int threads, int operations, LongConsumer operation) throws InterruptedException {
+        CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                for (int i = 0; i < operations; i++) {
+                    operation.accept(i);
+                }
+            });
+
+            worker.start();
+            workers.add(worker);
+        }
+
+        long start = System.nanoTime();
+        startLatch.countDown();
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // Nanoseconds per operation of a thread.
+        return (double) (System.nanoTime() - start) / operations;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+
+        var metrics = Metrics.getInstance();
+        var counter = metrics.counter("benchmark_operations_total", "Benchmark.");
+        var histogram = metrics.histogram("benchmark_seconds", "Benchmark.");
+        var atomic = new AtomicLong();
+
+        for (int round = 0; round < 5; round++) {
+            double nanoTime = run(threads, operations, i -> sink = System.nanoTime());
+            double atomicLong = run(threads, operations, i -> atomic.incrementAndGet());
+            double counterIncrement = run(threads, operations, i -> counter.increment());
+            double histogramRecord = run(threads, operations, i -> histogram.record(i & 0xFFFFF));
+            double timedRecord = run(threads, operations, i -> histogram.recordSince(System.nanoTime()));
+
+            System.out.printf("Round %d (%d threads): nanoTime %.1f ns, AtomicLong %.1f ns, Counter %.1f ns, "
+                            + "Histogram.record %.1f ns, Histogram.recordSince %.1f ns%n",
+                    round, threads, nanoTime, atomicLong, counterIncrement, histogramRecord, timedRecord);
+        }
+    }
+}
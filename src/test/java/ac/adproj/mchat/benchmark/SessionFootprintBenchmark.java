@@ -0,0 +1,55 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.benchmark;
+
+import ac.adproj.mchat.service.UserManager;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+/**
+ * Measures the heap cost per idle connection of the registry entry of a TCP user.
+ *
+ * @author Andy Cheung
+ */
+public class SessionFootprintBenchmark {
+    private static final int SESSIONS = 100_000;
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        UserManager userManager = UserManager.getInstance();
+        long baseline = usedHeap();
+
+        for (int i = 0; i < SESSIONS; i++) {
+            userManager.register(UUID.randomUUID().toString(), "U" + i, null);
+        }
+
+        long registry = usedHeap() - baseline;
+        System.out.printf("Registered user: %.1f bytes/session%n", (double) registry / SESSIONS);
+
+        userManager.clearAllProfiles();
+    }
+}
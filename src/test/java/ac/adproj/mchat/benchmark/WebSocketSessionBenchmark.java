@@ -0,0 +1,160 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.benchmark;
+
+import ac.adproj.mchat.model.Protocol;
+import ac.adproj.mchat.service.MessageFanout;
+import ac.adproj.mchat.service.UserManager;
+import ac.adproj.mchat.web.WebServerStarter;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures how many concurrent WebSocket sessions one node can hold: the time to open the sessions,
+ * the heap used per session (client side included, since both sides run in this process),
+ * and the latency of one broadcast (through {@link MessageFanout}) reaching every registered session.
+ * </p>
+ *
+ * <p>
+ * Arguments: [sessions] [port]. Jetty can be tuned with the system properties of {@link WebServerStarter}.
+ * </p>
+ *
+ * @author Andy Cheung
+ */
+public class WebSocketSessionBenchmark {
+
+    private static volatile String expected;
+
+    private static volatile CountDownLatch broadcastLatch = new CountDownLatch(0);
+
+    private static class BenchmarkSocket extends WebSocketAdapter {
+        @Override
+        public void onWebSocketText(String message) {
+            if (message.startsWith(Protocol.WEBSOCKET_UUID_HEADER)) {
+                String uuid = message.substring(Protocol.WEBSOCKET_UUID_HEADER.length(),
+                        message.length() - Protocol.WEBSOCKET_UUID_TAIL.length());
+
+                getRemote().sendStringByFuture(Protocol.CONNECTING_GREET_LEFT_HALF + uuid
+                        + Protocol.CONNECTING_GREET_MIDDLE_HALF + "bench-" + uuid
+                        + Protocol.CONNECTING_GREET_RIGHT_HALF);
+            } else if (message.equals(expected)) {
+                broadcastLatch.countDown();
+            }
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 18090;
+
+        Server server = WebServerStarter.createServer(port);
+        server.setHandler(WebServerStarter.createContext());
+        server.start();
+
+        WebSocketClient client = new WebSocketClient();
+        client.setMaxIdleTimeout(TimeUnit.MINUTES.toMillis(10));
+        client.start();
+
+        URI uri = URI.create("ws://127.0.0.1:" + port + "/acmcs/wshandler");
+        List<Session> opened = new ArrayList<>(sessions);
+
+        try {
+            long heapBefore = usedHeap();
+            long start = System.nanoTime();
+
+            List<Future<Session>> futures = new ArrayList<>(sessions);
+
+            for (int i = 0; i < sessions; i++) {
+                futures.add(client.connect(new BenchmarkSocket(), uri));
+
+                // Keeps the number of pending handshakes bounded, so the accept queue doesn't overflow.
+                if (futures.size() == 256) {
+                    for (Future<Session> f : futures) {
+                        opened.add(f.get(30, TimeUnit.SECONDS));
+                    }
+
+                    futures.clear();
+                }
+            }
+
+            for (Future<Session> f : futures) {
+                opened.add(f.get(30, TimeUnit.SECONDS));
+            }
+
+            double connectMillis = (System.nanoTime() - start) / 1e6;
+            long heapAfter = usedHeap();
+
+            System.out.printf("Opened %d sessions in %.1f ms (%.0f sessions/s)%n",
+                    opened.size(), connectMillis, opened.size() / (connectMillis / 1000));
+            System.out.printf("Heap: %.1f KiB per session (client and server side)%n",
+                    (heapAfter - heapBefore) / 1024.0 / opened.size());
+
+            long deadline = System.currentTimeMillis() + 30000;
+
+            while (UserManager.getInstance().sessions().size() < opened.size()
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            for (int round = 0; round < 5; round++) {
+                expected = Protocol.MESSAGE_HEADER_LEFT_HALF + Protocol.BROADCAST_MESSAGE_UUID
+                        + Protocol.MESSAGE_HEADER_MIDDLE_HALF + Protocol.MESSAGE_HEADER_RIGHT_HALF
+                        + "Broadcast " + UUID.randomUUID();
+                broadcastLatch = new CountDownLatch(opened.size());
+
+                long broadcastStart = System.nanoTime();
+                MessageFanout.getInstance().broadcast(expected, null);
+
+                boolean completed = broadcastLatch.await(30, TimeUnit.SECONDS);
+
+                System.out.printf("Broadcast #%d reached %d sessions in %.1f ms%s%n", round,
+                        opened.size() - broadcastLatch.getCount(), (System.nanoTime() - broadcastStart) / 1e6,
+                        completed ? "" : " (timed out)");
+            }
+        } finally {
+            for (Session s : opened) {
+                s.close();
+            }
+
+            client.stop();
+            server.stop();
+            System.exit(0);
+        }
+    }
+}
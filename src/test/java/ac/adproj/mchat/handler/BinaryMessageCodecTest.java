@@ -0,0 +1,122 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.handler;
+
+import ac.adproj.mchat.model.Protocol;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryMessageCodecTest {
+
+    @Test
+    void encodesIncomingMessageCompactly() {
+        var uuid = UUID.randomUUID().toString();
+        var text = "你好, world";
+        var message = Protocol.MESSAGE_HEADER_LEFT_HALF + uuid + Protocol.MESSAGE_HEADER_MIDDLE_HALF
+                + Protocol.MESSAGE_HEADER_RIGHT_HALF + text;
+
+        byte[] encoded = BinaryMessageCodec.encode(message);
+        var frame = BinaryMessageCodec.decode(ByteBuffer.wrap(encoded));
+
+        assertEquals(BinaryMessageCodec.MESSAGE, frame.type());
+        assertEquals(List.of(uuid, text), frame.fields());
+        assertTrue(encoded.length < message.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    void encodesServerReplies() {
+        var uuid = UUID.randomUUID().toString();
+
+        var sessionUuid = BinaryMessageCodec.decode(ByteBuffer.wrap(BinaryMessageCodec.encode(
+                Protocol.WEBSOCKET_UUID_HEADER + uuid + Protocol.WEBSOCKET_UUID_TAIL)));
+
+        assertEquals(BinaryMessageCodec.SESSION_UUID, sessionUuid.type());
+        assertEquals(uuid, sessionUuid.field(0));
+
+        var duplicated = BinaryMessageCodec.decode(ByteBuffer.wrap(
+                BinaryMessageCodec.encode(Protocol.USER_NAME_DUPLICATED)));
+
+        assertEquals(BinaryMessageCodec.NAME_QUERY_RESULT, duplicated.type());
+        assertEquals("1", duplicated.field(0));
+
+        var text = BinaryMessageCodec.decode(ByteBuffer.wrap(BinaryMessageCodec.encode("Client: a: b")));
+
+        assertEquals(BinaryMessageCodec.TEXT, text.type());
+        assertEquals("Client: a: b", text.field(0));
+    }
+
+    @Test
+    void handlesMultiByteLengths() {
+        var longText = "x".repeat(70000);
+
+        var frame = BinaryMessageCodec.decode(ByteBuffer.wrap(BinaryMessageCodec.encode(BinaryMessageCodec.TEXT,
+                longText, "")));
+
+        assertEquals(List.of(longText, ""), frame.fields());
+    }
+
+    @Test
+    void decodesBatch() {
+        byte[] batch = BinaryMessageCodec.encodeBatch(List.of(
+                BinaryMessageCodec.encode(BinaryMessageCodec.TEXT, "1"),
+                BinaryMessageCodec.encode(BinaryMessageCodec.LOGOFF, "2")));
+
+        var frames = BinaryMessageCodec.decodeBatch(ByteBuffer.wrap(batch));
+
+        assertEquals(2, frames.size());
+        assertEquals("1", frames.get(0).field(0));
+        assertEquals(BinaryMessageCodec.LOGOFF, frames.get(1).type());
+    }
+
+    @Test
+    void encodesChunk() {
+        byte[] header = BinaryMessageCodec.encodeChunkHeader("t1", 300_000);
+        ByteBuffer frame = ByteBuffer.allocate(header.length + 3).put(header).put(new byte[]{1, 2, 3}).flip();
+
+        var chunk = BinaryMessageCodec.decodeChunk(frame);
+
+        assertEquals("t1", chunk.transferId());
+        assertEquals(300_000, chunk.offset());
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), chunk.data());
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryMessageCodec.decodeChunk(ByteBuffer.wrap(header, 0, header.length - 1)));
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        assertThrows(IllegalArgumentException.class, () -> BinaryMessageCodec.decode(ByteBuffer.allocate(0)));
+
+        // Field length exceeds the frame.
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryMessageCodec.decode(ByteBuffer.wrap(new byte[]{BinaryMessageCodec.TEXT, 5, 'a'})));
+
+        // Truncated varint.
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryMessageCodec.decode(ByteBuffer.wrap(new byte[]{BinaryMessageCodec.TEXT, (byte) 0x80})));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryMessageCodec.decode(ByteBuffer.wrap(new byte[]{BinaryMessageCodec.TEXT})).field(0));
+    }
+}
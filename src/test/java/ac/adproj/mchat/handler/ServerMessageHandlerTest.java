@@ -17,6 +17,7 @@
 
 package ac.adproj.mchat.handler;
 
+import ac.adproj.mchat.model.ChatEvent;
 import ac.adproj.mchat.model.Protocol;
 import ac.adproj.mchat.protocol.ServerListener;
 import ac.adproj.mchat.service.UserManager;
@@ -25,22 +26,26 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.verification.VerificationMode;
 import org.mockito.Mockito;
-import org.mockito.stubbing.Answer;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
 import java.util.UUID;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.when;
 
 class ServerMessageHandlerTest {
 
@@ -80,45 +85,27 @@ class ServerMessageHandlerTest {
     private AsynchronousSocketChannel generateMockChannel() {
         var tempMockChannel = mock(AsynchronousSocketChannel.class);
 
-        when(tempMockChannel.write(any())).thenAnswer((Answer<Future<Integer>>) invocation -> {
+        doAnswer(invocation -> {
+            ByteBuffer[] buffers = invocation.getArgument(0);
+            long written = 0;
 
-            ByteBuffer byteBuffer = (ByteBuffer) invocation.getRawArguments()[0];
+            // Consume the buffers like a real channel does.
+            for (ByteBuffer byteBuffer : buffers) {
+                written += byteBuffer.remaining();
+                byteBuffer.position(byteBuffer.limit());
+            }
 
-            return new Future<>() {
-                boolean cancelled = false;
-
-                @Override
-                public boolean cancel(boolean mayInterruptIfRunning) {
-                    cancelled = true;
-
-                    return true;
-                }
-
-                @Override
-                public boolean isCancelled() {
-                    return cancelled;
-                }
-
-                @Override
-                public boolean isDone() {
-                    return true;
-                }
-
-                @Override
-                public Integer get() {
-                    return byteBuffer.limit();
-                }
-
-                @Override
-                public Integer get(long timeout, TimeUnit unit) {
-                    return 0;
-                }
-            };
-        });
+            invocation.<CompletionHandler<Long, Object>>getArgument(6).completed(written, null);
+            return null;
+        }).when(tempMockChannel).write(any(ByteBuffer[].class), anyInt(), anyInt(), anyLong(), any(), any(), any());
 
         return tempMockChannel;
     }
 
+    private static void verifyWrites(AsynchronousSocketChannel channel, VerificationMode mode) {
+        verify(channel, mode).write(any(ByteBuffer[].class), anyInt(), anyInt(), anyLong(), any(), any(), any());
+    }
+
     @AfterEach
     void autoCleanup() {
         userManager.clearAllProfiles();
@@ -146,7 +133,7 @@ class ServerMessageHandlerTest {
 
         handler.handleMessage(message, userManager.lookup(secondUserUUID).getChannel());
 
-        verify(mockChannel).write(any());
+        verifyWrites(mockChannel, times(1));
     }
 
     @Test
@@ -163,8 +150,8 @@ class ServerMessageHandlerTest {
         handler.handleMessage(message, mockChannel);
 
         var secondChannel = userManager.lookup(secondUserUUID).getChannel();
-        verify(secondChannel).write(any());
-        verify(mockChannel, times(0)).write(any());
+        verifyWrites(secondChannel, times(1));
+        verifyWrites(mockChannel, never());
     }
 
     @Test
@@ -181,8 +168,8 @@ class ServerMessageHandlerTest {
         handler.handleMessage(message, mockChannel);
 
         var secondChannel = userManager.lookup(secondUserUUID).getChannel();
-        verify(secondChannel, times(0)).write(any());
-        verify(mockChannel).write(any());
+        verifyWrites(secondChannel, never());
+        verifyWrites(mockChannel, times(1));
     }
 
     @Test
@@ -203,15 +190,37 @@ class ServerMessageHandlerTest {
     @Test
     void handleIncomingKeepAliveMessage() {
         // Clear status.
-        userManager.lookup(uuid).getKeepAlivePackageTimestamp().set(0);
+        userManager.lookup(uuid).setKeepAliveTimestamp(0);
 
         // Simulates the keepalive message.
         var message = Protocol.KEEP_ALIVE_HEADER + uuid;
         handler.handleMessage(message, mockChannel);
 
-        var timeSpanDifference = System.currentTimeMillis() - userManager.lookup(uuid).getKeepAlivePackageTimestamp().get();
+        var timeSpanDifference = System.currentTimeMillis() - userManager.lookup(uuid).getKeepAliveTimestamp();
 
         // Make sure the difference of the timestamp doesn't go too far.
         assertTrue(timeSpanDifference < 1500);
     }
-}
\ No newline at end of file
+
+    @Test
+    void handleEventCarriesSenderAndKind() {
+        var secondUserUUID = UUID.randomUUID().toString();
+        userManager.register(secondUserUUID, "TEST2", generateMockChannel());
+
+        var publicMessage = Protocol.MESSAGE_HEADER_LEFT_HALF + uuid +
+                Protocol.MESSAGE_HEADER_MIDDLE_HALF + Protocol.MESSAGE_HEADER_RIGHT_HALF + "a: b";
+
+        ChatEvent event = handler.handleEvent(publicMessage, mockChannel);
+
+        assertEquals(ChatEvent.Kind.CHAT, event.kind());
+        assertEquals(uuid, event.senderUuid());
+        assertEquals(testUserName, event.senderName());
+        assertEquals("a: b", event.body());
+
+        var privateMessage = Protocol.MESSAGE_HEADER_LEFT_HALF + uuid +
+                Protocol.MESSAGE_HEADER_MIDDLE_HALF + Protocol.MESSAGE_HEADER_RIGHT_HALF + "@TEST2#hello";
+
+        assertEquals(ChatEvent.Kind.PRIVATE_CHAT, handler.handleEvent(privateMessage, mockChannel).kind());
+        assertNull(handler.handleEvent(Protocol.KEEP_ALIVE_HEADER + uuid, mockChannel));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.model;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class SocketOutboundTest {
+
+    private record PendingWrite(ByteBuffer[] buffers, CompletionHandler<Long, Object> handler) {
+    }
+
+    private final List<PendingWrite> pending = new ArrayList<>();
+
+    private AsynchronousSocketChannel channel;
+
+    @BeforeEach
+    void setUp() {
+        channel = mock(AsynchronousSocketChannel.class);
+
+        // The writes stay pending until completed by the test, like a slow client.
+        doAnswer(invocation -> {
+            pending.add(new PendingWrite(invocation.getArgument(0), invocation.getArgument(6)));
+            return null;
+        }).when(channel).write(any(ByteBuffer[].class), anyInt(), anyInt(), anyLong(), any(), any(), any());
+    }
+
+    private String completeNext() {
+        var write = pending.remove(0);
+        var sb = new StringBuilder();
+        long total = 0;
+
+        for (ByteBuffer buffer : write.buffers()) {
+            total += buffer.remaining();
+            sb.append(StandardCharsets.UTF_8.decode(buffer));
+        }
+
+        write.handler().completed(total, null);
+
+        return sb.toString();
+    }
+
+    private static ByteBuffer utf8(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void writesMessagesAheadOfChunks() {
+        var outbound = new SocketOutbound(channel, 4, 2);
+
+        assertTrue(outbound.offer(utf8("a")));
+        assertTrue(outbound.offerChunk(utf8("H1"), utf8("data1")));
+        assertTrue(outbound.offerChunk(utf8("H2"), utf8("data2")));
+        assertFalse(outbound.offerChunk(utf8("H3"), utf8("data3")));
+        assertTrue(outbound.offer(utf8("b")));
+
+        // One write at a time.
+        assertEquals(1, pending.size());
+
+        assertEquals("a", completeNext());
+        assertEquals("b", completeNext());
+        assertEquals("H1data1", completeNext());
+
+        assertTrue(outbound.offer(utf8("c")));
+        assertEquals("H2data2", completeNext());
+        assertEquals("c", completeNext());
+        assertTrue(pending.isEmpty());
+    }
+
+    @Test
+    void refusesWithoutBlockingWhenClientStalls() {
+        var outbound = new SocketOutbound(channel, 2, 2);
+
+        // The first message is being written, the next two are queued.
+        assertTrue(outbound.offer(utf8("a")));
+        assertTrue(outbound.offer(utf8("b")));
+        assertTrue(outbound.offer(utf8("c")));
+        assertFalse(outbound.offer(utf8("d")));
+
+        assertEquals(2, outbound.size());
+    }
+
+    @Test
+    @SneakyThrows
+    void closesChannelWhenWriteFails() {
+        var outbound = new SocketOutbound(channel, 4, 4);
+
+        outbound.offer(utf8("a"));
+        outbound.offer(utf8("b"));
+        pending.remove(0).handler().failed(new IOException("Connection reset"), null);
+
+        verify(channel).close();
+        assertEquals(0, outbound.size());
+        assertFalse(outbound.offer(utf8("c")));
+    }
+
+    @Test
+    @SneakyThrows
+    void closesChannelOnceFlushed() {
+        var outbound = new SocketOutbound(channel, 4, 4);
+
+        outbound.offer(utf8("bye"));
+        outbound.closeWhenFlushed();
+
+        assertFalse(outbound.offer(utf8("late")));
+        verify(channel, never()).close();
+
+        assertEquals("bye", completeNext());
+        verify(channel).close();
+    }
+}
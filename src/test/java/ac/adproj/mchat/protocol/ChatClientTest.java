@@ -0,0 +1,162 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.protocol;
+
+import ac.adproj.mchat.model.Protocol;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatClientTest {
+
+    private static class RecordingListener implements ChatClient.EventListener {
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        private final CompletableFuture<Throwable> disconnected = new CompletableFuture<>();
+
+        @Override
+        public void onMessage(ChatClient client, String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onDisconnected(ChatClient client, Throwable cause) {
+            disconnected.complete(cause);
+        }
+    }
+
+    /**
+     * Read until the expected text arrives, the messages may be merged by the stream.
+     */
+    private static String readUntil(InputStream in, String expected) throws IOException {
+        var out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+
+        while (!out.toString(StandardCharsets.UTF_8).contains(expected)) {
+            int n = in.read(buffer);
+
+            if (n == -1) {
+                break;
+            }
+
+            out.write(buffer, 0, n);
+        }
+
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void sendsAndReceives() throws Exception {
+        try (var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            var listener = new RecordingListener();
+            var client = new ChatClient("Alice", listener);
+
+            // Queued before connecting, sent after the greeting.
+            CompletableFuture<Void> early = client.send("early");
+            CompletableFuture<Void> connected = client.connect(server.getLocalSocketAddress());
+
+            try (Socket socket = server.accept()) {
+                socket.setSoTimeout(5000);
+                connected.get(5, TimeUnit.SECONDS);
+                early.get(5, TimeUnit.SECONDS);
+
+                String greeting = Protocol.CONNECTING_GREET_LEFT_HALF + client.getUuid()
+                        + Protocol.CONNECTING_GREET_MIDDLE_HALF + "Alice";
+                String received = readUntil(socket.getInputStream(), "early");
+
+                assertTrue(received.startsWith(greeting));
+                assertTrue(received.indexOf("early") > received.indexOf(greeting));
+
+                socket.getOutputStream().write((Protocol.MESSAGE_HEADER_LEFT_HALF + "Bob"
+                        + Protocol.MESSAGE_HEADER_MIDDLE_HALF + Protocol.MESSAGE_HEADER_RIGHT_HALF + "hi")
+                        .getBytes(StandardCharsets.UTF_8));
+
+                assertEquals("Bob: hi", listener.messages.poll(5, TimeUnit.SECONDS));
+
+                client.send("bye");
+                client.disconnect().get(5, TimeUnit.SECONDS);
+
+                assertTrue(readUntil(socket.getInputStream(), Protocol.DISCONNECT + client.getUuid())
+                        .contains("bye"));
+                assertEquals(-1, socket.getInputStream().read());
+                assertNull(listener.disconnected.get(5, TimeUnit.SECONDS));
+                assertFalse(client.isConnected());
+                assertTrue(client.send("late").isCompletedExceptionally());
+            }
+        }
+    }
+
+    @Test
+    void clientsAreIndependent() throws Exception {
+        try (var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            List<ChatClient> clients = new ArrayList<>();
+            List<Socket> sockets = new ArrayList<>();
+
+            for (int i = 0; i < 8; i++) {
+                clients.add(ChatClient.connect(server.getLocalSocketAddress(), "Bot" + i, (c, m) -> {
+                }).get(5, TimeUnit.SECONDS));
+                sockets.add(server.accept());
+            }
+
+            // Closing one client (and the server closing another) doesn't affect the others.
+            clients.get(0).disconnectWithoutNotification();
+            sockets.get(1).close();
+            clients.get(1).closeFuture().get(5, TimeUnit.SECONDS);
+
+            for (int i = 2; i < clients.size(); i++) {
+                clients.get(i).send("still here").get(5, TimeUnit.SECONDS);
+                sockets.get(i).setSoTimeout(5000);
+                assertTrue(readUntil(sockets.get(i).getInputStream(), "still here").contains("still here"));
+                clients.get(i).close();
+                sockets.get(i).close();
+            }
+        }
+    }
+
+    @Test
+    void failsToConnect() throws Exception {
+        int port;
+
+        try (var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            port = server.getLocalPort();
+        }
+
+        var listener = new RecordingListener();
+        var future = new ChatClient("Alice", listener)
+                .connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        assertTrue(future.handle((v, e) -> e != null).get(5, TimeUnit.SECONDS));
+        assertTrue(listener.disconnected.get(5, TimeUnit.SECONDS) != null);
+    }
+}
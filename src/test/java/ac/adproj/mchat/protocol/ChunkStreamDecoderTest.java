@@ -0,0 +1,126 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.protocol;
+
+import ac.adproj.mchat.model.Protocol;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkStreamDecoderTest {
+
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    private long nextOffset = 0;
+
+    private final ChunkStreamDecoder.ChunkSink sink = (transferId, offset, data) -> {
+        assertEquals("t1", transferId);
+        assertEquals(nextOffset, offset);
+
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        received.writeBytes(bytes);
+        nextOffset += bytes.length;
+    };
+
+    private static byte[] chunk(long offset, byte[] data) {
+        var out = new ByteArrayOutputStream();
+        out.writeBytes((Protocol.FILE_CHUNK_HEADER + "t1" + Protocol.FILE_FIELD_SEPARATOR + offset
+                + Protocol.FILE_FIELD_SEPARATOR + data.length + "\n").getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(data);
+
+        return out.toByteArray();
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+
+        return data;
+    }
+
+    private static String text(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    @Test
+    void decodesChunksSplitAtEveryPosition() {
+        byte[] data = data(300);
+        var stream = new ByteArrayOutputStream();
+        stream.writeBytes(chunk(0, Arrays.copyOfRange(data, 0, 100)));
+        stream.writeBytes(chunk(100, Arrays.copyOfRange(data, 100, 300)));
+        byte[] bytes = stream.toByteArray();
+
+        // The decoder is created once a read starts with the whole prefix.
+        for (int split = Protocol.FILE_CHUNK_HEADER.length(); split < bytes.length; split++) {
+            received.reset();
+            nextOffset = 0;
+
+            var decoder = new ChunkStreamDecoder(1024);
+
+            assertFalse(decoder.decode(ByteBuffer.wrap(bytes, 0, split), sink).hasRemaining());
+            assertFalse(decoder.decode(ByteBuffer.wrap(bytes, split, bytes.length - split), sink).hasRemaining());
+            assertFalse(decoder.isPending());
+            assertArrayEquals(data, received.toByteArray());
+        }
+    }
+
+    @Test
+    void returnsTextAfterChunk() {
+        var decoder = new ChunkStreamDecoder(1024);
+        var stream = new ByteArrayOutputStream();
+        stream.writeBytes(chunk(0, data(10)));
+        stream.writeBytes((Protocol.KEEP_ALIVE_HEADER + "uuid" + Protocol.KEEP_ALIVE_TAIL).getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Protocol.KEEP_ALIVE_HEADER + "uuid" + Protocol.KEEP_ALIVE_TAIL,
+                text(decoder.decode(ByteBuffer.wrap(stream.toByteArray()), sink)));
+
+        // A message split after the chunk looks like the beginning of a header for a while.
+        byte[] message = (Protocol.MESSAGE_HEADER_LEFT_HALF + "hi").getBytes(StandardCharsets.UTF_8);
+        byte[] first = chunk(10, data(5));
+        byte[] stream2 = new byte[first.length + 3];
+        System.arraycopy(first, 0, stream2, 0, first.length);
+        System.arraycopy(message, 0, stream2, first.length, 3);
+
+        assertFalse(decoder.decode(ByteBuffer.wrap(stream2), sink).hasRemaining());
+        assertTrue(decoder.isPending());
+        assertEquals(Protocol.MESSAGE_HEADER_LEFT_HALF + "hi",
+                text(decoder.decode(ByteBuffer.wrap(message, 3, message.length - 3), sink)));
+        assertFalse(decoder.isPending());
+    }
+
+    @Test
+    void rejectsMalformedHeader() {
+        var decoder = new ChunkStreamDecoder(16);
+
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(ByteBuffer.wrap(chunk(0, data(17))), sink));
+        assertThrows(IllegalArgumentException.class, () -> new ChunkStreamDecoder(16).decode(ByteBuffer.wrap(
+                (Protocol.FILE_CHUNK_HEADER + "t1>>>>>x>>>>>1\n").getBytes(StandardCharsets.UTF_8)), sink));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AttachmentStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private Path file(String name, int size, int seed) throws IOException {
+        byte[] data = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * seed);
+        }
+
+        return Files.write(directory.resolve(name), data);
+    }
+
+    @Test
+    void deduplicatesContent() throws IOException {
+        var store = new AttachmentStore(directory.resolve("store"), 1024 * 1024);
+
+        Path first = file("a", 1000, 3);
+        String expected = AttachmentStore.hash(first);
+        String hash = store.put(first, null);
+
+        assertEquals(expected, hash);
+        assertTrue(AttachmentStore.isValidHash(hash));
+        assertFalse(Files.exists(first));
+
+        // The same content again.
+        assertEquals(hash, store.put(file("b", 1000, 3), expected));
+        assertFalse(Files.exists(directory.resolve("b")));
+
+        assertEquals(1, store.size());
+        assertEquals(1000, store.getTotalSize());
+        assertEquals(2, store.getReferences(hash));
+
+        ByteBuffer content = store.open(hash).orElseThrow();
+        assertEquals(1000, content.remaining());
+        assertEquals((byte) 3, content.get(1));
+        assertTrue(store.open("0".repeat(64)).isEmpty());
+    }
+
+    @Test
+    void evictsUnreferencedBlobsInLruOrder() throws IOException {
+        var store = new AttachmentStore(directory.resolve("store"), 2500);
+
+        String a = store.put(file("a", 1000, 1), null);
+        String b = store.put(file("b", 1000, 2), null);
+        String c = store.put(file("c", 1000, 3), null);
+
+        // Referenced blobs are kept even over the limit.
+        assertEquals(3, store.size());
+
+        store.release(a);
+        store.release(b);
+
+        // Evicts the least recently used one.
+        assertFalse(store.contains(a));
+        assertTrue(store.contains(b));
+        assertEquals(2000, store.getTotalSize());
+
+        // Reading b makes it recently used, so it's kept.
+        store.open(b);
+        store.release(c);
+        String d = store.put(file("d", 1000, 4), null);
+
+        assertTrue(store.contains(b));
+        assertFalse(store.contains(c));
+        assertTrue(store.contains(d));
+    }
+
+    @Test
+    void reloadsBlobs() throws IOException {
+        var store = new AttachmentStore(directory.resolve("store"), 1024 * 1024);
+        String hash = store.put(file("a", 100, 5), null);
+
+        var reloaded = new AttachmentStore(directory.resolve("store"), 1024 * 1024);
+
+        assertTrue(reloaded.contains(hash));
+        assertEquals(0, reloaded.getReferences(hash));
+        assertEquals(100, reloaded.getTotalSize());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.model.ChatEvent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatHistoryLogTest {
+
+    @TempDir
+    Path directory;
+
+    private static List<ChatEvent> messages(int from, int count) {
+        List<ChatEvent> events = new ArrayList<>(count);
+
+        for (int i = from; i < from + count; i++) {
+            events.add(new ChatEvent(ChatEvent.Kind.CHAT, "uuid", "user" + i, "消息 " + i, 1000L + i * 10L));
+        }
+
+        return events;
+    }
+
+    @Test
+    void readLastAndSince() throws Exception {
+        try (var historyLog = ChatHistoryLog.open(directory, 64 * 1024, 4, 4)) {
+            List<ChatEvent> events = new ArrayList<>(messages(0, 50));
+            events.add(ChatEvent.join("uuid", "user", "Connected."));
+            historyLog.append(events);
+
+            assertEquals(50, historyLog.nextOffset());
+
+            var last = historyLog.readLast(3);
+            assertEquals(List.of(47L, 48L, 49L), last.stream().map(ChatHistoryLog.Entry::offset).toList());
+            assertEquals("user49", last.get(2).senderName());
+            assertEquals("消息 49", last.get(2).text());
+
+            var since = historyLog.readSince(1000L + 45 * 10L, 100);
+            assertEquals(5, since.size());
+            assertEquals(45L, since.get(0).offset());
+
+            var limited = historyLog.readSince(0, 2);
+            assertEquals(List.of(48L, 49L), limited.stream().map(ChatHistoryLog.Entry::offset).toList());
+
+            assertEquals(50, historyLog.readLast(1000).size());
+        }
+    }
+
+    @Test
+    void recoverOnReopen() throws Exception {
+        try (var historyLog = ChatHistoryLog.open(directory, 64 * 1024, 4, 4)) {
+            historyLog.append(messages(0, 10));
+        }
+
+        try (var historyLog = ChatHistoryLog.open(directory, 64 * 1024, 4, 4)) {
+            assertEquals(10, historyLog.nextOffset());
+
+            historyLog.append(messages(10, 1));
+
+            var last = historyLog.readLast(2);
+            assertEquals("消息 9", last.get(0).text());
+            assertEquals(10L, last.get(1).offset());
+        }
+    }
+
+    @Test
+    void rollAndRetainSegments() throws Exception {
+        try (var historyLog = ChatHistoryLog.open(directory, 256, 2, 3)) {
+            historyLog.append(messages(0, 100));
+
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(3, files.count());
+            }
+
+            var all = historyLog.readLast(1000);
+            assertTrue(all.size() < 100);
+            assertEquals(99L, all.get(all.size() - 1).offset());
+
+            for (int i = 1; i < all.size(); i++) {
+                assertEquals(all.get(i - 1).offset() + 1, all.get(i).offset());
+            }
+
+            assertEquals(all.get(0).offset(), historyLog.readSince(0, 1000).get(0).offset());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.handler.ClientMessageHandler;
+import ac.adproj.mchat.model.Protocol;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatHistoryServiceTest {
+
+    @Test
+    void replayInOneMessage() {
+        String message = ChatHistoryService.toProtocolMessage(List.of(
+                new ChatHistoryLog.Entry(0, 1000, "Alice", "hi"),
+                new ChatHistoryLog.Entry(1, 2000, "Bob", "你好")), Integer.MAX_VALUE);
+
+        assertTrue(message.startsWith(Protocol.MESSAGE_HEADER_LEFT_HALF + "历史消息 (2)"));
+        assertEquals("历史消息 (2): Alice: hi\nBob: 你好",
+                new ClientMessageHandler(v -> { }).handleMessage(message, null));
+    }
+
+    @Test
+    void fitClientBuffer() {
+        List<ChatHistoryLog.Entry> entries = new ArrayList<>();
+
+        for (int i = 0; i < 50; i++) {
+            entries.add(new ChatHistoryLog.Entry(i, i, "user" + i, "消息".repeat(10) + i));
+        }
+
+        String message = ChatHistoryService.toProtocolMessage(entries, Protocol.BUFFER_SIZE);
+
+        assertTrue(message.getBytes(StandardCharsets.UTF_8).length <= Protocol.BUFFER_SIZE);
+        assertTrue(message.endsWith("user49: " + "消息".repeat(10) + "49"));
+        assertFalse(message.contains("user0:"));
+
+        String cut = ChatHistoryService.toProtocolMessage(
+                List.of(new ChatHistoryLog.Entry(0, 0, "Alice", "好".repeat(1000))), Protocol.BUFFER_SIZE);
+
+        assertTrue(cut.getBytes(StandardCharsets.UTF_8).length <= Protocol.BUFFER_SIZE);
+        assertTrue(cut.endsWith("好"));
+    }
+}
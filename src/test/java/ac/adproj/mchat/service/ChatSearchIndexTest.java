@@ -0,0 +1,125 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.model.ChatEvent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatSearchIndexTest {
+
+    @TempDir
+    Path directory;
+
+    private static ChatEvent message(String sender, String text, long timestamp) {
+        return new ChatEvent(ChatEvent.Kind.CHAT, "uuid", sender, text, timestamp);
+    }
+
+    private static List<Long> offsets(List<ChatHistoryLog.Entry> entries) {
+        return entries.stream().map(ChatHistoryLog.Entry::offset).toList();
+    }
+
+    @Test
+    void tokenize() {
+        assertEquals(Set.of("hello", "world", "42"), ChatSearchIndex.tokenize("Hello, WORLD! 42 hello"));
+        assertEquals(Set.of("你", "好", "jetty"), ChatSearchIndex.tokenize("你好Jetty"));
+        assertTrue(ChatSearchIndex.tokenize("  ...  ").isEmpty());
+    }
+
+    @Test
+    void searchByTermSenderAndTime() throws Exception {
+        try (var historyLog = ChatHistoryLog.open(directory, 64 * 1024, 4, 4)) {
+            historyLog.append(List.of(
+                    message("Alice", "Server restarts at noon", 1000),
+                    message("Bob", "who restarts the server?", 2000),
+                    message("Alice", "I do", 3000),
+                    message("Carol", "服务器 restarts 了", 4000)));
+
+            var index = new ChatSearchIndex();
+            assertEquals(4, index.update(historyLog));
+
+            assertEquals(List.of(0L, 1L, 3L), offsets(index.search(historyLog,
+                    new ChatSearchIndex.Query("restarts", null, Long.MIN_VALUE, Long.MAX_VALUE, 10))));
+            assertEquals(List.of(0L, 1L), offsets(index.search(historyLog,
+                    new ChatSearchIndex.Query("SERVER restarts", null, Long.MIN_VALUE, Long.MAX_VALUE, 10))));
+            assertEquals(List.of(0L), offsets(index.search(historyLog,
+                    new ChatSearchIndex.Query("restarts", "alice", Long.MIN_VALUE, Long.MAX_VALUE, 10))));
+            assertEquals(List.of(1L), offsets(index.search(historyLog,
+                    new ChatSearchIndex.Query("restarts", null, 1500, 4000, 10))));
+            assertEquals(List.of(3L), offsets(index.search(historyLog,
+                    new ChatSearchIndex.Query("服务", null, Long.MIN_VALUE, Long.MAX_VALUE, 10))));
+            assertEquals(List.of(1L, 3L), offsets(index.search(historyLog,
+                    new ChatSearchIndex.Query("restarts", null, Long.MIN_VALUE, Long.MAX_VALUE, 2))));
+            assertEquals(List.of(1L, 2L), offsets(index.search(historyLog,
+                    new ChatSearchIndex.Query(null, null, 2000, 3500, 10))));
+            assertTrue(index.search(historyLog,
+                    new ChatSearchIndex.Query("nothing", null, Long.MIN_VALUE, Long.MAX_VALUE, 10)).isEmpty());
+        }
+    }
+
+    @Test
+    void updateIncrementally() throws Exception {
+        try (var historyLog = ChatHistoryLog.open(directory, 64 * 1024, 4, 4)) {
+            var index = new ChatSearchIndex();
+
+            for (int i = 0; i < 1000; i++) {
+                historyLog.append(List.of(message("user" + (i % 10), "message number " + i, i)));
+
+                if (i % 100 == 99) {
+                    assertEquals(100, index.update(historyLog));
+                }
+            }
+
+            assertEquals(1000, index.getIndexedCount());
+            assertEquals(100, index.search(historyLog,
+                    new ChatSearchIndex.Query("message", "user3", Long.MIN_VALUE, Long.MAX_VALUE, 1000)).size());
+            assertEquals(List.of(777L), offsets(index.search(historyLog,
+                    new ChatSearchIndex.Query("777", "user7", Long.MIN_VALUE, Long.MAX_VALUE, 10))));
+        }
+    }
+
+    @Test
+    void pruneDeletedSegments() throws Exception {
+        try (var historyLog = ChatHistoryLog.open(directory, 256, 2, 2)) {
+            var index = new ChatSearchIndex();
+
+            historyLog.append(List.of(message("Alice", "early bird", 0)));
+            index.update(historyLog);
+
+            for (int i = 1; i < 100; i++) {
+                historyLog.append(List.of(message("Bob", "later " + i, i)));
+            }
+
+            index.update(historyLog);
+
+            assertTrue(historyLog.firstOffset() > 0);
+            assertTrue(index.search(historyLog,
+                    new ChatSearchIndex.Query("early", null, Long.MIN_VALUE, Long.MAX_VALUE, 10)).isEmpty());
+            assertEquals(100 - historyLog.firstOffset(), index.search(historyLog,
+                    new ChatSearchIndex.Query("later", "bob", Long.MIN_VALUE, Long.MAX_VALUE, 1000)).size());
+            // "early", "bird" and the numbers of the deleted messages are gone.
+            assertEquals(1 + historyLog.nextOffset() - historyLog.firstOffset(), index.getTermCount());
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.handler.MessageType;
+import ac.adproj.mchat.model.ChatSession;
+import ac.adproj.mchat.model.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileTransferServiceTest {
+
+    @TempDir
+    Path directory;
+
+    private FileTransferService service;
+
+    private AttachmentStore store;
+
+    private final RecordingSession sender = new RecordingSession("Sender");
+    private final RecordingSession recipient = new RecordingSession("Recipient");
+
+    private static class RecordingSession implements ChatSession {
+        private final String uuid = UUID.randomUUID().toString();
+        private final String name;
+        private final List<String> received = new CopyOnWriteArrayList<>();
+        private final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        private volatile CountDownLatch chunks = new CountDownLatch(0);
+
+        private RecordingSession(String name) {
+            this.name = name + uuid;
+        }
+
+        @Override
+        public String getUuid() {
+            return uuid;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Transport getTransport() {
+            return Transport.WEBSOCKET;
+        }
+
+        @Override
+        public void send(String text) {
+            received.add(text);
+        }
+
+        @Override
+        public synchronized void sendChunk(String transferId, long offset, ByteBuffer data) {
+            assertEquals(file.size(), offset);
+
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            file.writeBytes(bytes);
+            chunks.countDown();
+        }
+
+        private Map<String, String> last(MessageType type) {
+            for (int i = received.size() - 1; i >= 0; i--) {
+                if (MessageType.getMessageType(received.get(i)) == type) {
+                    return type.tokenize(received.get(i));
+                }
+            }
+
+            return Map.of();
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        store = new AttachmentStore(directory.resolve("attachments"), 1024 * 1024);
+        service = new FileTransferService(directory, store, 1024 * 1024, 1000, 4000, 4, 60_000, 1);
+        UserManager.getInstance().register(sender);
+        UserManager.getInstance().register(recipient);
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserManager.getInstance().unregister(sender.getUuid());
+        UserManager.getInstance().unregister(recipient.getUuid());
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 7);
+        }
+
+        return data;
+    }
+
+    @Test
+    void uploadWithinWindowAndDownload() throws Exception {
+        byte[] data = data(10_000);
+
+        service.offer(sender, "t1", recipient.getName(), data.length, "dir/report.pdf");
+        assertEquals(Map.of("transferId", "t1", "offset", "0", "window", "4000"), sender.last(MessageType.FILE_ACK));
+
+        // Sends the first 2500 bytes, the window is acknowledged when half of it is received.
+        service.receive(sender, "t1", 0, ByteBuffer.wrap(data, 0, 1500));
+        assertEquals("0", sender.last(MessageType.FILE_ACK).get("offset"));
+        service.receive(sender, "t1", 1500, ByteBuffer.wrap(data, 1500, 1000));
+        assertEquals("2500", sender.last(MessageType.FILE_ACK).get("offset"));
+
+        // A gap asks the sender to continue from the received offset.
+        service.receive(sender, "t1", 3000, ByteBuffer.wrap(data, 3000, 100));
+        assertEquals("2500", sender.last(MessageType.FILE_ACK).get("offset"));
+
+        // Overlapping data is skipped.
+        service.receive(sender, "t1", 2000, ByteBuffer.wrap(data, 2000, data.length - 2000));
+        assertEquals("10000", sender.last(MessageType.FILE_ACK).get("offset"));
+
+        var ready = recipient.last(MessageType.FILE_READY);
+        assertEquals("report.pdf", ready.get("fileName"));
+        assertEquals("10000", ready.get("size"));
+
+        String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        assertEquals(1, store.getReferences(hash));
+        assertTrue(recipient.received.stream().anyMatch(m -> m.contains(Protocol.ATTACHMENT_PATH + hash
+                + "?name=report.pdf")));
+
+        // One window per request.
+        recipient.chunks = new CountDownLatch(4);
+        service.request(recipient, "t1", 0, Long.MAX_VALUE);
+        assertTrue(recipient.chunks.await(5, TimeUnit.SECONDS));
+
+        recipient.chunks = new CountDownLatch(4);
+        service.request(recipient, "t1", 4000, 6000);
+        assertTrue(recipient.chunks.await(5, TimeUnit.SECONDS));
+
+        recipient.chunks = new CountDownLatch(2);
+        service.request(recipient, "t1", 8000, 6000);
+        assertTrue(recipient.chunks.await(5, TimeUnit.SECONDS));
+
+        assertArrayEquals(data, recipient.file.toByteArray());
+    }
+
+    @Test
+    void resumeAndReject() {
+        byte[] data = data(3000);
+
+        service.offer(sender, "t2", Protocol.BROADCAST_MESSAGE_UUID, data.length, "a.bin");
+        service.receive(sender, "t2", 0, ByteBuffer.wrap(data, 0, 1200));
+
+        // Reconnected, offers the same transfer again.
+        service.offer(sender, "t2", Protocol.BROADCAST_MESSAGE_UUID, data.length, "a.bin");
+        assertEquals("1200", sender.last(MessageType.FILE_ACK).get("offset"));
+
+        service.offer(recipient, "t2", Protocol.BROADCAST_MESSAGE_UUID, data.length, "a.bin");
+        assertEquals("t2", recipient.last(MessageType.FILE_ERROR).get("transferId"));
+
+        service.request(recipient, "t2", 0, 1000);
+        assertEquals("No such file.", recipient.last(MessageType.FILE_ERROR).get("reason"));
+
+        service.offer(sender, "../t3", Protocol.BROADCAST_MESSAGE_UUID, 1, "a.bin");
+        service.offer(sender, "t4", Protocol.BROADCAST_MESSAGE_UUID, 2 * 1024 * 1024, "a.bin");
+        service.offer(sender, "t5", "nobody" + UUID.randomUUID(), 1, "a.bin");
+
+        assertEquals(3, sender.received.stream()
+                .filter(m -> MessageType.getMessageType(m) == MessageType.FILE_ERROR).count());
+        assertEquals(1, service.size());
+    }
+}
@@ -0,0 +1,154 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.service.MessageDistributor.SubscriberCallback;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageDistributorTest {
+
+    private static MessageDistributor distributor;
+
+    private final List<SubscriberCallback> registeredCallbacks = new ArrayList<>();
+
+    @BeforeAll
+    static void init() {
+        distributor = MessageDistributor.getInstance();
+    }
+
+    @AfterEach
+    void autoCleanup() {
+        registeredCallbacks.forEach(distributor::unregisterSubscriber);
+    }
+
+    private Subscription register(SubscriberCallback callback, int capacity, Subscription.OverflowPolicy policy) {
+        registeredCallbacks.add(callback);
+        return distributor.registerSubscriber(callback, capacity, policy);
+    }
+
+    @Test
+    void dropNewestByDefault() {
+        SubscriberCallback callback = event -> {
+        };
+        registeredCallbacks.add(callback);
+
+        assertEquals(Subscription.OverflowPolicy.DROP_NEWEST,
+                distributor.registerSubscriber(callback).getOverflowPolicy());
+    }
+
+    @Test
+    @SneakyThrows
+    void slowSubscriberDoesNotStallOthers() {
+        final int messages = 100;
+        final String prefix = UUID.randomUUID().toString();
+
+        var slowSubscriberReleased = new CountDownLatch(1);
+        var fastSubscriberDone = new CountDownLatch(messages);
+
+        Subscription slow = register(event -> {
+            try {
+                slowSubscriberReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 4, Subscription.OverflowPolicy.DROP_NEWEST);
+
+        register(event -> {
+            if (event.body().startsWith(prefix)) {
+                fastSubscriberDone.countDown();
+            }
+        }, MessageDistributor.DEFAULT_SUBSCRIBER_CAPACITY, Subscription.OverflowPolicy.DROP_NEWEST);
+
+        for (int i = 0; i < messages; i++) {
+            distributor.sendUiMessage(prefix + i);
+        }
+
+        assertTrue(fastSubscriberDone.await(5, TimeUnit.SECONDS));
+        assertTrue(slow.getDropped() > 0);
+        assertTrue(slow.getMaxLag() <= 4);
+
+        slowSubscriberReleased.countDown();
+    }
+
+    @Test
+    @SneakyThrows
+    void laggingSubscriberIsUnregistered() {
+        var released = new CountDownLatch(1);
+
+        Subscription lagging = register(event -> {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 2, Subscription.OverflowPolicy.UNSUBSCRIBE);
+
+        for (int i = 0; i < 10; i++) {
+            distributor.sendUiMessage(UUID.randomUUID().toString());
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (lagging.isActive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(lagging.isActive());
+        assertFalse(distributor.getSubscriptions().contains(lagging));
+
+        released.countDown();
+    }
+
+    @Test
+    @SneakyThrows
+    void messagesAreDeliveredInOrder() {
+        final int messages = 50;
+        final String prefix = UUID.randomUUID().toString();
+
+        List<String> received = new ArrayList<>();
+        var done = new CountDownLatch(messages);
+
+        register(event -> {
+            if (event.body().startsWith(prefix)) {
+                received.add(event.body());
+                done.countDown();
+            }
+        }, MessageDistributor.DEFAULT_SUBSCRIBER_CAPACITY, Subscription.OverflowPolicy.BLOCK);
+
+        for (int i = 0; i < messages; i++) {
+            distributor.sendUiMessage(prefix + i);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < messages; i++) {
+            assertEquals(prefix + i, received.get(i));
+        }
+    }
+}
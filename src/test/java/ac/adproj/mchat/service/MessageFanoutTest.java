@@ -0,0 +1,181 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.model.ChatSession;
+import ac.adproj.mchat.model.OutboundMessage;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.verification.VerificationMode;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class MessageFanoutTest {
+
+    private final UserManager userManager = UserManager.getInstance();
+
+    private final List<String> registered = new ArrayList<>();
+
+    private static class RecordingSession implements ChatSession {
+        private final String uuid = UUID.randomUUID().toString();
+        private final String name = "WS" + uuid;
+        private final List<OutboundMessage> received = new ArrayList<>();
+
+        @Override
+        public String getUuid() {
+            return uuid;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Transport getTransport() {
+            return Transport.WEBSOCKET;
+        }
+
+        @Override
+        public void send(String text) {
+            send(OutboundMessage.of(text));
+        }
+
+        @Override
+        public void send(OutboundMessage message) {
+            received.add(message);
+        }
+    }
+
+    private AsynchronousSocketChannel mockChannel() {
+        var channel = mock(AsynchronousSocketChannel.class);
+
+        doAnswer(invocation -> {
+            ByteBuffer[] buffers = invocation.getArgument(0);
+            long written = 0;
+
+            for (ByteBuffer bb : buffers) {
+                written += bb.remaining();
+                bb.position(bb.limit());
+            }
+
+            invocation.<CompletionHandler<Long, Object>>getArgument(6).completed(written, null);
+            return null;
+        }).when(channel).write(any(ByteBuffer[].class), anyInt(), anyInt(), anyLong(), any(), any(), any());
+
+        return channel;
+    }
+
+    private static void verifyWrites(AsynchronousSocketChannel channel, VerificationMode mode) {
+        verify(channel, mode).write(any(ByteBuffer[].class), anyInt(), anyInt(), anyLong(), any(), any(), any());
+    }
+
+    private String registerUser(AsynchronousSocketChannel channel) {
+        var uuid = UUID.randomUUID().toString();
+        userManager.register(uuid, "TCP" + uuid, channel);
+        registered.add(uuid);
+
+        return uuid;
+    }
+
+    private RecordingSession registerWebSocketSession() {
+        var session = new RecordingSession();
+        userManager.register(session);
+        registered.add(session.getUuid());
+
+        return session;
+    }
+
+    @AfterEach
+    void cleanUp() {
+        registered.forEach(userManager::unregister);
+    }
+
+    @Test
+    @SneakyThrows
+    void deliversOnceToEverySessionExceptSender() {
+        var senderChannel = mockChannel();
+        var receiverChannel = mockChannel();
+
+        var sender = registerUser(senderChannel);
+        registerUser(receiverChannel);
+        var first = registerWebSocketSession();
+        var second = registerWebSocketSession();
+
+        var message = OutboundMessage.of("Alice: Hello");
+        MessageFanout.getInstance().broadcast(message, sender);
+
+        verifyWrites(senderChannel, never());
+        verifyWrites(receiverChannel, times(1));
+        assertEquals(List.of(message), first.received);
+        assertEquals(List.of(message), second.received);
+    }
+
+    @Test
+    void stalledClientDoesNotHoldBackOthers() {
+        // The writes of this client never complete.
+        var stalledChannel = mock(AsynchronousSocketChannel.class);
+        var receiverChannel = mockChannel();
+
+        registerUser(stalledChannel);
+        registerUser(receiverChannel);
+        var session = registerWebSocketSession();
+
+        int messages = 1000;
+        int delivered = 0;
+
+        for (int i = 0; i < messages; i++) {
+            delivered += MessageFanout.getInstance().broadcast(OutboundMessage.of("Alice: " + i), null);
+        }
+
+        verifyWrites(stalledChannel, times(1));
+        verifyWrites(receiverChannel, times(messages));
+        assertEquals(messages, session.received.size());
+
+        // The stalled client misses the messages beyond its queue.
+        assertTrue(delivered < messages * 3);
+    }
+
+    @Test
+    void sharesEncodingsBetweenRecipients() {
+        var message = OutboundMessage.of("你好");
+
+        assertEquals(message.utf8(), message.utf8());
+        assertEquals(6, message.utf8().remaining());
+
+        byte[] compact = message.compact(text -> new byte[]{1});
+        assertSame(compact, message.compact(text -> new byte[]{2}));
+    }
+}
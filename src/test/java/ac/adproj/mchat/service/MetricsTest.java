@@ -0,0 +1,100 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsTest {
+
+    private enum Kind {
+        CHAT, LOGOFF
+    }
+
+    @Test
+    void registersOnce() {
+        var metrics = new Metrics();
+
+        var counter = metrics.counter("test_total", "Test.");
+        counter.increment();
+        counter.add(2);
+
+        assertSame(counter, metrics.counter("test_total", "Test."));
+        assertEquals(3, metrics.counter("test_total", "Test.").get());
+        assertThrows(IllegalArgumentException.class, () -> metrics.histogram("test_total", "Test."));
+    }
+
+    @Test
+    void countsHistogramCumulatively() {
+        var metrics = new Metrics();
+        var histogram = metrics.histogram("test_seconds", "Test.");
+
+        histogram.record(500);
+        histogram.record(1_000);
+        histogram.record(1_500_000);
+        histogram.record(60_000_000_000L);
+
+        assertEquals(4, histogram.getCount());
+
+        var sb = new StringBuilder();
+        metrics.writeTo(sb);
+        String text = sb.toString();
+
+        assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.000001\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.001\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.002\"} 3\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"10\"} 3\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 4\n"));
+        assertTrue(text.contains("test_seconds_sum 60.001501500\n"));
+        assertTrue(text.contains("test_seconds_count 4\n"));
+    }
+
+    @Test
+    void rendersFamiliesTogether() {
+        var metrics = new Metrics();
+
+        var tcp = metrics.counters("test_messages_total", "Messages.", "transport=\"tcp\"", "type", Kind.class);
+        metrics.counters("test_messages_total", "Messages.", "transport=\"websocket\"", "type", Kind.class);
+        metrics.counter("test_messages_total_extra", "Extra.");
+        metrics.gauge("test_sessions", "Sessions.", () -> 7);
+
+        tcp[Kind.LOGOFF.ordinal()].increment();
+
+        var sb = new StringBuilder();
+        metrics.writeTo(sb);
+
+        assertEquals("""
+                # HELP test_messages_total Messages.
+                # TYPE test_messages_total counter
+                test_messages_total{transport="tcp",type="chat"} 0
+                test_messages_total{transport="tcp",type="logoff"} 1
+                test_messages_total{transport="websocket",type="chat"} 0
+                test_messages_total{transport="websocket",type="logoff"} 0
+                # HELP test_messages_total_extra Extra.
+                # TYPE test_messages_total_extra counter
+                test_messages_total_extra 0
+                # HELP test_sessions Sessions.
+                # TYPE test_sessions gauge
+                test_sessions 7
+                """, sb.toString());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MpscRingBufferTest {
+
+    @Test
+    void capacityIsRoundedUp() {
+        assertEquals(8, new MpscRingBuffer<String>(5, WaitStrategy.blocking()).capacity());
+        assertEquals(16, new MpscRingBuffer<String>(16, WaitStrategy.blocking()).capacity());
+        assertEquals(1, new MpscRingBuffer<String>(1, WaitStrategy.blocking()).capacity());
+    }
+
+    @Test
+    void offerAndDrainInOrder() {
+        var ringBuffer = new MpscRingBuffer<Integer>(4, WaitStrategy.blocking());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ringBuffer.offer(i));
+        }
+
+        // It's full.
+        assertFalse(ringBuffer.offer(4));
+        assertEquals(4, ringBuffer.size());
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(3, ringBuffer.drainTo(drained, 3));
+        assertEquals(List.of(0, 1, 2), drained);
+
+        // Wrap around.
+        assertTrue(ringBuffer.offer(4));
+        assertTrue(ringBuffer.offer(5));
+
+        drained.clear();
+        assertEquals(3, ringBuffer.drainTo(drained, Integer.MAX_VALUE));
+        assertEquals(List.of(3, 4, 5), drained);
+        assertTrue(ringBuffer.isEmpty());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "sleeping", "yielding", "busy-spin"})
+    @SneakyThrows
+    void multipleProducers(String waitStrategy) {
+        final int producers = 4;
+        final int messagesPerProducer = 2_000;
+
+        var ringBuffer = new MpscRingBuffer<String>(64, WaitStrategy.of(waitStrategy));
+        var startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            final int producerId = p;
+
+            Thread t = new Thread(() -> {
+                try {
+                    startLatch.await();
+
+                    for (int i = 0; i < messagesPerProducer; i++) {
+                        ringBuffer.put(producerId + ":" + i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            t.start();
+            threads.add(t);
+        }
+
+        startLatch.countDown();
+
+        Set<String> received = new HashSet<>();
+        List<String> batch = new ArrayList<>();
+        int[] lastSeen = new int[producers];
+        Arrays.fill(lastSeen, -1);
+
+        while (received.size() < producers * messagesPerProducer) {
+            batch.clear();
+            ringBuffer.awaitAndDrainTo(batch, 128);
+
+            for (String message : batch) {
+                assertTrue(received.add(message), "Duplicated: " + message);
+
+                // Messages of one producer keep their order.
+                String[] parts = message.split(":");
+                int producerId = Integer.parseInt(parts[0]);
+                int sequence = Integer.parseInt(parts[1]);
+
+                assertEquals(lastSeen[producerId] + 1, sequence);
+                lastSeen[producerId] = sequence;
+            }
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertTrue(ringBuffer.isEmpty());
+    }
+
+    @Test
+    void rejectsNull() {
+        var ringBuffer = new MpscRingBuffer<String>(4, WaitStrategy.blocking());
+        assertThrows(NullPointerException.class, () -> ringBuffer.offer(null));
+    }
+
+    @Test
+    void unknownWaitStrategy() {
+        assertThrows(IllegalArgumentException.class, () -> WaitStrategy.of("nope"));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.model.ChatSession;
+import ac.adproj.mchat.model.Protocol;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OfflineMailboxTest {
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+
+    private static class RecordingSession implements ChatSession {
+        private final String name;
+        private final int maxMessageSize;
+        private final List<String> received = new ArrayList<>();
+
+        private RecordingSession(String name) {
+            this(name, Integer.MAX_VALUE);
+        }
+
+        private RecordingSession(String name, int maxMessageSize) {
+            this.name = name;
+            this.maxMessageSize = maxMessageSize;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return maxMessageSize;
+        }
+
+        @Override
+        public String getUuid() {
+            return "uuid-" + name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Transport getTransport() {
+            return Transport.WEBSOCKET;
+        }
+
+        @Override
+        public void send(String text) {
+            received.add(text);
+        }
+    }
+
+    private static List<String> texts(List<OfflineMailbox.Letter> letters) {
+        return letters.stream().map(OfflineMailbox.Letter::text).toList();
+    }
+
+    @Test
+    void deliverInOneMessage() {
+        var mailbox = new OfflineMailbox(10, 1024, 60_000, 10, clock::get);
+        mailbox.recordDeparture("Bob");
+
+        assertTrue(mailbox.deposit("Bob", "Alice", "hi"));
+        assertTrue(mailbox.deposit("Bob", "Carol", "你好"));
+
+        var session = new RecordingSession("Bob");
+        mailbox.deliverTo(session);
+
+        assertEquals(1, session.received.size());
+        String message = session.received.get(0);
+        assertTrue(message.startsWith(Protocol.MESSAGE_HEADER_LEFT_HALF + "离线私聊 (2)"));
+        assertTrue(message.contains("] Alice: hi\n["));
+        assertTrue(message.endsWith("] Carol: 你好"));
+
+        mailbox.deliverTo(session);
+        assertEquals(1, session.received.size());
+        assertEquals(0, mailbox.size());
+    }
+
+    @Test
+    void evictByCountSizeAndTtl() {
+        var mailbox = new OfflineMailbox(3, 200, 60_000, 10, clock::get);
+        mailbox.recordDeparture("Bob");
+
+        for (int i = 0; i < 5; i++) {
+            mailbox.deposit("Bob", "Alice", "m" + i);
+        }
+
+        assertEquals(List.of("m2", "m3", "m4"), texts(mailbox.collect("Bob")));
+
+        mailbox.deposit("Bob", "Alice", "x".repeat(100));
+        mailbox.deposit("Bob", "Alice", "y".repeat(100));
+        assertEquals(List.of("y".repeat(100)), texts(mailbox.collect("Bob")));
+        assertFalse(mailbox.deposit("Bob", "Alice", "z".repeat(300)));
+
+        mailbox.deposit("Bob", "Alice", "old");
+        clock.addAndGet(30_000);
+        mailbox.recordDeparture("Bob");
+        mailbox.deposit("Bob", "Alice", "new");
+        clock.addAndGet(40_000);
+        assertEquals(List.of("new"), texts(mailbox.collect("Bob")));
+    }
+
+    @Test
+    void limitMailboxes() {
+        var mailbox = new OfflineMailbox(10, 1024, 60_000, 2, clock::get);
+        mailbox.recordDeparture("A");
+        mailbox.recordDeparture("B");
+        mailbox.recordDeparture("C");
+
+        assertTrue(mailbox.deposit("A", "X", "1"));
+        assertTrue(mailbox.deposit("B", "X", "2"));
+        assertFalse(mailbox.deposit("C", "X", "3"));
+        assertTrue(mailbox.deposit("A", "X", "4"));
+
+        clock.addAndGet(60_000);
+        mailbox.recordDeparture("C");
+        assertTrue(mailbox.deposit("C", "X", "5"));
+        assertEquals(1, mailbox.size());
+    }
+
+    @Test
+    void acceptRecentlyDepartedRecipientsOnly() {
+        var mailbox = new OfflineMailbox(10, 1024, 60_000, 10, clock::get);
+
+        assertFalse(mailbox.deposit("Nobody", "Alice", "hi"));
+        assertEquals(0, mailbox.size());
+
+        mailbox.recordDeparture("Bob");
+        assertFalse(mailbox.deposit("Bob", null, "hi"));
+        assertTrue(mailbox.deposit("Bob", "Alice", "hi"));
+
+        clock.addAndGet(60_000);
+        assertFalse(mailbox.deposit("Bob", "Alice", "late"));
+    }
+
+    @Test
+    void deliverOneByOneIfTooLarge() {
+        var mailbox = new OfflineMailbox(10, 64 * 1024, 60_000, 10, clock::get);
+        mailbox.recordDeparture("Bob");
+
+        mailbox.deposit("Bob", "Alice", "a".repeat(600));
+        mailbox.deposit("Bob", "Carol", "好".repeat(600));
+
+        var session = new RecordingSession("Bob", Protocol.BUFFER_SIZE);
+        mailbox.deliverTo(session);
+
+        assertEquals(2, session.received.size());
+
+        for (String message : session.received) {
+            assertTrue(message.startsWith(Protocol.MESSAGE_HEADER_LEFT_HALF + "离线私聊"));
+            assertTrue(message.getBytes(StandardCharsets.UTF_8).length <= Protocol.BUFFER_SIZE);
+        }
+
+        assertTrue(session.received.get(0).endsWith("] Alice: " + "a".repeat(600)));
+        assertTrue(session.received.get(1).endsWith("好"));
+    }
+}
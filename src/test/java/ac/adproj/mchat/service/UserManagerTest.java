@@ -17,14 +17,17 @@
 
 package ac.adproj.mchat.service;
 
+import ac.adproj.mchat.model.ChatSession;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.nio.channels.AsynchronousSocketChannel;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
 
 class UserManagerTest {
 
@@ -142,6 +145,86 @@ class UserManagerTest {
         }
     }
 
+    @Test
+    void findUuidByNameAfterDeletion() {
+        userManager.deleteUserProfile(uuid);
+        assertTrue(userManager.findUuidByName(testUserName).isEmpty());
+
+        // The name can be taken by another user after the deletion.
+        var uuid2 = UUID.randomUUID().toString();
+        assertTrue(userManager.register(uuid2, testUserName, null));
+        assertEquals(uuid2, userManager.findUuidByName(testUserName).orElseThrow());
+    }
+
+    @Test
+    void findUuidByNameAfterClearing() {
+        userManager.clearAllProfiles();
+        assertTrue(userManager.findUuidByName(testUserName).isEmpty());
+    }
+
+    @Test
+    void registerDuplicatedName() {
+        assertFalse(userManager.register(UUID.randomUUID().toString(), testUserName, null));
+
+        // The original user must stay reachable by name.
+        assertEquals(uuid, userManager.findUuidByName(testUserName).orElseThrow());
+    }
+
+    @Test
+    void lookupByChannel() {
+        var channel = mock(AsynchronousSocketChannel.class);
+        var uuid2 = UUID.randomUUID().toString();
+
+        assertTrue(userManager.register(uuid2, "C_" + UUID.randomUUID(), channel));
+        assertEquals(uuid2, userManager.lookupByChannel(channel).getUuid());
+
+        userManager.deleteUserProfile(uuid2);
+        assertNull(userManager.lookupByChannel(channel));
+    }
+
+    @Test
+    void registerNonTcpSession() {
+        var session = new ChatSession() {
+            private final String sessionUuid = UUID.randomUUID().toString();
+            private final String sessionName = "WS_" + UUID.randomUUID();
+
+            @Override
+            public String getUuid() {
+                return sessionUuid;
+            }
+
+            @Override
+            public String getName() {
+                return sessionName;
+            }
+
+            @Override
+            public Transport getTransport() {
+                return Transport.WEBSOCKET;
+            }
+
+            @Override
+            public void send(String text) {
+                // Not interested.
+            }
+        };
+
+        assertTrue(userManager.register(session));
+        assertTrue(userManager.containsName(session.getName()));
+        assertSame(session, userManager.findSessionByName(session.getName()).orElseThrow());
+        assertSame(session, userManager.lookupSession(session.getUuid()));
+
+        // It isn't a part of the TCP user profile.
+        assertFalse(userManager.containsUuid(session.getUuid()));
+        assertTrue(userManager.findUuidByName(session.getName()).isEmpty());
+
+        // The name is shared between transports.
+        assertFalse(userManager.register(UUID.randomUUID().toString(), session.getName(), null));
+
+        assertSame(session, userManager.unregister(session.getUuid()));
+        assertFalse(userManager.containsName(session.getName()));
+    }
+
     @Test
     void userProfileValueSet() {
         var valueSet = userManager.userProfileValueSet();
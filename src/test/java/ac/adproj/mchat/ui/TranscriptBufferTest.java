@@ -0,0 +1,67 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.ui;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TranscriptBufferTest {
+
+    @Test
+    void returnsNewMessages() {
+        var buffer = new TranscriptBuffer(4);
+
+        buffer.add("a");
+        buffer.add("b");
+
+        var update = buffer.since(0);
+        assertFalse(update.reset());
+        assertEquals(List.of("a", "b"), update.messages());
+        assertEquals(2, update.sequence());
+
+        buffer.add("c");
+
+        assertEquals(List.of("c"), buffer.since(2).messages());
+        assertTrue(buffer.since(3).messages().isEmpty());
+    }
+
+    @Test
+    void resetsWhenRendererFallsBehind() {
+        var buffer = new TranscriptBuffer(3);
+
+        for (int i = 0; i < 5; i++) {
+            buffer.add(Integer.toString(i));
+        }
+
+        // Messages 1 and 2 were overwritten.
+        var update = buffer.since(1);
+        assertTrue(update.reset());
+        assertEquals(List.of("2", "3", "4"), update.messages());
+
+        update = buffer.since(2);
+        assertFalse(update.reset());
+        assertEquals(List.of("2", "3", "4"), update.messages());
+
+        assertEquals(List.of("2", "3", "4"), buffer.all().messages());
+        assertEquals(5, buffer.all().sequence());
+    }
+}
@@ -0,0 +1,57 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.web;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class AttachmentServletTest {
+
+    @Test
+    void parsesRanges() {
+        assertEquals(new AttachmentServlet.Range(0, 99), AttachmentServlet.parseRange("bytes=0-99", 1000));
+        assertEquals(new AttachmentServlet.Range(500, 999), AttachmentServlet.parseRange("bytes=500-", 1000));
+        assertEquals(new AttachmentServlet.Range(900, 999), AttachmentServlet.parseRange("bytes=-100", 1000));
+        assertEquals(new AttachmentServlet.Range(0, 999), AttachmentServlet.parseRange("bytes=-5000", 1000));
+        assertEquals(new AttachmentServlet.Range(990, 999), AttachmentServlet.parseRange("bytes=990-5000", 1000));
+
+        // Unsatisfiable.
+        assertEquals(1000, AttachmentServlet.parseRange("bytes=1000-", 1000).first());
+        assertEquals(1000, AttachmentServlet.parseRange("bytes=-0", 1000).first());
+
+        // Ignored, the whole content is sent.
+        assertNull(AttachmentServlet.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(AttachmentServlet.parseRange("bytes=9-1", 1000));
+        assertNull(AttachmentServlet.parseRange("items=0-1", 1000));
+        assertNull(AttachmentServlet.parseRange("bytes=x-1", 1000));
+    }
+
+    @Test
+    void displaysMediaOnly() {
+        assertEquals("image/png", AttachmentServlet.inlineType("image/png"));
+        assertEquals("video/mp4", AttachmentServlet.inlineType("video/mp4"));
+
+        assertNull(AttachmentServlet.inlineType(null));
+        assertNull(AttachmentServlet.inlineType("text/html"));
+        assertNull(AttachmentServlet.inlineType("text/html;charset=utf-8"));
+        assertNull(AttachmentServlet.inlineType("image/svg+xml"));
+        assertNull(AttachmentServlet.inlineType("application/xhtml+xml"));
+        assertNull(AttachmentServlet.inlineType("text/xml"));
+    }
+}
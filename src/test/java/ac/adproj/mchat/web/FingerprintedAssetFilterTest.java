@@ -0,0 +1,37 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.web;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FingerprintedAssetFilterTest {
+
+    @Test
+    void matchesHashedNamesOnly() {
+        assertTrue(FingerprintedAssetFilter.isFingerprinted("/acmcs/js/app.3f2a9c1b.js"));
+        assertTrue(FingerprintedAssetFilter.isFingerprinted("/acmcs/css/chunk-vendors.0123abcd4567.css"));
+
+        assertFalse(FingerprintedAssetFilter.isFingerprinted("/acmcs/js/app.js"));
+        assertFalse(FingerprintedAssetFilter.isFingerprinted("/acmcs/index.html"));
+        assertFalse(FingerprintedAssetFilter.isFingerprinted("/acmcs/img/decade.png"));
+        assertFalse(FingerprintedAssetFilter.isFingerprinted("/acmcs/attachments/"
+                + "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"));
+    }
+}
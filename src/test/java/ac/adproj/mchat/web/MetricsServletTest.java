@@ -0,0 +1,68 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.web;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MetricsServletTest {
+
+    @AfterEach
+    void clearToken() {
+        System.clearProperty(HistorySearchServlet.ADMIN_TOKEN_PROPERTY);
+    }
+
+    private static HttpServletResponse get(String header, String value) throws Exception {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        when(req.getHeader(header)).thenReturn(value);
+        when(resp.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+
+        new MetricsServlet().doGet(req, resp);
+
+        return resp;
+    }
+
+    @Test
+    void requiresAdminToken() throws Exception {
+        verify(get(HistorySearchServlet.ADMIN_TOKEN_HEADER, "secret")).sendError(HttpServletResponse.SC_FORBIDDEN);
+
+        System.setProperty(HistorySearchServlet.ADMIN_TOKEN_PROPERTY, "secret");
+
+        verify(get(HistorySearchServlet.ADMIN_TOKEN_HEADER, "wrong")).sendError(HttpServletResponse.SC_FORBIDDEN);
+        verify(get("Authorization", "Bearer wrong")).sendError(HttpServletResponse.SC_FORBIDDEN);
+
+        HttpServletResponse resp = get(HistorySearchServlet.ADMIN_TOKEN_HEADER, "secret");
+        verify(resp, never()).sendError(any(Integer.class));
+        verify(resp).getOutputStream();
+
+        resp = get("Authorization", "Bearer secret");
+        verify(resp, never()).sendError(any(Integer.class));
+        verify(resp).getOutputStream();
+    }
+}
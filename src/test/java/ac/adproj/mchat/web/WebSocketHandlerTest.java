@@ -0,0 +1,112 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.web;
+
+import ac.adproj.mchat.service.UserManager;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static ac.adproj.mchat.model.Protocol.CONNECTING_GREET_LEFT_HALF;
+import static ac.adproj.mchat.model.Protocol.CONNECTING_GREET_MIDDLE_HALF;
+import static ac.adproj.mchat.model.Protocol.CONNECTING_GREET_RIGHT_HALF;
+import static ac.adproj.mchat.model.Protocol.MESSAGE_HEADER_LEFT_HALF;
+import static ac.adproj.mchat.model.Protocol.MESSAGE_HEADER_MIDDLE_HALF;
+import static ac.adproj.mchat.model.Protocol.MESSAGE_HEADER_RIGHT_HALF;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WebSocketHandlerTest {
+
+    private final Map<WebSocketHandler, Session> sessions = new HashMap<>();
+
+    private WebSocketHandler connect(List<String> received) {
+        var remote = mock(RemoteEndpoint.class);
+
+        doAnswer(invocation -> {
+            received.add(invocation.getArgument(0));
+            invocation.<WriteCallback>getArgument(1).writeSuccess();
+            return null;
+        }).when(remote).sendString(anyString(), any(WriteCallback.class));
+
+        var request = mock(UpgradeRequest.class);
+        when(request.getParameterMap()).thenReturn(Map.of());
+
+        var session = mock(Session.class);
+        when(session.getRemote()).thenReturn(remote);
+        when(session.getUpgradeRequest()).thenReturn(request);
+        when(session.isOpen()).thenReturn(true);
+
+        var handler = new WebSocketHandler();
+        handler.onWebSocketConnect(session);
+        sessions.put(handler, session);
+
+        return handler;
+    }
+
+    private static void register(WebSocketHandler handler, String name) {
+        handler.onWebSocketText(CONNECTING_GREET_LEFT_HALF + handler.getUuid() + CONNECTING_GREET_MIDDLE_HALF
+                + name + CONNECTING_GREET_RIGHT_HALF);
+    }
+
+    @AfterEach
+    void tearDown() {
+        sessions.keySet().forEach(h -> h.onWebSocketClose(StatusCode.NORMAL, null));
+    }
+
+    @Test
+    void rejectDuplicatedName() {
+        String name = "TEST" + UUID.randomUUID();
+        List<String> receivedByOwner = new ArrayList<>();
+
+        var owner = connect(receivedByOwner);
+        register(owner, name);
+
+        var impostor = connect(new ArrayList<>());
+        register(impostor, name);
+
+        assertNull(impostor.getName());
+        assertSame(owner, UserManager.getInstance().findSessionByName(name).orElseThrow());
+        verify(sessions.get(impostor)).close(eq(StatusCode.POLICY_VIOLATION), anyString());
+        verify(sessions.get(owner), never()).close(anyInt(), anyString());
+
+        impostor.onWebSocketText(MESSAGE_HEADER_LEFT_HALF + impostor.getUuid() + MESSAGE_HEADER_MIDDLE_HALF
+                + MESSAGE_HEADER_RIGHT_HALF + "forged");
+
+        assertTrue(receivedByOwner.stream().noneMatch(m -> m.contains("forged")));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.web;
+
+import ac.adproj.mchat.handler.BinaryMessageCodec;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class WebSocketOutboundTest {
+
+    private RemoteEndpoint remote;
+
+    private final List<String> frames = new ArrayList<>();
+
+    private final List<WriteCallback> pendingWrites = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        remote = mock(RemoteEndpoint.class);
+
+        // Holds the writes until the test completes them, like a slow browser.
+        doAnswer(invocation -> {
+            frames.add(invocation.getArgument(0));
+            pendingWrites.add(invocation.getArgument(1));
+            return null;
+        }).when(remote).sendString(anyString(), any(WriteCallback.class));
+    }
+
+    private void completeWrite() {
+        pendingWrites.remove(0).writeSuccess();
+    }
+
+    @Test
+    void coalescesMessagesQueuedDuringWrite() {
+        var outbound = new WebSocketOutbound(remote, true, false, 16);
+
+        outbound.offer("first");
+        outbound.offer("a: \"quoted\"");
+        outbound.offer("b\\c");
+
+        assertEquals(List.of("first"), frames);
+
+        completeWrite();
+
+        assertEquals("[\"a: \\\"quoted\\\"\",\"b\\\\c\"]", frames.get(1));
+        assertEquals(0, outbound.size());
+    }
+
+    @Test
+    void sendsOneFrameForEachMessageWithoutBatching() {
+        var outbound = new WebSocketOutbound(remote, false, false, 16);
+
+        outbound.offer("1");
+        outbound.offer("2");
+        outbound.offer("3");
+
+        completeWrite();
+        completeWrite();
+
+        assertEquals(List.of("1", "2", "3"), frames);
+    }
+
+    @Test
+    void dropsMessagesBeyondCapacity() {
+        var outbound = new WebSocketOutbound(remote, true, false, 2);
+
+        // The first one is being written, so it's not counted.
+        assertTrue(outbound.offer("1"));
+        assertTrue(outbound.offer("2"));
+        assertTrue(outbound.offer("3"));
+        assertFalse(outbound.offer("4"));
+
+        assertEquals(1, outbound.getDropped());
+    }
+
+    @Test
+    void rejectsMessagesAfterFailure() {
+        var outbound = new WebSocketOutbound(remote, true, false, 16);
+
+        outbound.offer("1");
+        outbound.offer("2");
+        pendingWrites.remove(0).writeFailed(new IOException("Broken pipe"));
+
+        assertFalse(outbound.offer("3"));
+        assertEquals(0, outbound.size());
+        assertEquals(List.of("1"), frames);
+    }
+
+    @Test
+    void sendsBinaryBatchInBinaryMode() {
+        List<ByteBuffer> binaryFrames = new ArrayList<>();
+
+        doAnswer(invocation -> {
+            binaryFrames.add(invocation.getArgument(0));
+            pendingWrites.add(invocation.getArgument(1));
+            return null;
+        }).when(remote).sendBytes(any(ByteBuffer.class), any(WriteCallback.class));
+
+        var outbound = new WebSocketOutbound(remote, true, true, 16);
+
+        outbound.offer("first");
+        outbound.offer("second");
+        outbound.offer("third");
+        completeWrite();
+
+        assertEquals("first", BinaryMessageCodec.decode(binaryFrames.get(0)).field(0));
+
+        var batch = BinaryMessageCodec.decodeBatch(binaryFrames.get(1));
+        assertEquals(List.of("second", "third"), batch.stream().map(frame -> frame.field(0)).toList());
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    void sendsChunkBetweenMessages() throws Exception {
+        List<ByteBuffer> partialFrames = new ArrayList<>();
+
+        doAnswer(invocation -> {
+            ByteBuffer fragment = invocation.getArgument(0);
+            partialFrames.add(fragment);
+            return null;
+        }).when(remote).sendPartialBytes(any(ByteBuffer.class), anyBoolean());
+
+        var outbound = new WebSocketOutbound(remote, true, false, 16);
+        var data = ByteBuffer.wrap(new byte[]{1, 2, 3}).asReadOnlyBuffer();
+
+        outbound.offer("first");
+        outbound.offer("second");
+
+        var relay = CompletableFuture.runAsync(() -> {
+            try {
+                outbound.sendChunk(BinaryMessageCodec.encodeChunkHeader("t1", 0), data);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        // Queued after the chunk.
+        while (outbound.size() < 2) {
+            Thread.onSpinWait();
+        }
+
+        outbound.offer("third");
+
+        completeWrite();
+        assertEquals(List.of("first", "second"), frames);
+        assertFalse(relay.isDone());
+
+        completeWrite();
+        relay.get(10, TimeUnit.SECONDS);
+
+        // The data is sent from the buffer given, not copied.
+        assertEquals(2, partialFrames.size());
+        assertSame(data, partialFrames.get(1));
+        var header = BinaryMessageCodec.encodeChunkHeader("t1", 0);
+        assertEquals(ByteBuffer.wrap(header), partialFrames.get(0));
+
+        assertEquals(List.of("first", "second", "third"), frames);
+    }
+
+    @Test
+    void abandonsChunkAfterFailure() throws Exception {
+        var outbound = new WebSocketOutbound(remote, true, false, 16);
+
+        outbound.offer("first");
+
+        var relay = CompletableFuture.runAsync(() -> {
+            try {
+                outbound.sendChunk(BinaryMessageCodec.encodeChunkHeader("t1", 0), ByteBuffer.allocate(3));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        while (outbound.size() < 1) {
+            Thread.onSpinWait();
+        }
+
+        pendingWrites.remove(0).writeFailed(new IOException("Broken pipe"));
+
+        var e = assertThrows(ExecutionException.class, () -> relay.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof UncheckedIOException);
+        verify(remote, never()).sendPartialBytes(any(ByteBuffer.class), anyBoolean());
+    }
+}
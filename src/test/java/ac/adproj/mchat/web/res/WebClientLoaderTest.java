@@ -0,0 +1,123 @@
+/*
+    Copyright (C) 2011-2024 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package ac.adproj.mchat.web.res;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WebClientLoaderTest {
+
+    private static final FileTime PACKAGE_TIME = FileTime.from(Instant.parse("2024-01-01T00:00:00Z"));
+
+    @TempDir
+    Path target;
+
+    private static byte[] war(String... namesAndContents) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+
+        try (var zos = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                var entry = new ZipEntry(namesAndContents[i]);
+                entry.setLastModifiedTime(PACKAGE_TIME);
+
+                zos.putNextEntry(entry);
+                zos.write(namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+                zos.closeEntry();
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void precompressesTextAssets() throws IOException {
+        WebClientLoader.extract(war(
+                "index.html", "<p>Hello</p>".repeat(100),
+                "js/app.js", "console.log('x');".repeat(100),
+                "tiny.css", "p{}",
+                "logo.png", "PNG".repeat(200)), target);
+
+        assertTrue(Files.exists(target.resolve("index.html.gz")));
+        assertTrue(Files.exists(target.resolve("js/app.js.gz")));
+        assertFalse(Files.exists(target.resolve("tiny.css.gz")));
+        assertFalse(Files.exists(target.resolve("logo.png.gz")));
+
+        assertTrue(Files.size(target.resolve("index.html.gz")) < Files.size(target.resolve("index.html")));
+    }
+
+    @Test
+    void keepsModificationTimeOfPackage() throws IOException {
+        WebClientLoader.extract(war("index.html", "<p>Hello</p>".repeat(100)), target);
+
+        assertEquals(PACKAGE_TIME.toMillis(), Files.getLastModifiedTime(target.resolve("index.html")).toMillis());
+        assertEquals(PACKAGE_TIME.toMillis(), Files.getLastModifiedTime(target.resolve("index.html.gz")).toMillis());
+    }
+
+    @Test
+    void removesOutdatedEntriesOfLoaderOnly() throws IOException {
+        String current = "a".repeat(64);
+        String outdated = "b".repeat(64);
+        Instant now = Instant.parse("2024-06-01T00:00:00Z");
+
+        Files.createDirectories(target.resolve(current));
+        Files.createFile(target.resolve(current + ".war"));
+        Files.createDirectories(target.resolve(outdated).resolve("js"));
+        Files.createFile(target.resolve(outdated + ".war"));
+        Files.createFile(target.resolve("notes.txt"));
+        Files.createDirectories(target.resolve(outdated.substring(1)));
+
+        // Temporary entries of another version, one of them is still being extracted.
+        Path staleTemp = Files.createDirectories(target.resolve(outdated + ".123"));
+        Files.setLastModifiedTime(staleTemp, FileTime.from(now.minusSeconds(7200)));
+        Path activeTemp = Files.createFile(target.resolve(outdated + ".456.war"));
+        Files.setLastModifiedTime(activeTemp, FileTime.from(now.minusSeconds(60)));
+
+        WebClientLoader.removeOutdatedEntries(target, current, now);
+
+        assertTrue(Files.exists(target.resolve(current)));
+        assertTrue(Files.exists(target.resolve(current + ".war")));
+        assertFalse(Files.exists(target.resolve(outdated)));
+        assertFalse(Files.exists(target.resolve(outdated + ".war")));
+        assertFalse(Files.exists(staleTemp));
+        assertTrue(Files.exists(activeTemp));
+        assertTrue(Files.exists(target.resolve("notes.txt")));
+        assertTrue(Files.exists(target.resolve(outdated.substring(1))));
+    }
+
+    @Test
+    void rejectsEntriesOutsideTarget() throws IOException {
+        byte[] war = war("../evil.js", "alert(1);");
+
+        assertThrows(IOException.class, () -> WebClientLoader.extract(war, target));
+        assertFalse(Files.exists(target.resolveSibling("evil.js")));
+    }
+}